@@ -0,0 +1,126 @@
+/*******************************************************************************
+ * Copyright 2014 Rui Sun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.images3.benchmarks;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import com.images3.common.ImageFormat;
+import com.images3.data.impl.GifFrameWriter;
+import com.images3.data.impl.ImageProcessorImplImgscalr;
+
+/**
+ * Generates the source images of the benchmarks, so nothing has to be 
+ * downloaded. The build generates them into target/benchmark-images; 
+ * images missing at run time are generated on first use.
+ */
+public class BenchmarkImages {
+    
+    private static final String IMAGES_DIR_PROPERTY = "images3.benchmark.images";
+    
+    private static final ImageFormat[] FORMATS = {
+        ImageFormat.JPEG, ImageFormat.PNG, ImageFormat.BMP, ImageFormat.GIF};
+    private static final String[] SIZES = {"320x240", "1600x1200", "4000x3000"};
+    private static final int GIF_FRAMES = 4;
+    
+    public static void main(String[] args) throws IOException {
+        File dir = new File(args.length > 0 ? args[0] : getImagesDir());
+        for (ImageFormat format: FORMATS) {
+            for (String size: SIZES) {
+                getImage(dir, format, size);
+            }
+        }
+    }
+    
+    public static File getImage(ImageFormat format, String size) throws IOException {
+        return getImage(new File(getImagesDir()), format, size);
+    }
+    
+    private static String getImagesDir() {
+        return System.getProperty(IMAGES_DIR_PROPERTY, "target" + File.separator + "benchmark-images");
+    }
+    
+    private static synchronized File getImage(File dir, ImageFormat format, String size) throws IOException {
+        File image = new File(dir, size + "." + format.toString().toLowerCase());
+        if (image.exists()) {
+            return image;
+        }
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Failed to create directory " + dir);
+        }
+        String[] dimension = size.split("x");
+        int width = Integer.parseInt(dimension[0]);
+        int height = Integer.parseInt(dimension[1]);
+        if (format == ImageFormat.GIF) {
+            writeGif(image, width, height);
+        } else {
+            ImageIO.write(drawImage(width, height, 0), format.toString(), image);
+        }
+        return image;
+    }
+    
+    private static void writeGif(File image, int width, int height) throws IOException {
+        GifFrameWriter writer = new GifFrameWriter(
+                image, BufferedImage.TYPE_INT_RGB, 100, true, "none");
+        try {
+            for (int frame = 0; frame < GIF_FRAMES; frame++) {
+                writer.writeToSequence(drawImage(width, height, frame));
+            }
+        } finally {
+            writer.close();
+        }
+    }
+    
+    /**
+     * Draws a gradient with random shapes, so encoders can't compress 
+     * the images much better than photos.
+     */
+    private static BufferedImage drawImage(int width, int height, int seed) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        graphics.setPaint(new GradientPaint(0, 0, Color.ORANGE, width, height, Color.BLUE));
+        graphics.fillRect(0, 0, width, height);
+        Random random = new Random(seed);
+        for (int i = 0; i < 200; i++) {
+            graphics.setColor(new Color(random.nextInt(256), random.nextInt(256), random.nextInt(256)));
+            graphics.fillOval(
+                    random.nextInt(width), random.nextInt(height), 
+                    1 + random.nextInt(width / 4), 1 + random.nextInt(height / 4));
+        }
+        graphics.dispose();
+        return image;
+    }
+    
+    public static ImageProcessorImplImgscalr createImageProcessor() {
+        File tempDir = new File(System.getProperty("java.io.tmpdir"), "images3-benchmarks");
+        if (!tempDir.exists() && !tempDir.mkdirs()) {
+            throw new IllegalStateException("Failed to create directory " + tempDir);
+        }
+        return new ImageProcessorImplImgscalr.Builder()
+            .setTempDir(tempDir.getAbsolutePath())
+            .build();
+    }
+    
+}
@@ -0,0 +1,77 @@
+/*******************************************************************************
+ * Copyright 2014 Rui Sun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.images3.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.images3.common.ImageFormat;
+import com.images3.common.ImageMetadata;
+import com.images3.data.impl.ImageProcessorImplImgscalr;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImageMetadataBenchmark {
+    
+    @Param({"JPEG", "PNG", "BMP", "GIF"})
+    public ImageFormat format;
+    
+    @Param({"320x240", "1600x1200", "4000x3000"})
+    public String size;
+    
+    private ImageProcessorImplImgscalr imageProcessor;
+    private File image;
+    
+    @Setup
+    public void setUp() throws IOException {
+        image = BenchmarkImages.getImage(format, size);
+        imageProcessor = BenchmarkImages.createImageProcessor();
+    }
+    
+    @TearDown
+    public void tearDown() {
+        imageProcessor.getTempFileArena().shutdown();
+    }
+    
+    @Benchmark
+    public ImageMetadata readImageMetadata() {
+        return imageProcessor.readImageMetadata(image);
+    }
+    
+    @Benchmark
+    public ImageFormat getImageFormat() {
+        return imageProcessor.getImageFormat(image);
+    }
+    
+}
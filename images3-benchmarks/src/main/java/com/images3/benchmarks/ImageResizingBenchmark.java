@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * Copyright 2014 Rui Sun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.images3.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.images3.common.ImageFormat;
+import com.images3.common.ImageMetadata;
+import com.images3.common.ResizingConfig;
+import com.images3.common.ResizingUnit;
+import com.images3.data.impl.ImageProcessorImplImgscalr;
+
+/**
+ * Resizes every source image to pixel and percent targets, with and 
+ * without keeping proportions. Resized files are deleted within the 
+ * measured call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImageResizingBenchmark {
+    
+    @Param({"JPEG", "PNG", "BMP", "GIF"})
+    public ImageFormat format;
+    
+    @Param({"320x240", "1600x1200", "4000x3000"})
+    public String size;
+    
+    @Param({"PIXEL_200x200_KEEP", "PIXEL_200x200_EXACT", "PERCENT_25x25_KEEP", "PERCENT_25x25_EXACT"})
+    public String config;
+    
+    private ImageProcessorImplImgscalr imageProcessor;
+    private File image;
+    private ImageMetadata metadata;
+    private ResizingConfig resizingConfig;
+    
+    @Setup
+    public void setUp() throws IOException {
+        image = BenchmarkImages.getImage(format, size);
+        imageProcessor = BenchmarkImages.createImageProcessor();
+        metadata = imageProcessor.readImageMetadata(image);
+        resizingConfig = parseResizingConfig(config);
+    }
+    
+    /**
+     * @param config unit, width x height and KEEP or EXACT, separated by underscores.
+     */
+    private ResizingConfig parseResizingConfig(String config) {
+        String[] parts = config.split("_");
+        String[] dimension = parts[1].split("x");
+        return new ResizingConfig(
+                ResizingUnit.valueOf(parts[0]), 
+                Integer.parseInt(dimension[0]), 
+                Integer.parseInt(dimension[1]), 
+                parts[2].equals("KEEP"));
+    }
+    
+    @TearDown
+    public void tearDown() {
+        imageProcessor.getTempFileArena().shutdown();
+    }
+    
+    @Benchmark
+    public File resizeImage() {
+        File resizedImage = imageProcessor.resizeImage(metadata, image, resizingConfig);
+        imageProcessor.getTempFileArena().release(resizedImage);
+        return resizedImage;
+    }
+    
+}
@@ -0,0 +1,64 @@
+/*******************************************************************************
+ * Copyright 2014 Rui Sun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.images3.common;
+
+/**
+ * Frame settings of resized animated images. Settings are ignored 
+ * for images that aren't animated.
+ */
+public class AnimationConfig {
+    
+    //'-1' means no limit.
+    public static final int UNLIMITED_FRAMES = -1;
+    public static final int UNLIMITED_DURATION = -1;
+    
+    private boolean isFirstFrameOnly;
+    private int maxFrames;
+    private int maxDurationMillis;
+    
+    /**
+     * @param isFirstFrameOnly true to output a static image of the first frame.
+     * @param maxFrames frames to keep at most, evenly spread over the animation; 
+     *                  delays of the dropped frames are added to the kept ones.
+     * @param maxDurationMillis length of the animation to keep at most.
+     */
+    public AnimationConfig(boolean isFirstFrameOnly, int maxFrames,
+            int maxDurationMillis) {
+        this.isFirstFrameOnly = isFirstFrameOnly;
+        this.maxFrames = maxFrames;
+        this.maxDurationMillis = maxDurationMillis;
+    }
+
+    public boolean isFirstFrameOnly() {
+        return isFirstFrameOnly;
+    }
+
+    public int getMaxFrames() {
+        return maxFrames;
+    }
+
+    public int getMaxDurationMillis() {
+        return maxDurationMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "AnimationConfig [isFirstFrameOnly=" + isFirstFrameOnly
+                + ", maxFrames=" + maxFrames + ", maxDurationMillis="
+                + maxDurationMillis + "]";
+    }
+    
+}
@@ -0,0 +1,49 @@
+/*******************************************************************************
+ * Copyright 2014 Rui Sun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.images3.common;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An encoded image held in memory.
+ */
+public class EncodedImage {
+    
+    private ByteBuffer content;
+    private ImageMetadata metadata;
+    
+    public EncodedImage(ByteBuffer content, ImageMetadata metadata) {
+        this.content = content;
+        this.metadata = metadata;
+    }
+
+    /**
+     * @return a read-only view of the encoded bytes, positioned at the start.
+     */
+    public ByteBuffer getContent() {
+        return content.asReadOnlyBuffer();
+    }
+
+    public ImageMetadata getMetadata() {
+        return metadata;
+    }
+
+    @Override
+    public String toString() {
+        return "EncodedImage [content=" + content + ", metadata=" + metadata + "]";
+    }
+    
+}
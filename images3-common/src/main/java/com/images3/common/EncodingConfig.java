@@ -0,0 +1,65 @@
+/*******************************************************************************
+ * Copyright 2014 Rui Sun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.images3.common;
+
+/**
+ * Encoder settings of resized images. Settings that don't apply to 
+ * the image format are ignored.
+ */
+public class EncodingConfig {
+    
+    //'-1' means the encoder's default.
+    public static final int DEFAULT_JPEG_QUALITY = -1;
+    public static final int DEFAULT_PNG_COMPRESSION_LEVEL = -1;
+    
+    private int jpegQuality; //1 - 100
+    private boolean isProgressive;
+    private ChromaSubsampling chromaSubsampling;
+    private int pngCompressionLevel; //0 - 9
+    
+    public EncodingConfig(int jpegQuality, boolean isProgressive,
+            ChromaSubsampling chromaSubsampling, int pngCompressionLevel) {
+        this.jpegQuality = jpegQuality;
+        this.isProgressive = isProgressive;
+        this.chromaSubsampling = (null == chromaSubsampling) ? ChromaSubsampling.DEFAULT : chromaSubsampling;
+        this.pngCompressionLevel = pngCompressionLevel;
+    }
+
+    public int getJpegQuality() {
+        return jpegQuality;
+    }
+
+    public boolean isProgressive() {
+        return isProgressive;
+    }
+
+    public ChromaSubsampling getChromaSubsampling() {
+        return chromaSubsampling;
+    }
+
+    public int getPngCompressionLevel() {
+        return pngCompressionLevel;
+    }
+
+    @Override
+    public String toString() {
+        return "EncodingConfig [jpegQuality=" + jpegQuality
+                + ", isProgressive=" + isProgressive + ", chromaSubsampling="
+                + chromaSubsampling + ", pngCompressionLevel="
+                + pngCompressionLevel + "]";
+    }
+    
+}
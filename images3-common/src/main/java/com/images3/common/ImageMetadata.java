@@ -20,11 +20,21 @@ public class ImageMetadata {
     private ImageDimension dimension;
     private ImageFormat format;
     private long size;
+    private ImagePlaceholder placeholder;
     
     public ImageMetadata(ImageDimension dimension, ImageFormat format, long size) {
+        this(dimension, format, size, null);
+    }
+    
+    /**
+     * @param placeholder placeholder of the image, or null if there is none.
+     */
+    public ImageMetadata(ImageDimension dimension, ImageFormat format, long size,
+            ImagePlaceholder placeholder) {
         this.dimension = dimension;
         this.format = format;
         this.size = size;
+        this.placeholder = placeholder;
     }
 
     public ImageDimension getDimension() {
@@ -39,6 +49,10 @@ public class ImageMetadata {
         return size;
     }
 
+    public ImagePlaceholder getPlaceholder() {
+        return placeholder;
+    }
+
     @Override
     public int hashCode() {
         final int prime = 31;
@@ -47,6 +61,8 @@ public class ImageMetadata {
                 + ((dimension == null) ? 0 : dimension.hashCode());
         result = prime * result + ((format == null) ? 0 : format.hashCode());
         result = prime * result + (int) (size ^ (size >>> 32));
+        result = prime * result
+                + ((placeholder == null) ? 0 : placeholder.hashCode());
         return result;
     }
 
@@ -68,6 +84,11 @@ public class ImageMetadata {
             return false;
         if (size != other.size)
             return false;
+        if (placeholder == null) {
+            if (other.placeholder != null)
+                return false;
+        } else if (!placeholder.equals(other.placeholder))
+            return false;
         return true;
     }
 
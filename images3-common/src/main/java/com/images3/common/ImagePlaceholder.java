@@ -0,0 +1,82 @@
+/*******************************************************************************
+ * Copyright 2014 Rui Sun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.images3.common;
+
+/**
+ * Compact stand-in rendered by clients while the image itself loads.
+ */
+public class ImagePlaceholder {
+    
+    private String dominantColor;
+    private String blurHash;
+    
+    /**
+     * @param dominantColor most common color as #rrggbb.
+     * @param blurHash <a href="https://blurha.sh">BlurHash</a> of the image.
+     */
+    public ImagePlaceholder(String dominantColor, String blurHash) {
+        this.dominantColor = dominantColor;
+        this.blurHash = blurHash;
+    }
+
+    public String getDominantColor() {
+        return dominantColor;
+    }
+
+    public String getBlurHash() {
+        return blurHash;
+    }
+
+    @Override
+    public int hashCode() {
+        final int prime = 31;
+        int result = 1;
+        result = prime * result
+                + ((blurHash == null) ? 0 : blurHash.hashCode());
+        result = prime * result
+                + ((dominantColor == null) ? 0 : dominantColor.hashCode());
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (obj == null)
+            return false;
+        if (getClass() != obj.getClass())
+            return false;
+        ImagePlaceholder other = (ImagePlaceholder) obj;
+        if (blurHash == null) {
+            if (other.blurHash != null)
+                return false;
+        } else if (!blurHash.equals(other.blurHash))
+            return false;
+        if (dominantColor == null) {
+            if (other.dominantColor != null)
+                return false;
+        } else if (!dominantColor.equals(other.dominantColor))
+            return false;
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "ImagePlaceholder [dominantColor=" + dominantColor
+                + ", blurHash=" + blurHash + "]";
+    }
+    
+}
@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * Copyright 2014 Rui Sun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.images3.common;
+
+public class ImageProbe {
+
+    private ImageMetadata metadata;
+    private int numberOfFrames;
+    private boolean hasAlpha;
+    private ImageColorType colorType;
+    
+    public ImageProbe(ImageMetadata metadata, int numberOfFrames,
+            boolean hasAlpha, ImageColorType colorType) {
+        this.metadata = metadata;
+        this.numberOfFrames = numberOfFrames;
+        this.hasAlpha = hasAlpha;
+        this.colorType = colorType;
+    }
+
+    public ImageMetadata getMetadata() {
+        return metadata;
+    }
+
+    public ImageFormat getFormat() {
+        return metadata.getFormat();
+    }
+
+    public ImageDimension getDimension() {
+        return metadata.getDimension();
+    }
+
+    public int getNumberOfFrames() {
+        return numberOfFrames;
+    }
+
+    public boolean hasAlpha() {
+        return hasAlpha;
+    }
+
+    public ImageColorType getColorType() {
+        return colorType;
+    }
+
+    @Override
+    public int hashCode() {
+        final int prime = 31;
+        int result = 1;
+        result = prime * result
+                + ((colorType == null) ? 0 : colorType.hashCode());
+        result = prime * result + (hasAlpha ? 1231 : 1237);
+        result = prime * result
+                + ((metadata == null) ? 0 : metadata.hashCode());
+        result = prime * result + numberOfFrames;
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (obj == null)
+            return false;
+        if (getClass() != obj.getClass())
+            return false;
+        ImageProbe other = (ImageProbe) obj;
+        if (colorType != other.colorType)
+            return false;
+        if (hasAlpha != other.hasAlpha)
+            return false;
+        if (metadata == null) {
+            if (other.metadata != null)
+                return false;
+        } else if (!metadata.equals(other.metadata))
+            return false;
+        if (numberOfFrames != other.numberOfFrames)
+            return false;
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "ImageProbe [metadata=" + metadata + ", numberOfFrames="
+                + numberOfFrames + ", hasAlpha=" + hasAlpha + ", colorType="
+                + colorType + "]";
+    }
+    
+}
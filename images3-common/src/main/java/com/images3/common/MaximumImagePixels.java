@@ -0,0 +1,7 @@
+package com.images3.common;
+
+public interface MaximumImagePixels {
+
+    public final static long UNLIMITED = -1;
+    
+}
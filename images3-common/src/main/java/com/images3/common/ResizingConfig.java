@@ -21,13 +21,45 @@ public class ResizingConfig {
     private int width;
     private int height;
     private boolean isKeepProportions;
+    private EncodingConfig encodingConfig;
+    private ResamplingFilter resamplingFilter;
+    private AnimationConfig animationConfig;
     
     public ResizingConfig(ResizingUnit unit, int width, int height,
             boolean isKeepProportions) {
+        this(unit, width, height, isKeepProportions, null);
+    }
+    
+    /**
+     * @param encodingConfig encoder settings, or null for the encoder's defaults.
+     */
+    public ResizingConfig(ResizingUnit unit, int width, int height,
+            boolean isKeepProportions, EncodingConfig encodingConfig) {
+        this(unit, width, height, isKeepProportions, encodingConfig, null);
+    }
+    
+    /**
+     * @param resamplingFilter filter to resample with, or null for the default one.
+     */
+    public ResizingConfig(ResizingUnit unit, int width, int height,
+            boolean isKeepProportions, EncodingConfig encodingConfig, 
+            ResamplingFilter resamplingFilter) {
+        this(unit, width, height, isKeepProportions, encodingConfig, resamplingFilter, null);
+    }
+    
+    /**
+     * @param animationConfig frame settings of animated images, or null to keep every frame.
+     */
+    public ResizingConfig(ResizingUnit unit, int width, int height,
+            boolean isKeepProportions, EncodingConfig encodingConfig, 
+            ResamplingFilter resamplingFilter, AnimationConfig animationConfig) {
         this.unit = unit;
         this.width = width;
         this.height = height;
         this.isKeepProportions = isKeepProportions;
+        this.encodingConfig = encodingConfig;
+        this.resamplingFilter = (null == resamplingFilter ? ResamplingFilter.DEFAULT : resamplingFilter);
+        this.animationConfig = animationConfig;
     }
     
     public ResizingUnit getUnit() {
@@ -46,10 +78,24 @@ public class ResizingConfig {
         return isKeepProportions;
     }
 
+    public EncodingConfig getEncodingConfig() {
+        return encodingConfig;
+    }
+
+    public ResamplingFilter getResamplingFilter() {
+        return resamplingFilter;
+    }
+
+    public AnimationConfig getAnimationConfig() {
+        return animationConfig;
+    }
+
     @Override
     public String toString() {
         return "ResizingConfig [unit=" + unit + ", width=" + width
                 + ", height=" + height + ", isKeepProportions="
-                + isKeepProportions + "]";
+                + isKeepProportions + ", encodingConfig=" + encodingConfig 
+                + ", resamplingFilter=" + resamplingFilter 
+                + ", animationConfig=" + animationConfig + "]";
     }
 }
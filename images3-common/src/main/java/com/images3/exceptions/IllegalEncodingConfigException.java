@@ -0,0 +1,42 @@
+/*******************************************************************************
+ * Copyright 2014 Rui Sun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.images3.exceptions;
+
+public class IllegalEncodingConfigException extends RuntimeException {
+
+    /**
+     * 
+     */
+    private static final long serialVersionUID = 2716094405517309268L;
+    
+    private int minimum;
+    private int maximum;
+    
+    public IllegalEncodingConfigException(int minimum, int maximum, String message) {
+        super(message);
+        this.minimum = minimum;
+        this.maximum = maximum;
+    }
+
+    public int getMinimum() {
+        return minimum;
+    }
+
+    public int getMaximum() {
+        return maximum;
+    }
+    
+}
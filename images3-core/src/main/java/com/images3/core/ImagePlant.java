@@ -44,6 +44,15 @@ public interface ImagePlant {
     
     public boolean isUnlimitImageSize();
     
+    /**
+     * @param pixels width * height * frames an uploaded image may decode to.
+     */
+    public void updateMaximumImagePixels(long pixels);
+    
+    public long getMaximumImagePixels();
+    
+    public boolean isUnlimitImagePixels();
+    
     public Template getMasterTemplate();
     
     public Template createTemplate(String name, ResizingConfig resizingConfig);
@@ -66,6 +75,8 @@ public interface ImagePlant {
     
     public Image createImage(Version version);
     
+    public List<Image> createImages(List<Version> versions);
+    
     public void removeImage(Image image);
     
     public Image fetchImageById(String id);
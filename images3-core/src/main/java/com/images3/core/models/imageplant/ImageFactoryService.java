@@ -16,20 +16,28 @@
 package com.images3.core.models.imageplant;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import com.images3.common.ImageIdentity;
 import com.images3.common.ImageMetadata;
+import com.images3.common.ImageProbe;
 import com.images3.common.ImageVersion;
+import com.images3.common.ResizingConfig;
 import com.images3.core.Image;
 import com.images3.core.Template;
 import com.images3.core.Version;
+import com.images3.data.ImageDecodingBudget;
 import com.images3.data.ImageOS;
 import com.images3.data.ImagePlantOS;
 import com.images3.data.spi.ImageAccess;
 import com.images3.data.spi.ImageProcessor;
 import com.images3.exceptions.DuplicateImageVersionException;
 import com.images3.exceptions.IllegalImageVersionException;
+import com.images3.exceptions.OverMaximumImagePixelsException;
 import com.images3.exceptions.OverMaximumlmageSizeException;
 import com.images3.exceptions.UnsupportedImageFormatException;
 
@@ -46,12 +54,14 @@ public class ImageFactoryService {
     public ImageEntity generateImage(ImagePlantRoot imagePlant, File imageContent, 
             ImageRepositoryService imageRepository, TemplateRepositoryService templateRepository) {
         checkForImageSize(imagePlant, imageContent);
-        checkForUnsupportedFormat(imageContent);
+        ImageProbe probe = imageProcessor.probeImage(imageContent);
+        checkForUnsupportedFormat(probe);
+        checkForImagePixels(imagePlant, probe);
         
         TemplateEntity template = (TemplateEntity) imagePlant.getMasterTemplate();
         Version version = new Version(template, null);
-        ImageMetadata metadata = imageProcessor.readImageMetadata(imageContent);
-        File resizedContent = imageProcessor.resizeImage(
+        ImageMetadata metadata = probe.getMetadata();
+        File resizedContent = imageProcessor.resizeMasterImage(
                 metadata, 
                 imageContent, 
                 version.getTemplate().getResizingConfig());
@@ -71,8 +81,17 @@ public class ImageFactoryService {
         }
     }
     
-    private void checkForUnsupportedFormat(File imageContent) {
-        if (!imageProcessor.isSupportedFormat(imageContent)) {
+    private void checkForImagePixels(ImagePlantRoot imagePlant, ImageProbe probe) {
+        long pixels = ImageDecodingBudget.getDecodedPixels(probe);
+        if (!imagePlant.isUnlimitImagePixels()
+                && pixels > imagePlant.getMaximumImagePixels()) {
+            throw new OverMaximumImagePixelsException(
+                    imagePlant.getMaximumImagePixels(), pixels, "The uploaded image has too many pixels");
+        }
+    }
+    
+    private void checkForUnsupportedFormat(ImageProbe probe) {
+        if (null == probe) {
             throw new UnsupportedImageFormatException("");
         }
     }
@@ -98,6 +117,82 @@ public class ImageFactoryService {
                 templateRepository);
     }
     
+    /**
+     * Generates several versions of the same original image, decoding 
+     * the original image only once.
+     */
+    public List<ImageEntity> generateImages(ImagePlantRoot imagePlant, List<Version> versions, 
+            ImageRepositoryService imageRepository, TemplateRepositoryService templateRepository) {
+        List<ImageEntity> entities = new ArrayList<ImageEntity>(versions.size());
+        if (versions.isEmpty()) {
+            return entities;
+        }
+        List<ResizingConfig> resizingConfigs = new ArrayList<ResizingConfig>(versions.size());
+        Set<String> templateNames = new HashSet<String>(versions.size());
+        for (Version version: versions) {
+            checkForNullOriginalImage(version);
+            checkForNonMasterOriginalImage(version);
+            checkForSameOriginalImage(versions.get(0), version);
+            checkForArchivedTemplate(version.getTemplate());
+            checkForMasterVersion(version);
+            checkForDuplicateVersion(imagePlant, version);
+            checkForDuplicateVersion(templateNames, version);
+            resizingConfigs.add(version.getTemplate().getResizingConfig());
+        }
+        
+        ImageEntity originalImage = (ImageEntity) versions.get(0).getOriginalImage();
+        List<File> resizedContents = imageProcessor.resizeImages(
+                originalImage.getObjectSegment().getMetadata(), 
+                originalImage.getContent(), 
+                resizingConfigs);
+        boolean isGenerated = false;
+        try {
+            for (int i = 0; i < versions.size(); i++) {
+                entities.add(
+                        generateImage(
+                                imagePlant, 
+                                resizedContents.get(i), 
+                                versions.get(i), 
+                                imageRepository, 
+                                templateRepository));
+            }
+            isGenerated = true;
+        } finally {
+            if (!isGenerated) {
+                discardContents(originalImage.getObjectSegment().getMetadata(), resizedContents);
+            }
+        }
+        return entities;
+    }
+    
+    /**
+     * None of the versions is stored if one of them fails, 
+     * so none of the resized contents is needed anymore.
+     */
+    private void discardContents(ImageMetadata metadata, List<File> contents) {
+        for (File content: contents) {
+            imageProcessor.discardImage(metadata, content);
+        }
+    }
+    
+    private void checkForSameOriginalImage(Version first, Version version) {
+        if (!first.getOriginalImage().getId().equals(version.getOriginalImage().getId())) {
+            ImageVersion imageVersion = new ImageVersion(
+                    version.getTemplate().getName(), version.getOriginalImage().getId());
+            String message = "All versions must be generated from the same original image.";
+            throw new IllegalImageVersionException(imageVersion, message);
+        }
+    }
+    
+    private void checkForDuplicateVersion(Set<String> templateNames, Version version) {
+        if (!templateNames.add(version.getTemplate().getName().toLowerCase())) {
+            ImageVersion imageVersion = new ImageVersion(
+                    version.getTemplate().getName(), version.getOriginalImage().getId());
+            String message = "Image version \'" + imageVersion.getTemplateName() + "\' requested more than once.";
+            throw new DuplicateImageVersionException(imageVersion, message);
+        }
+    }
+    
     private void checkForArchivedTemplate(Template template) {
         if (template.isArchived()) {
             throw new IllegalArgumentException("Template " + template.getName() + " has been archived.");
@@ -141,7 +236,12 @@ public class ImageFactoryService {
             ImageRepositoryService imageRepository, TemplateRepositoryService templateRepository) {
         ImageVersion versionOS = getVersionOS(version);
         String imageId = imageAccess.generateImageId(imagePlant.getObjectSegment());
-        ImageMetadata metadata = imageProcessor.readImageMetadata(imageContent);
+        ImageProbe probe = imageProcessor.probeImage(imageContent);
+        checkForUnsupportedFormat(probe);
+        ImageMetadata metadata = probe.getMetadata();
+        if (version.isMaster()) {
+            metadata = addPlaceholder(metadata, imageContent);
+        }
         ImageOS objectSegment = generateImageOS(
                 imageId, metadata, imagePlant.getObjectSegment(), versionOS);
         ImageEntity entity = reconstituteImage(
@@ -162,6 +262,18 @@ public class ImageFactoryService {
         return imageVer;
     }
     
+    /**
+     * Only the master version gets a placeholder; every other version 
+     * shows the same picture.
+     */
+    private ImageMetadata addPlaceholder(ImageMetadata metadata, File imageContent) {
+        return new ImageMetadata(
+                metadata.getDimension(), 
+                metadata.getFormat(), 
+                metadata.getSize(), 
+                imageProcessor.createPlaceholder(metadata, imageContent));
+    }
+    
     private ImageOS generateImageOS(String id, ImageMetadata metadata, 
             ImagePlantOS imagePlantOS, ImageVersion versionOS) {
         Date dateTime = new Date(System.currentTimeMillis());
@@ -18,6 +18,7 @@ package com.images3.core.models.imageplant;
 import java.util.Date;
 
 import com.images3.common.AmazonS3Bucket;
+import com.images3.common.MaximumImagePixels;
 import com.images3.common.MaximumImageSize;
 import com.images3.common.ResizingConfig;
 import com.images3.core.ImagePlant;
@@ -62,7 +63,8 @@ public class ImagePlantFactoryService implements ImagePlantFactory {
         long numberOfTemplates = 0;
         ImagePlantOS objectSegment =
                 new ImagePlantOS(id, "", creationTime, null,
-                        TemplateEntity.MASTER_TEMPLATE_NAME, numberOfTemplates, maximumImageSize);
+                        TemplateEntity.MASTER_TEMPLATE_NAME, numberOfTemplates, 
+                        maximumImageSize, MaximumImagePixels.UNLIMITED);
         ImagePlantRoot root = reconstituteImagePlant(objectSegment, imageRepository, templateRepository);
         root.markAsNew();
         root.updateName(name);
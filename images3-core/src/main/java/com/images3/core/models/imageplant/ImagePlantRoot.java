@@ -24,6 +24,7 @@ import java.util.Map;
 
 import com.images3.common.AmazonS3Bucket;
 import com.images3.common.DirtyMark;
+import com.images3.common.MaximumImagePixels;
 import com.images3.common.MaximumImageSize;
 import com.images3.common.ResizingConfig;
 import com.images3.core.Image;
@@ -183,6 +184,22 @@ public class ImagePlantRoot extends DirtyMark implements ImagePlant {
         return (objectSegment.getMaximumImageSize() == MaximumImageSize.UNLIMITED);
     }
 
+    @Override
+    public void updateMaximumImagePixels(long pixels) {
+        objectSegment.setMaximumImagePixels(pixels);
+        markAsDirty();
+    }
+
+    @Override
+    public long getMaximumImagePixels() {
+        return objectSegment.getMaximumImagePixels();
+    }
+
+    @Override
+    public boolean isUnlimitImagePixels() {
+        return (objectSegment.getMaximumImagePixels() == MaximumImagePixels.UNLIMITED);
+    }
+
     @Override
     public Template getMasterTemplate() {
         if (null == masterTemplate) {
@@ -278,12 +295,31 @@ public class ImagePlantRoot extends DirtyMark implements ImagePlant {
                 this, version, imageRepository,
                 templateRepository);
         addDirtyImage(entity);
-        TemplateEntity templateEntity = (TemplateEntity) version.getTemplate();
+        markAsNotRemovable((TemplateEntity) version.getTemplate());
+        return entity;
+    }
+    
+    @Override
+    public List<Image> createImages(List<Version> versions) {
+        List<ImageEntity> entities = imageFactory.generateImages(
+                this, versions, imageRepository,
+                templateRepository);
+        List<Image> images = new ArrayList<Image>(entities.size());
+        for (ImageEntity entity: entities) {
+            addDirtyImage(entity);
+            images.add(entity);
+        }
+        for (Version version: versions) {
+            markAsNotRemovable((TemplateEntity) version.getTemplate());
+        }
+        return images;
+    }
+    
+    private void markAsNotRemovable(TemplateEntity templateEntity) {
         if (templateEntity.isRemovable()) {
             templateEntity.setNotRemovable();
             dirtyTemplates.put(templateEntity.getName(), templateEntity);
         }
-        return entity;
     }
 
     @Override
@@ -19,6 +19,8 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.regex.Pattern;
 
+import com.images3.common.AnimationConfig;
+import com.images3.common.EncodingConfig;
 import com.images3.common.ResizingConfig;
 import com.images3.common.ResizingUnit;
 import com.images3.common.TemplateIdentity;
@@ -26,6 +28,8 @@ import com.images3.core.Template;
 import com.images3.data.TemplateOS;
 import com.images3.data.spi.TemplateAccess;
 import com.images3.exceptions.DuplicateTemplateNameException;
+import com.images3.exceptions.IllegalAnimationConfigException;
+import com.images3.exceptions.IllegalEncodingConfigException;
 import com.images3.exceptions.IllegalResizingDimensionsException;
 import com.images3.exceptions.IllegalTemplateNameException;
 import com.images3.exceptions.IllegalTemplateNameLengthException;
@@ -40,6 +44,12 @@ public class TemplateFactoryService {
     private static final int RESIZING_DIMENSION_PERCENT_MIN = 1;
     private static final int RESIZING_DIMENSION_PERCENT_MAX = 100;
     private static final int RESIZING_DIMENSION_PIXEL_MIN = 0;
+    private static final int JPEG_QUALITY_MIN = 1;
+    private static final int JPEG_QUALITY_MAX = 100;
+    private static final int PNG_COMPRESSION_LEVEL_MIN = 0;
+    private static final int PNG_COMPRESSION_LEVEL_MAX = 9;
+    private static final int ANIMATION_FRAMES_MIN = 1;
+    private static final int ANIMATION_DURATION_MILLIS_MIN = 10; //GIF delays are in 1/100 second.
     
     private TemplateAccess templateAccess;
     
@@ -54,6 +64,8 @@ public class TemplateFactoryService {
         } else {
             checkForPixelResizing(resizingConfig);
         }
+        checkForEncodingConfig(resizingConfig.getEncodingConfig());
+        checkForAnimationConfig(resizingConfig.getAnimationConfig());
         
         TemplateEntity entity = generateTemplate(
                 imagePlant, 
@@ -72,6 +84,8 @@ public class TemplateFactoryService {
         } else {
             checkForPixelResizing(resizingConfig);
         }
+        checkForEncodingConfig(resizingConfig.getEncodingConfig());
+        checkForAnimationConfig(resizingConfig.getAnimationConfig());
         checkForDuplicateTemplateName(imagePlant.getId(), name);
         TemplateOS objectSegment = new TemplateOS(
                 new TemplateIdentity(imagePlant.getId(), name), 
@@ -125,6 +139,46 @@ public class TemplateFactoryService {
         }
     }
     
+    private void checkForEncodingConfig(EncodingConfig encodingConfig) {
+        if (null == encodingConfig) {
+            return;
+        }
+        int quality = encodingConfig.getJpegQuality();
+        if (quality != EncodingConfig.DEFAULT_JPEG_QUALITY
+                && (quality < JPEG_QUALITY_MIN || quality > JPEG_QUALITY_MAX)) {
+            String message = "Set JPEG quality between " + JPEG_QUALITY_MIN
+                    + " and " + JPEG_QUALITY_MAX + ".";
+            throw new IllegalEncodingConfigException(JPEG_QUALITY_MIN, JPEG_QUALITY_MAX, message);
+        }
+        int level = encodingConfig.getPngCompressionLevel();
+        if (level != EncodingConfig.DEFAULT_PNG_COMPRESSION_LEVEL
+                && (level < PNG_COMPRESSION_LEVEL_MIN || level > PNG_COMPRESSION_LEVEL_MAX)) {
+            String message = "Set PNG compression level between " + PNG_COMPRESSION_LEVEL_MIN
+                    + " and " + PNG_COMPRESSION_LEVEL_MAX + ".";
+            throw new IllegalEncodingConfigException(
+                    PNG_COMPRESSION_LEVEL_MIN, PNG_COMPRESSION_LEVEL_MAX, message);
+        }
+    }
+    
+    private void checkForAnimationConfig(AnimationConfig animationConfig) {
+        if (null == animationConfig) {
+            return;
+        }
+        int frames = animationConfig.getMaxFrames();
+        if (frames != AnimationConfig.UNLIMITED_FRAMES
+                && frames < ANIMATION_FRAMES_MIN) {
+            String message = "Set maximum frames to at least " + ANIMATION_FRAMES_MIN + ".";
+            throw new IllegalAnimationConfigException(ANIMATION_FRAMES_MIN, message);
+        }
+        int duration = animationConfig.getMaxDurationMillis();
+        if (duration != AnimationConfig.UNLIMITED_DURATION
+                && duration < ANIMATION_DURATION_MILLIS_MIN) {
+            String message = "Set maximum duration to at least " 
+                    + ANIMATION_DURATION_MILLIS_MIN + " milliseconds.";
+            throw new IllegalAnimationConfigException(ANIMATION_DURATION_MILLIS_MIN, message);
+        }
+    }
+    
     private void validateTempalteName(String name) {
         if (null == name) {
             throw new NullPointerException("Template name");
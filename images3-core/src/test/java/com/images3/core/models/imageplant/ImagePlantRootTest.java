@@ -19,6 +19,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 
@@ -338,6 +339,23 @@ public class ImagePlantRootTest {
                 imagePlant, version, imageRepository, templateRepository);
     }
     
-    
+    @Test
+    public void testCreateImagesWithTemplates() {
+        ImageEntity originalImage = setupImageEntity();
+        ImagePlantRoot imagePlant = (ImagePlantRoot) originalImage.getImagePlant();
+        TemplateEntity template = SetupHelper.setupTemplateEntity(imagePlant, templateOS);
+        ImageEntity image = setupImageEntity();
+        List<Version> versions = Arrays.asList(new Version(template, originalImage));
+        Mockito.when(
+                imageFactory.generateImages(
+                        imagePlant, versions, imageRepository, templateRepository))
+                        .thenReturn(Arrays.asList(image));
+        List<Image> newImages = imagePlant.createImages(versions);
+        assertEquals(newImages.size(), 1);
+        assertTrue(newImages.get(0).equals(image));
+        
+        Mockito.verify(imageFactory).generateImages(
+                imagePlant, versions, imageRepository, templateRepository);
+    }
     
 }
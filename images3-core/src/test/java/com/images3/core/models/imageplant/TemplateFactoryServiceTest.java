@@ -28,6 +28,9 @@ import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import org.mockito.Mockito;
 
+import com.images3.common.AnimationConfig;
+import com.images3.common.ChromaSubsampling;
+import com.images3.common.EncodingConfig;
 import com.images3.common.ResizingConfig;
 import com.images3.common.ResizingUnit;
 import com.images3.common.TemplateIdentity;
@@ -39,6 +42,8 @@ import com.images3.core.models.imageplant.ImagePlantRoot;
 import com.images3.core.models.imageplant.TemplateEntity;
 import com.images3.core.models.imageplant.TemplateFactoryService;
 import com.images3.exceptions.DuplicateTemplateNameException;
+import com.images3.exceptions.IllegalAnimationConfigException;
+import com.images3.exceptions.IllegalEncodingConfigException;
 
 public class TemplateFactoryServiceTest {
 
@@ -112,6 +117,79 @@ public class TemplateFactoryServiceTest {
         factory.generateTemplate(imagePlant, TEMPLATE_NAME, TEMPLATE_RESIZE_CONFIG);
     }
     
+    private ResizingConfig setupResizingConfig(EncodingConfig encodingConfig, AnimationConfig animationConfig) {
+        return new ResizingConfig(ResizingUnit.PIXEL, 100, 100, true, encodingConfig, null, animationConfig);
+    }
+    
+    private EncodingConfig setupEncodingConfig(int jpegQuality, int pngCompressionLevel) {
+        return new EncodingConfig(jpegQuality, false, ChromaSubsampling.DEFAULT, pngCompressionLevel);
+    }
+    
+    @Test
+    public void testGenerateTemplate_EncodingAndAnimationConfig() {
+        TemplateFactoryService factory = new TemplateFactoryService(templateAccess);
+        TemplateEntity template = factory.generateTemplate(imagePlant, TEMPLATE_NAME, 
+                setupResizingConfig(setupEncodingConfig(1, 9), new AnimationConfig(false, 1, 10)));
+        
+        assertTrue(null!=template);
+        template = factory.generateTemplate(imagePlant, TEMPLATE_NAME, 
+                setupResizingConfig(
+                        setupEncodingConfig(EncodingConfig.DEFAULT_JPEG_QUALITY, EncodingConfig.DEFAULT_PNG_COMPRESSION_LEVEL), 
+                        new AnimationConfig(true, AnimationConfig.UNLIMITED_FRAMES, AnimationConfig.UNLIMITED_DURATION)));
+        assertTrue(null!=template);
+    }
+    
+    @Test
+    public void testGenerateTemplate_JpegQualityTooLow() {
+        expectedException.expect(IllegalEncodingConfigException.class);
+        TemplateFactoryService factory = new TemplateFactoryService(templateAccess);
+        factory.generateTemplate(imagePlant, TEMPLATE_NAME, 
+                setupResizingConfig(setupEncodingConfig(0, EncodingConfig.DEFAULT_PNG_COMPRESSION_LEVEL), null));
+    }
+    
+    @Test
+    public void testGenerateTemplate_JpegQualityTooHigh() {
+        expectedException.expect(IllegalEncodingConfigException.class);
+        TemplateFactoryService factory = new TemplateFactoryService(templateAccess);
+        factory.generateTemplate(imagePlant, TEMPLATE_NAME, 
+                setupResizingConfig(setupEncodingConfig(101, EncodingConfig.DEFAULT_PNG_COMPRESSION_LEVEL), null));
+    }
+    
+    /**
+     * -1 stands for the encoder's default level, so -2 is the lowest rejected level.
+     */
+    @Test
+    public void testGenerateTemplate_PngCompressionLevelTooLow() {
+        expectedException.expect(IllegalEncodingConfigException.class);
+        TemplateFactoryService factory = new TemplateFactoryService(templateAccess);
+        factory.generateTemplate(imagePlant, TEMPLATE_NAME, 
+                setupResizingConfig(setupEncodingConfig(EncodingConfig.DEFAULT_JPEG_QUALITY, -2), null));
+    }
+    
+    @Test
+    public void testGenerateTemplate_PngCompressionLevelTooHigh() {
+        expectedException.expect(IllegalEncodingConfigException.class);
+        TemplateFactoryService factory = new TemplateFactoryService(templateAccess);
+        factory.generateTemplate(imagePlant, TEMPLATE_NAME, 
+                setupResizingConfig(setupEncodingConfig(EncodingConfig.DEFAULT_JPEG_QUALITY, 10), null));
+    }
+    
+    @Test
+    public void testGenerateTemplate_NoFrames() {
+        expectedException.expect(IllegalAnimationConfigException.class);
+        TemplateFactoryService factory = new TemplateFactoryService(templateAccess);
+        factory.generateTemplate(imagePlant, TEMPLATE_NAME, 
+                setupResizingConfig(null, new AnimationConfig(false, 0, AnimationConfig.UNLIMITED_DURATION)));
+    }
+    
+    @Test
+    public void testGenerateTemplate_DurationTooShort() {
+        expectedException.expect(IllegalAnimationConfigException.class);
+        TemplateFactoryService factory = new TemplateFactoryService(templateAccess);
+        factory.generateTemplate(imagePlant, TEMPLATE_NAME, 
+                setupResizingConfig(null, new AnimationConfig(false, AnimationConfig.UNLIMITED_FRAMES, 9)));
+    }
+    
     @Test
     public void testReconstituteTemplate() {
         TemplateFactoryService factory = new TemplateFactoryService(templateAccess);
@@ -0,0 +1,150 @@
+/*******************************************************************************
+ * Copyright 2014 Rui Sun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.images3.data;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.images3.common.ImageDimension;
+import com.images3.common.ImageProbe;
+import com.images3.exceptions.ImageProcessingTimeoutException;
+import com.images3.exceptions.OverMaximumImagePixelsException;
+
+/**
+ * Memory shared by all images being decoded on this node. 
+ * 
+ * Before a job decodes an image, the memory its processor holds at most 
+ * for the way it decodes the image, e.g. frame by frame, subsampled or in 
+ * strips, is reserved here, and released once the job is done. A job 
+ * waits, in arrival order, until enough memory has been released by others, 
+ * so the heap only needs to hold the budget instead of every concurrent decode.
+ */
+public class ImageDecodingBudget {
+    
+    public static final int BYTES_PER_PIXEL = 4;
+    
+    private static final long BYTES_PER_PERMIT = 1024;
+    
+    private final long capacity;
+    private final long maxWaitMillis;
+    private final Semaphore permits;
+    
+    /**
+     * @param capacity bytes of decoded images allowed in memory at the same time.
+     * @param maxWaitMillis how long a job may wait for memory before it is refused.
+     */
+    public ImageDecodingBudget(long capacity, long maxWaitMillis) {
+        checkForCapacity(capacity);
+        checkForMaxWait(maxWaitMillis);
+        this.capacity = capacity;
+        this.maxWaitMillis = maxWaitMillis;
+        this.permits = new Semaphore(toPermits(capacity), true);
+    }
+    
+    private void checkForCapacity(long capacity) {
+        if (capacity < BYTES_PER_PERMIT) {
+            throw new IllegalArgumentException("Capacity must be at least " + BYTES_PER_PERMIT + ", " + capacity);
+        }
+    }
+    
+    private void checkForMaxWait(long maxWaitMillis) {
+        if (maxWaitMillis < 0) {
+            throw new IllegalArgumentException("Maximum wait can't be negative, " + maxWaitMillis);
+        }
+    }
+    
+    private static int toPermits(long bytes) {
+        long count = (bytes + BYTES_PER_PERMIT - 1) / BYTES_PER_PERMIT;
+        return (int) Math.min(count, Integer.MAX_VALUE);
+    }
+    
+    public static long getDecodedPixels(ImageProbe probe) {
+        ImageDimension dimension = probe.getDimension();
+        int frames = Math.max(1, probe.getNumberOfFrames());
+        return (long) dimension.getWidth() * dimension.getHeight() * frames;
+    }
+    
+    public static long getDecodedSize(ImageProbe probe) {
+        return getDecodedPixels(probe) * BYTES_PER_PIXEL;
+    }
+    
+    /**
+     * Waits until the given memory fits into the budget.
+     * 
+     * @return the reservation, which must be released once decoding and 
+     *         resizing are done.
+     */
+    public Reservation reserve(long bytes) {
+        if (bytes > capacity) {
+            throw new OverMaximumImagePixelsException(
+                    capacity / BYTES_PER_PIXEL, bytes / BYTES_PER_PIXEL, 
+                    "The uploaded image is too big to be decoded on this server");
+        }
+        int count = toPermits(bytes);
+        try {
+            if (!permits.tryAcquire(count, maxWaitMillis, TimeUnit.MILLISECONDS)) {
+                throw new ImageProcessingTimeoutException(maxWaitMillis, 
+                        "No memory for decoding the image became available in " + maxWaitMillis + "ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        return new Reservation(count);
+    }
+    
+    public long getCapacity() {
+        return capacity;
+    }
+    
+    public long getAvailable() {
+        return permits.availablePermits() * BYTES_PER_PERMIT;
+    }
+    
+    /**
+     * @return estimated number of jobs waiting for memory.
+     */
+    public int getWaitingJobs() {
+        return permits.getQueueLength();
+    }
+    
+    @Override
+    public String toString() {
+        return "ImageDecodingBudget [capacity=" + capacity + ", available="
+                + getAvailable() + ", waitingJobs=" + getWaitingJobs() + "]";
+    }
+
+    public class Reservation {
+        
+        private int count;
+        
+        private Reservation(int count) {
+            this.count = count;
+        }
+        
+        /**
+         * Returns the reserved memory to the budget. Calling it again does nothing.
+         */
+        public synchronized void release() {
+            if (count > 0) {
+                permits.release(count);
+                count = 0;
+            }
+        }
+        
+    }
+    
+}
@@ -28,10 +28,11 @@ public class ImagePlantOS {
     private String masterTemplateName;
     private long numberOfTemplates;
     private int maximumImageSize; //in bytes.
+    private long maximumImagePixels; //width * height * frames.
     
     public ImagePlantOS(String id, String name, Date creationTime,
             AmazonS3Bucket amazonS3Bucket, String masterTemplateName,
-            long numberOfTemplates, int maximumImageSize) {
+            long numberOfTemplates, int maximumImageSize, long maximumImagePixels) {
         this.id = id;
         this.name = name;
         this.creationTime = creationTime;
@@ -39,6 +40,7 @@ public class ImagePlantOS {
         this.masterTemplateName = masterTemplateName;
         setNumberOfTemplates(numberOfTemplates);
         setMaximumImageSize(maximumImageSize);
+        setMaximumImagePixels(maximumImagePixels);
     }
     
     public String getName() {
@@ -78,6 +80,14 @@ public class ImagePlantOS {
     public void setMaximumImageSize(int maximumImageSize) {
         this.maximumImageSize = maximumImageSize;
     }
+    
+    public long getMaximumImagePixels() {
+        return maximumImagePixels;
+    }
+
+    public void setMaximumImagePixels(long maximumImagePixels) {
+        this.maximumImagePixels = maximumImagePixels;
+    }
 
     @Override
     public String toString() {
@@ -85,7 +95,8 @@ public class ImagePlantOS {
                 + creationTime + ", amazonS3Bucket=" + amazonS3Bucket
                 + ", masterTemplateName=" + masterTemplateName
                 + ", numberOfTemplates=" + numberOfTemplates
-                + ", maximumImageSize=" + maximumImageSize + "]";
+                + ", maximumImageSize=" + maximumImageSize
+                + ", maximumImagePixels=" + maximumImagePixels + "]";
     }
 
     
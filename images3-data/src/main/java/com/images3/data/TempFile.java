@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * Copyright 2014 Rui Sun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.images3.data;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference-counted handle of a file in a {@link TempFileArena}. 
+ * The file is deleted when the last reference is released, or by the 
+ * arena's sweeper once the handle is older than the arena's maximum lease.
+ */
+public class TempFile {
+    
+    private final TempFileArena arena;
+    private final File file;
+    private final boolean isPrimary;
+    private final long reservedBytes;
+    private final long creationTime;
+    private final AtomicInteger references;
+    private final AtomicBoolean isClosed;
+    
+    TempFile(TempFileArena arena, File file, boolean isPrimary, long reservedBytes) {
+        this.arena = arena;
+        this.file = file;
+        this.isPrimary = isPrimary;
+        this.reservedBytes = reservedBytes;
+        this.creationTime = System.currentTimeMillis();
+        this.references = new AtomicInteger(1);
+        this.isClosed = new AtomicBoolean(false);
+    }
+
+    public File getFile() {
+        return file;
+    }
+    
+    /**
+     * @return true if the file is in the arena's primary, size-capped location.
+     */
+    public boolean isPrimary() {
+        return isPrimary;
+    }
+
+    /**
+     * @return bytes reserved in the arena's primary location.
+     */
+    public long getReservedBytes() {
+        return reservedBytes;
+    }
+
+    public long getCreationTime() {
+        return creationTime;
+    }
+    
+    public int getReferences() {
+        return references.get();
+    }
+    
+    /**
+     * Adds a reference, which must be released by its holder.
+     * 
+     * @return this handle.
+     * @throws IllegalStateException if the file has already been released.
+     */
+    public TempFile retain() {
+        while (true) {
+            int count = references.get();
+            if (count <= 0) {
+                throw new IllegalStateException("Temp file already released " + file);
+            }
+            if (references.compareAndSet(count, count + 1)) {
+                return this;
+            }
+        }
+    }
+    
+    /**
+     * Drops a reference and deletes the file when it was the last one. 
+     * Releasing a file that has been moved away is harmless.
+     */
+    public void release() {
+        if (references.decrementAndGet() == 0) {
+            file.delete();
+            close();
+        }
+    }
+    
+    /**
+     * Deletes the file regardless of its references.
+     */
+    void expire() {
+        references.set(0);
+        file.delete();
+        close();
+    }
+    
+    /**
+     * Removes the handle from the arena, once.
+     */
+    void close() {
+        if (isClosed.compareAndSet(false, true)) {
+            arena.remove(this);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TempFile [file=" + file + ", isPrimary=" + isPrimary
+                + ", reservedBytes=" + reservedBytes + ", creationTime=" + creationTime + ", references="
+                + references + "]";
+    }
+    
+}
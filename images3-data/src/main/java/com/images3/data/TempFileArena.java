@@ -0,0 +1,375 @@
+/*******************************************************************************
+ * Copyright 2014 Rui Sun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.images3.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Owns every temporary file of image processing. 
+ * 
+ * Files are kept in an "images3-arena" directory the arena creates inside 
+ * the configured directories, spread over 256 sub-directories named after 
+ * the first two hex digits of their random names. They are created in the 
+ * primary directory, e.g. a tmpfs mount, as long as the bytes reserved by 
+ * its live files stay within its capacity, and in the fallback directory 
+ * otherwise. Every file reserves the size its creator expects, which is 
+ * given back once the file is released. 
+ * 
+ * A background sweeper deletes files whose handles are older than the 
+ * maximum lease, together with files left behind by earlier processes, 
+ * so leaked files can't fill up the volume. Only the arena's own 
+ * directories are swept.
+ */
+public class TempFileArena {
+    
+    private static final String SHARDS = "0123456789abcdef";
+    private static final String ARENA_DIR = "images3-arena";
+    
+    private final File primaryDir;
+    private final long primaryCapacity;
+    private final File fallbackDir;
+    private final long maxLeaseMillis;
+    private final long defaultFileEstimate;
+    private final AtomicLong primaryReserved = new AtomicLong();
+    private final ConcurrentMap<File, TempFile> tempFiles;
+    private final ScheduledExecutorService sweeper;
+    
+    private final AtomicLong createdFiles = new AtomicLong();
+    private final AtomicLong sweptFiles = new AtomicLong();
+    
+    private TempFileArena(Builder builder) {
+        this.fallbackDir = createArenaDir(builder.getFallbackDir());
+        this.primaryDir = createArenaDir(builder.getPrimaryDir());
+        this.primaryCapacity = builder.getPrimaryCapacity();
+        this.maxLeaseMillis = builder.getMaxLeaseMillis();
+        this.defaultFileEstimate = builder.getDefaultFileEstimate();
+        this.tempFiles = new ConcurrentHashMap<File, TempFile>();
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(new SweeperThreadFactory());
+        long interval = builder.getSweepIntervalMillis();
+        sweeper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                sweep();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+    
+    private static File createArenaDir(File dir) {
+        if (null == dir) {
+            return null;
+        }
+        File arenaDir = new File(dir, ARENA_DIR);
+        if (!arenaDir.exists() && !arenaDir.mkdirs() && !arenaDir.isDirectory()) {
+            throw new IllegalArgumentException("Failed to create directory " + arenaDir);
+        }
+        return arenaDir;
+    }
+    
+    /**
+     * Creates an empty file holding one reference for the caller, 
+     * reserving the arena's default estimate of a file's size.
+     */
+    public TempFile createTempFile() throws IOException {
+        return createTempFile(defaultFileEstimate);
+    }
+    
+    /**
+     * Creates an empty file holding one reference for the caller.
+     * 
+     * @param expectedBytes bytes the file is expected to grow to, 
+     *                      or 0 if unknown to reserve the default estimate.
+     */
+    public TempFile createTempFile(long expectedBytes) throws IOException {
+        long reservedBytes = (expectedBytes > 0 ? expectedBytes : defaultFileEstimate);
+        boolean isPrimary = reservePrimary(reservedBytes);
+        try {
+            String name = UUID.randomUUID().toString();
+            File shard = new File(isPrimary ? primaryDir : fallbackDir, name.substring(0, 2));
+            if (!shard.exists() && !shard.mkdirs() && !shard.isDirectory()) {
+                throw new IOException("Failed to create directory " + shard);
+            }
+            File file = new File(shard, name);
+            if (!file.createNewFile()) {
+                throw new IOException("Failed to create file " + file);
+            }
+            TempFile tempFile = new TempFile(this, file, isPrimary, isPrimary ? reservedBytes : 0);
+            tempFiles.put(file, tempFile);
+            createdFiles.incrementAndGet();
+            return tempFile;
+        } catch (IOException e) {
+            if (isPrimary) {
+                primaryReserved.addAndGet(-reservedBytes);
+            }
+            throw e;
+        }
+    }
+    
+    /**
+     * @return true if the bytes were reserved in the primary directory.
+     */
+    private boolean reservePrimary(long bytes) {
+        if (null == primaryDir) {
+            return false;
+        }
+        while (true) {
+            long reserved = primaryReserved.get();
+            if (reserved + bytes > primaryCapacity) {
+                return false;
+            }
+            if (primaryReserved.compareAndSet(reserved, reserved + bytes)) {
+                return true;
+            }
+        }
+    }
+    
+    /**
+     * Forgets a file that was released or expired, giving back its reservation.
+     */
+    void remove(TempFile tempFile) {
+        tempFiles.remove(tempFile.getFile(), tempFile);
+        primaryReserved.addAndGet(-tempFile.getReservedBytes());
+    }
+    
+    /**
+     * @return the handle of the given file, or null if it isn't a live file of this arena.
+     */
+    public TempFile getTempFile(File file) {
+        TempFile tempFile = tempFiles.get(file);
+        if (null == tempFile || tempFile.getReferences() <= 0) {
+            return null;
+        }
+        return tempFile;
+    }
+    
+    /**
+     * Releases a reference of the given file, if it belongs to this arena.
+     */
+    public void release(File file) {
+        TempFile tempFile = getTempFile(file);
+        if (null != tempFile) {
+            tempFile.release();
+        }
+    }
+    
+    /**
+     * @return bytes reserved by live files in the primary directory.
+     */
+    public long getPrimaryUsage() {
+        return primaryReserved.get();
+    }
+    
+    public int getLiveFiles() {
+        return tempFiles.size();
+    }
+    
+    public long getCreatedFiles() {
+        return createdFiles.get();
+    }
+    
+    public long getSweptFiles() {
+        return sweptFiles.get();
+    }
+    
+    /**
+     * Forgets files moved away, expires handles older than the maximum 
+     * lease and deletes stale files no handle knows about. Released files 
+     * are forgotten as soon as they are released.
+     */
+    public void sweep() {
+        long expiry = System.currentTimeMillis() - maxLeaseMillis;
+        for (TempFile tempFile: tempFiles.values()) {
+            if (!tempFile.getFile().exists()) {
+                tempFile.close();
+            } else if (tempFile.getCreationTime() < expiry) {
+                tempFile.expire();
+                sweptFiles.incrementAndGet();
+            }
+        }
+        sweepDir(primaryDir, expiry);
+        sweepDir(fallbackDir, expiry);
+    }
+    
+    private void sweepDir(File dir, long expiry) {
+        if (null == dir) {
+            return;
+        }
+        for (int i = 0; i < SHARDS.length(); i++) {
+            for (int j = 0; j < SHARDS.length(); j++) {
+                File shard = new File(dir, "" + SHARDS.charAt(i) + SHARDS.charAt(j));
+                File[] files = shard.listFiles();
+                if (null == files) {
+                    continue;
+                }
+                for (File file: files) {
+                    if (!tempFiles.containsKey(file) 
+                            && file.lastModified() < expiry
+                            && file.delete()) {
+                        sweptFiles.incrementAndGet();
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Stops the sweeper. Files are left as they are.
+     */
+    public void shutdown() {
+        sweeper.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return "TempFileArena [primaryDir=" + primaryDir + ", primaryCapacity="
+                + primaryCapacity + ", fallbackDir=" + fallbackDir
+                + ", liveFiles=" + getLiveFiles() + ", createdFiles=" 
+                + createdFiles + ", sweptFiles=" + sweptFiles + "]";
+    }
+    
+    private static class SweeperThreadFactory implements ThreadFactory {
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "images3-tempfile-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        }
+        
+    }
+    
+    public static class Builder {
+        
+        private String fallbackDir;
+        private String primaryDir;
+        private long primaryCapacity;
+        private long maxLeaseMillis = TimeUnit.HOURS.toMillis(1);
+        private long sweepIntervalMillis = TimeUnit.MINUTES.toMillis(1);
+        private long defaultFileEstimate = 1024 * 1024;
+        
+        public Builder() {
+            
+        }
+        
+        /**
+         * @param fallbackDir directory used when there is no primary directory or it is full.
+         */
+        public Builder setFallbackDir(String fallbackDir) {
+            this.fallbackDir = fallbackDir;
+            return this;
+        }
+        
+        /**
+         * Optional. 
+         * 
+         * @param primaryDir preferred directory, usually on tmpfs.
+         * @param primaryCapacity bytes of live files the primary directory may hold.
+         */
+        public Builder setPrimaryDir(String primaryDir, long primaryCapacity) {
+            this.primaryDir = primaryDir;
+            this.primaryCapacity = primaryCapacity;
+            return this;
+        }
+        
+        /**
+         * @param maxLeaseMillis age after which files are deleted even if still referenced.
+         */
+        public Builder setMaxLeaseMillis(long maxLeaseMillis) {
+            this.maxLeaseMillis = maxLeaseMillis;
+            return this;
+        }
+        
+        public Builder setSweepIntervalMillis(long sweepIntervalMillis) {
+            this.sweepIntervalMillis = sweepIntervalMillis;
+            return this;
+        }
+        
+        /**
+         * @param defaultFileEstimate bytes reserved for a file whose size isn't known up front.
+         */
+        public Builder setDefaultFileEstimate(long defaultFileEstimate) {
+            this.defaultFileEstimate = defaultFileEstimate;
+            return this;
+        }
+        
+        protected File getFallbackDir() {
+            if (null == fallbackDir) {
+                throw new NullPointerException("FallbackDir");
+            }
+            return checkForDirExistence(fallbackDir);
+        }
+        
+        protected File getPrimaryDir() {
+            if (null == primaryDir) {
+                return null;
+            }
+            return checkForDirExistence(primaryDir);
+        }
+        
+        protected long getPrimaryCapacity() {
+            if (null != primaryDir && primaryCapacity < 1) {
+                throw new IllegalArgumentException(
+                        "Primary capacity must be at least 1, " + primaryCapacity);
+            }
+            return primaryCapacity;
+        }
+        
+        protected long getMaxLeaseMillis() {
+            if (maxLeaseMillis < 1) {
+                throw new IllegalArgumentException("Maximum lease must be at least 1, " + maxLeaseMillis);
+            }
+            return maxLeaseMillis;
+        }
+        
+        protected long getSweepIntervalMillis() {
+            if (sweepIntervalMillis < 1) {
+                throw new IllegalArgumentException(
+                        "Sweep interval must be at least 1, " + sweepIntervalMillis);
+            }
+            return sweepIntervalMillis;
+        }
+        
+        protected long getDefaultFileEstimate() {
+            if (defaultFileEstimate < 0) {
+                throw new IllegalArgumentException(
+                        "Default file estimate must be at least 0, " + defaultFileEstimate);
+            }
+            return defaultFileEstimate;
+        }
+        
+        private File checkForDirExistence(String path) {
+            File folder = new File(path);
+            if (!folder.exists() 
+                    || !folder.isDirectory()) {
+                throw new IllegalArgumentException("Directory doesn't exists " + path);
+            }
+            return folder;
+        }
+        
+        public TempFileArena build() {
+            return new TempFileArena(this);
+        }
+    }
+    
+}
@@ -16,8 +16,14 @@
 package com.images3.data.spi;
 
 import java.io.File;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
 
+import com.images3.common.EncodedImage;
 import com.images3.common.ImageMetadata;
+import com.images3.common.ImagePlaceholder;
+import com.images3.common.ImageProbe;
 import com.images3.common.ResizingConfig;
 
 public interface ImageProcessor {
@@ -25,6 +31,74 @@ public interface ImageProcessor {
     public boolean isSupportedFormat(File imageFile);
     
     public ImageMetadata readImageMetadata(File imageFile);
+    
+    /**
+     * Reads format, dimensions, frame count, alpha and color type 
+     * of the image in one pass.
+     * 
+     * @return the probe, or null if the image format isn't supported.
+     */
+    public ImageProbe probeImage(File imageFile);
 
     public File resizeImage(ImageMetadata metadata, File imageFile, ResizingConfig resizingConfig);
+    
+    /**
+     * Same as {@link #resizeImage(ImageMetadata, File, ResizingConfig)}, for 
+     * the master version of an upload, which the uploader waits for. A large 
+     * image may be spread over processing capacity that is idle otherwise.
+     */
+    public File resizeMasterImage(ImageMetadata metadata, File imageFile, ResizingConfig resizingConfig);
+    
+    /**
+     * Decodes the image once and resizes it to every given config.
+     * 
+     * @return resized image files, in the same order as the given configs.
+     */
+    public List<File> resizeImages(ImageMetadata metadata, File imageFile, List<ResizingConfig> resizingConfigs);
+    
+    /**
+     * Deletes a resized image file returned by this processor that isn't 
+     * needed anymore, and frees whatever the processor reserved for it.
+     * 
+     * @param metadata metadata of the image it was resized from.
+     */
+    public void discardImage(ImageMetadata metadata, File imageFile);
+    
+    /**
+     * Creates a compact placeholder of the image, e.g. for list pages.
+     * 
+     * @return the placeholder, or null if the image can't be decoded.
+     */
+    public ImagePlaceholder createPlaceholder(ImageMetadata metadata, File imageFile);
+    
+    /**
+     * Estimates the memory held at most while resizing the image to the 
+     * given configs, for the way the processor would decode it, e.g. frame 
+     * by frame, subsampled or in strips.
+     * 
+     * @return the estimate in bytes.
+     */
+    public long getPeakDecodingMemory(ImageMetadata metadata, List<ResizingConfig> resizingConfigs);
+    
+    /**
+     * Probes the remaining bytes of the given buffer without changing its position.
+     * 
+     * @return the probe, or null if the image format isn't supported.
+     */
+    public ImageProbe probeImage(ByteBuffer imageContent);
+    
+    /**
+     * Resizes an image held in memory. Temporary files are only used 
+     * when the image is bigger than the processor's in-memory threshold.
+     * 
+     * @param imageContent remaining bytes of the buffer are the encoded image; 
+     *                     its position is left unchanged.
+     */
+    public EncodedImage resizeImage(ImageMetadata metadata, ByteBuffer imageContent, ResizingConfig resizingConfig);
+    
+    /**
+     * Same as {@link #resizeImage(ImageMetadata, ByteBuffer, ResizingConfig)}, 
+     * reading the encoded image from the given stream. The stream isn't closed.
+     */
+    public EncodedImage resizeImage(ImageMetadata metadata, InputStream imageContent, ResizingConfig resizingConfig);
 }
@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * Copyright 2014 Rui Sun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.images3.data;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import com.images3.common.ImageColorType;
+import com.images3.common.ImageDimension;
+import com.images3.common.ImageFormat;
+import com.images3.common.ImageMetadata;
+import com.images3.common.ImageProbe;
+import com.images3.exceptions.ImageProcessingTimeoutException;
+import com.images3.exceptions.OverMaximumImagePixelsException;
+
+public class ImageDecodingBudgetTest {
+    
+    private static final long CAPACITY = 1024 * 1024 * 4;
+    
+    private ImageDecodingBudget budget;
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+    
+    @Before
+    public void setup() {
+        budget = new ImageDecodingBudget(CAPACITY, 0);
+    }
+    
+    private ImageProbe setupImageProbe(int width, int height, int numberOfFrames) {
+        ImageMetadata metadata = new ImageMetadata(
+                new ImageDimension(width, height), ImageFormat.GIF, 1024);
+        return new ImageProbe(metadata, numberOfFrames, false, ImageColorType.INDEXED);
+    }
+    
+    @Test
+    public void testDecodedSize() {
+        ImageProbe probe = setupImageProbe(100, 50, 3);
+        assertEquals(100 * 50 * 3, ImageDecodingBudget.getDecodedPixels(probe));
+        assertEquals(100 * 50 * 3 * 4, ImageDecodingBudget.getDecodedSize(probe));
+    }
+    
+    @Test
+    public void testReserveAndRelease() {
+        ImageDecodingBudget.Reservation reservation = budget.reserve(CAPACITY / 2);
+        assertEquals(CAPACITY / 2, budget.getAvailable());
+        reservation.release();
+        reservation.release();
+        assertEquals(CAPACITY, budget.getAvailable());
+    }
+    
+    @Test
+    public void testReserveWholeCapacity() {
+        budget.reserve(CAPACITY);
+        assertEquals(0, budget.getAvailable());
+    }
+    
+    @Test
+    public void testReserveOverCapacity() {
+        expectedException.expect(OverMaximumImagePixelsException.class);
+        budget.reserve(CAPACITY + 1);
+    }
+    
+    @Test
+    public void testReserveWithoutAvailableBudget() {
+        budget.reserve(CAPACITY * 3 / 4);
+        expectedException.expect(ImageProcessingTimeoutException.class);
+        budget.reserve(CAPACITY / 2);
+    }
+    
+}
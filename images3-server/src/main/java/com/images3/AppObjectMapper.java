@@ -35,7 +35,8 @@ public class AppObjectMapper {
                 mapToResponse(source.getMasterTemplate()),
                 source.countTemplates(),
                 source.generateImageReporter().calculate(ImageMetricsType.COUNTS_INBOUND),
-                source.getMaximumImageSize());
+                source.getMaximumImageSize(),
+                source.getMaximumImagePixels());
     }
     
     public TemplateResponse mapToResponse(Template source) {
@@ -71,6 +71,7 @@ public class ImageS3Server implements ImageS3 {
     public ImagePlantResponse addImagePlant(ImagePlantAddRequest request) {
         ImagePlant imagePlant = imagePlantFactory.generateImagePlant(
                 request.getName(), request.getBucket(), request.getResizingConfig(), request.getMaximumImageSize());
+        imagePlant.updateMaximumImagePixels(request.getMaximumImagePixels());
         imagePlant = imagePlantRepository.storeImagePlant(imagePlant);
         return objectMapper.mapToResponse(imagePlant);
     }
@@ -82,6 +83,7 @@ public class ImageS3Server implements ImageS3 {
         AmazonS3Bucket bucket = mergeAmazonS3Buckets(imagePlant.getAmazonS3Bucket(), request.getBucket());
         imagePlant.setAmazonS3Bucket(bucket);
         imagePlant.updateMaximumImageSize(request.getMaximumImageSize());
+        imagePlant.updateMaximumImagePixels(request.getMaximumImagePixels());
         imagePlant = imagePlantRepository.storeImagePlant(imagePlant);
         return objectMapper.mapToResponse(imagePlant);
     }
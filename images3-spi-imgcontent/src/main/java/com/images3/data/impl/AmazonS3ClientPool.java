@@ -15,36 +15,343 @@
  *******************************************************************************/
 package com.images3.data.impl;
 
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
 import com.images3.common.AmazonS3Bucket;
 
+/**
+ * Shares one AmazonS3Client, and with it one HTTP connection pool, 
+ * between all buckets with the same credentials. 
+ * 
+ * A client is created once, by the first caller needing it, while concurrent 
+ * callers wait for it. Clients that had no request in flight for longer 
+ * than the maximum idle time are shut down and dropped. Callers get a 
+ * handle that counts the requests in flight and always calls a live client, 
+ * so a handle stays usable after its client was dropped. There is one 
+ * handle per credentials, which is dropped along with its idle client. 
+ * 
+ * A request returning an S3Object stays in flight until the object's 
+ * content is closed, so its client isn't shut down while it's read.
+ */
 public class AmazonS3ClientPool {
-
-    private static Map<String, AmazonS3> pool = new HashMap<String, AmazonS3>(); //<accessKey_secretKey, AmazonS3>
     
-    public AmazonS3ClientPool() {}
+    private static final long DEFAULT_MAX_IDLE_MILLIS = 30 * 60 * 1000;
+    
+    private final ClientConfiguration clientConfiguration;
+    private final long maxIdleMillis;
+    private final ConcurrentMap<String, PooledClient> pool; //<accessKey_secretKey, PooledClient>
+    private final ConcurrentMap<String, AmazonS3> handles; //<accessKey_secretKey, AmazonS3>
+    private final AtomicLong lastEviction;
+    private final AtomicLong createdClients = new AtomicLong();
+    private final AtomicLong evictedClients = new AtomicLong();
+    
+    public AmazonS3ClientPool() {
+        this(new ClientConfiguration(), DEFAULT_MAX_IDLE_MILLIS);
+    }
+    
+    /**
+     * @param clientConfiguration connection settings of every client.
+     * @param maxIdleMillis time a client is kept without any request.
+     */
+    public AmazonS3ClientPool(ClientConfiguration clientConfiguration, long maxIdleMillis) {
+        if (maxIdleMillis < 1) {
+            throw new IllegalArgumentException("Maximum idle time must be at least 1, " + maxIdleMillis);
+        }
+        this.clientConfiguration = clientConfiguration;
+        this.maxIdleMillis = maxIdleMillis;
+        this.pool = new ConcurrentHashMap<String, PooledClient>();
+        this.handles = new ConcurrentHashMap<String, AmazonS3>();
+        this.lastEviction = new AtomicLong(System.currentTimeMillis());
+    }
     
     private String generateKey(String accessKey, String secretKey) {
         return (accessKey+"_"+secretKey);
     }
     
     public AmazonS3 getClient(AmazonS3Bucket bucket) {
+        evictIdleClients();
         String key = generateKey(bucket.getAccessKey(), bucket.getSecretKey());
-        AmazonS3 client = pool.get(key);
-        if (null == client) {
-            client =createAmazonS3Client(bucket.getAccessKey(), bucket.getSecretKey());
-            pool.put(key, client);
+        AmazonS3 handle = handles.get(key);
+        if (null == handle) {
+            AmazonS3 newHandle = (AmazonS3) Proxy.newProxyInstance(
+                    AmazonS3.class.getClassLoader(), 
+                    new Class<?>[] {AmazonS3.class}, 
+                    new ClientHandle(bucket.getAccessKey(), bucket.getSecretKey()));
+            handle = handles.putIfAbsent(key, newHandle);
+            if (null == handle) {
+                handle = newHandle;
+            }
+        }
+        return handle;
+    }
+    
+    private PooledClient acquire(String accessKey, String secretKey) {
+        String key = generateKey(accessKey, secretKey);
+        while (true) {
+            PooledClient client = pool.get(key);
+            if (null == client) {
+                PooledClient newClient = new PooledClient(accessKey, secretKey);
+                client = pool.putIfAbsent(key, newClient);
+                if (null == client) {
+                    client = newClient;
+                }
+            }
+            if (client.acquire()) {
+                return client;
+            }
+            pool.remove(key, client);
+        }
+    }
+    
+    /**
+     * Runs at most once per quarter of the maximum idle time, 
+     * on the thread that happens to ask for a client. Handles without 
+     * a client are dropped too; callers still holding one can go on 
+     * using it.
+     */
+    private void evictIdleClients() {
+        long now = System.currentTimeMillis();
+        long last = lastEviction.get();
+        if (now - last < maxIdleMillis / 4 || !lastEviction.compareAndSet(last, now)) {
+            return;
+        }
+        for (Map.Entry<String, PooledClient> entry: pool.entrySet()) {
+            PooledClient client = entry.getValue();
+            if (client.evict(now)) {
+                pool.remove(entry.getKey(), client);
+                client.shutdown();
+                evictedClients.incrementAndGet();
+            }
+        }
+        for (String key: handles.keySet()) {
+            if (!pool.containsKey(key)) {
+                handles.remove(key);
+            }
+        }
+    }
+    
+    /**
+     * Shuts down all clients. Handles still in use get new clients.
+     */
+    public void shutdown() {
+        for (Map.Entry<String, PooledClient> entry: pool.entrySet()) {
+            PooledClient client = entry.getValue();
+            if (client.evict(Long.MAX_VALUE)) {
+                pool.remove(entry.getKey(), client);
+                client.shutdown();
+            }
+        }
+    }
+    
+    public int getClients() {
+        return pool.size();
+    }
+    
+    public long getCreatedClients() {
+        return createdClients.get();
+    }
+    
+    public long getEvictedClients() {
+        return evictedClients.get();
+    }
+    
+    /**
+     * @return requests in flight per access key.
+     */
+    public Map<String, Integer> getInFlightRequests() {
+        Map<String, Integer> requests = new HashMap<String, Integer>();
+        for (PooledClient client: pool.values()) {
+            requests.put(client.accessKey, Math.max(0, client.inFlightRequests.get()));
+        }
+        return requests;
+    }
+    
+    public int getInFlightRequests(AmazonS3Bucket bucket) {
+        PooledClient client = pool.get(generateKey(bucket.getAccessKey(), bucket.getSecretKey()));
+        return (null == client ? 0 : Math.max(0, client.inFlightRequests.get()));
+    }
+
+    @Override
+    public String toString() {
+        return "AmazonS3ClientPool [clients=" + pool.size() 
+                + ", createdClients=" + createdClients
+                + ", evictedClients=" + evictedClients 
+                + ", inFlightRequests=" + getInFlightRequests() + "]";
+    }
+    
+    private class PooledClient {
+        
+        private final String accessKey;
+        private final FutureTask<AmazonS3Client> client;
+        private final AtomicInteger inFlightRequests; //'-1' once evicted.
+        private volatile long lastUsed;
+        
+        public PooledClient(final String accessKey, final String secretKey) {
+            this.accessKey = accessKey;
+            this.client = new FutureTask<AmazonS3Client>(new Callable<AmazonS3Client>() {
+                @Override
+                public AmazonS3Client call() throws Exception {
+                    createdClients.incrementAndGet();
+                    return new AmazonS3Client(
+                            new BasicAWSCredentials(accessKey, secretKey), clientConfiguration);
+                }
+            });
+            this.inFlightRequests = new AtomicInteger();
+            this.lastUsed = System.currentTimeMillis();
+        }
+        
+        /**
+         * Creates the client on the first call; concurrent callers 
+         * wait for it instead of creating their own.
+         */
+        public AmazonS3Client getClient() {
+            client.run();
+            try {
+                return client.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        
+        /**
+         * @return false if the client was evicted.
+         */
+        public boolean acquire() {
+            while (true) {
+                int count = inFlightRequests.get();
+                if (count < 0) {
+                    return false;
+                }
+                if (inFlightRequests.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+        
+        public void release() {
+            lastUsed = System.currentTimeMillis();
+            inFlightRequests.decrementAndGet();
+        }
+        
+        /**
+         * @return true if the client was idle for too long, which 
+         *         then can't be acquired anymore.
+         */
+        public boolean evict(long now) {
+            return now - lastUsed > maxIdleMillis
+                    && inFlightRequests.compareAndSet(0, -1);
+        }
+        
+        public void shutdown() {
+            if (client.isDone()) {
+                getClient().shutdown();
+            }
+        }
+    }
+    
+    private class ClientHandle implements InvocationHandler {
+        
+        private final String accessKey;
+        private final String secretKey;
+        
+        public ClientHandle(String accessKey, String secretKey) {
+            this.accessKey = accessKey;
+            this.secretKey = secretKey;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                if (method.getName().equals("equals")) {
+                    return proxy == args[0];
+                }
+                if (method.getName().equals("hashCode")) {
+                    return System.identityHashCode(proxy);
+                }
+                return method.invoke(this, args);
+            }
+            PooledClient client = acquire(accessKey, secretKey);
+            try {
+                Object result = method.invoke(client.getClient(), args);
+                if (result instanceof S3Object 
+                        && null != ((S3Object) result).getObjectContent()) {
+                    S3Object object = (S3Object) result;
+                    object.setObjectContent(
+                            new ReleasingObjectInputStream(object.getObjectContent(), client));
+                    client = null; //Released once the content is closed.
+                }
+                return result;
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            } finally {
+                if (null != client) {
+                    client.release();
+                }
+            }
         }
-        return client;
     }
     
-    private AmazonS3 createAmazonS3Client(String accessKey, String secretKey) {
-        return new AmazonS3Client(new BasicAWSCredentials(accessKey, secretKey));
+    /**
+     * Releases the client when the content is closed or aborted, 
+     * whichever comes first.
+     */
+    private static class ReleasingObjectInputStream extends S3ObjectInputStream {
+        
+        private final PooledClient client;
+        private final AtomicBoolean isReleased;
+        
+        public ReleasingObjectInputStream(S3ObjectInputStream content, PooledClient client) {
+            super(content, content.getHttpRequest());
+            this.client = client;
+            this.isReleased = new AtomicBoolean(false);
+        }
+        
+        @Override
+        public void abort() {
+            try {
+                super.abort();
+            } finally {
+                release();
+            }
+        }
+        
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                release();
+            }
+        }
+        
+        private void release() {
+            if (isReleased.compareAndSet(false, true)) {
+                client.release();
+            }
+        }
     }
     
 }
@@ -16,8 +16,19 @@
 package com.images3.data.impl;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.s3.AmazonS3;
@@ -36,21 +47,38 @@ import com.images3.exceptions.NoSuchEntityFoundException;
 
 public class ImageContentAccessImplS3 implements ImageContentAccess {
     
-    private String imageContentDownloadDir;
+    private ImageContentDiskCache cache;
     private AmazonS3ClientPool clients;
+    private ParallelTransfer transfer;
+    private final ConcurrentMap<String, FutureTask<File>> downloads; //<imagePlantId/imageId, download>
+    private final AtomicLong coalescedDownloads = new AtomicLong();
     
     public ImageContentAccessImplS3(String imageContentDownloadDir, AmazonS3ClientPool clients) {
-        checkForDirExistence(imageContentDownloadDir);
-        this.imageContentDownloadDir = imageContentDownloadDir;
+        this(imageContentDownloadDir, clients, null);
+    }
+    
+    /**
+     * @param transfer transfers large content in parts, 
+     *                 or null to transfer all content in a single request.
+     */
+    public ImageContentAccessImplS3(String imageContentDownloadDir, AmazonS3ClientPool clients, 
+            ParallelTransfer transfer) {
+        this(createUnboundedCache(imageContentDownloadDir), clients, transfer);
+    }
+    
+    /**
+     * @param cache keeps downloaded and inserted content on local disk.
+     */
+    public ImageContentAccessImplS3(ImageContentDiskCache cache, AmazonS3ClientPool clients, 
+            ParallelTransfer transfer) {
+        this.cache = cache;
         this.clients = clients;
+        this.transfer = transfer;
+        this.downloads = new ConcurrentHashMap<String, FutureTask<File>>();
     }
     
-    private void checkForDirExistence(String path) {
-        File folder = new File(path);
-        if (!folder.exists() 
-                || !folder.isDirectory()) {
-            throw new IllegalArgumentException("Directory doesn't exists " + path);
-        }
+    private static ImageContentDiskCache createUnboundedCache(String imageContentDownloadDir) {
+        return new ImageContentDiskCache(imageContentDownloadDir, Long.MAX_VALUE);
     }
 
     @Override
@@ -67,21 +95,77 @@ public class ImageContentAccessImplS3 implements ImageContentAccess {
     @Override
     public File insertImageContent(ImageIdentity id, AmazonS3Bucket bucket,
             File content) {
-        File imageFile = new File(generateFilePath(id));
-        content.renameTo(imageFile);
+        File imageFile = storeImageContent(id, content);
+        uploadImageContent(id, bucket, imageFile);
+        return imageFile;
+    }
+    
+    /**
+     * Moves the content into the download directory, without uploading it.
+     */
+    File storeImageContent(ImageIdentity id, File content) {
+        File imageFile = cache.prepareFile(id);
+        moveImageContent(content, imageFile);
+        cache.put(id);
+        return imageFile;
+    }
+    
+    File getImageContentFile(ImageIdentity id) {
+        return cache.getFile(id);
+    }
+    
+    /**
+     * Keeps the content on local disk until it's unpinned.
+     */
+    void pinImageContent(ImageIdentity id) {
+        cache.pin(id);
+    }
+    
+    void unpinImageContent(ImageIdentity id) {
+        cache.unpin(id);
+    }
+    
+    public ImageContentDiskCache getImageContentDiskCache() {
+        return cache;
+    }
+    
+    void uploadImageContent(ImageIdentity id, AmazonS3Bucket bucket, File imageFile) {
         AmazonS3 client = clients.getClient(bucket);
+        if (null != transfer) {
+            transfer.upload(client, bucket.getName(), generateS3ObjectKey(id), imageFile);
+            return;
+        }
         client.putObject(
                 new PutObjectRequest(
                         bucket.getName(), 
                         generateS3ObjectKey(id), 
                         imageFile));
-        return imageFile;
+    }
+
+    /**
+     * Moves the content atomically, or copies it when source and target 
+     * are on different file systems, e.g. a tmpfs temp directory.
+     */
+    private void moveImageContent(File content, File imageFile) {
+        try {
+            try {
+                Files.move(content.toPath(), imageFile.toPath(), 
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.copy(content.toPath(), imageFile.toPath(), 
+                        StandardCopyOption.REPLACE_EXISTING);
+                Files.delete(content.toPath());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     @Override
     public void deleteImageContent(ImageIdentity id, AmazonS3Bucket bucket) {
         AmazonS3 client = clients.getClient(bucket);
         client.deleteObject(new DeleteObjectRequest(bucket.getName(), generateS3ObjectKey(id)));
+        cache.remove(id);
     }
 
     @Override
@@ -94,6 +178,7 @@ public class ImageContentAccessImplS3 implements ImageContentAccess {
         } else {
             client.deleteObject(new DeleteObjectRequest(bucket.getName(), imagePlantId));
         }
+        cache.removeImagePlant(imagePlantId);
     }
     
     private void deleteAllImageContent(AmazonS3 client, AmazonS3Bucket bucket, ObjectListing objList) {
@@ -114,17 +199,72 @@ public class ImageContentAccessImplS3 implements ImageContentAccess {
         }
     }
     
+    /**
+     * Concurrent callers missing the same content share a single download, 
+     * which is written to a temporary file and then renamed, so the content 
+     * never appears partly written.
+     */
     @Override
-    public File selectImageContent(ImageIdentity id, AmazonS3Bucket bucket) {
-        File imageContent = new File(generateFilePath(id));
-        if (imageContent.exists()) {
-            return imageContent;
+    public File selectImageContent(final ImageIdentity id, final AmazonS3Bucket bucket) {
+        File cachedContent = cache.get(id);
+        if (null != cachedContent) {
+            return cachedContent;
+        }
+        final File imageContent = cache.getFile(id);
+        String key = generateS3ObjectKey(id);
+        FutureTask<File> download = new FutureTask<File>(new Callable<File>() {
+            @Override
+            public File call() throws Exception {
+                if (!imageContent.exists()) {
+                    downloadImageContent(id, bucket, cache.prepareFile(id));
+                }
+                cache.put(id);
+                return imageContent;
+            }
+        });
+        FutureTask<File> inFlight = downloads.putIfAbsent(key, download);
+        if (null == inFlight) {
+            try {
+                download.run();
+            } finally {
+                downloads.remove(key, download);
+            }
+            inFlight = download;
+        } else {
+            coalescedDownloads.incrementAndGet();
         }
+        try {
+            return inFlight.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+    
+    private void downloadImageContent(ImageIdentity id, AmazonS3Bucket bucket, File imageContent) {
         AmazonS3 client = clients.getClient(bucket);
         try {
-            client.getObject(
-                    new GetObjectRequest(bucket.getName(), generateS3ObjectKey(id)),
-                    imageContent);
+            if (null != transfer) {
+                transfer.download(client, bucket.getName(), generateS3ObjectKey(id), imageContent);
+            } else {
+                File partFile = new File(imageContent.getPath() + "." + UUID.randomUUID() + ".part");
+                try {
+                    client.getObject(
+                            new GetObjectRequest(bucket.getName(), generateS3ObjectKey(id)),
+                            partFile);
+                    Files.move(partFile.toPath(), imageContent.toPath(), 
+                            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    partFile.delete();
+                }
+            }
         } catch (AmazonS3Exception e) {
             if (e.getStatusCode() == 404) {
                 throw new NoSuchEntityFoundException(
@@ -132,16 +272,17 @@ public class ImageContentAccessImplS3 implements ImageContentAccess {
             }
             throw new RuntimeException(e);
         }
-        return imageContent;
     }
     
-    private String generateFilePath(ImageIdentity id) {
-       String path = imageContentDownloadDir + File.separator + id.getImagePlantId();
-       File folder = new File(path);
-       if (!folder.exists()) {
-           folder.mkdir();
-       }
-       return path + File.separator + id.getImageId();
+    public int getInFlightDownloads() {
+        return downloads.size();
+    }
+    
+    /**
+     * @return number of callers that waited for another caller's download.
+     */
+    public long getCoalescedDownloads() {
+        return coalescedDownloads.get();
     }
     
     private String generateS3ObjectKey(ImageIdentity id) {
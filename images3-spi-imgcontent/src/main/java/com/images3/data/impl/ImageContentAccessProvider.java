@@ -20,14 +20,42 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.amazonaws.ClientConfiguration;
 import com.images3.data.spi.ImageContentAccess;
+import com.images3.data.spi.ImagePlantAccess;
 
-
+/**
+ * Creates the image content access from the configuration. 
+ * 
+ * Connections to S3 are set per deployment by "imagecontent.s3.max.connections", 
+ * "imagecontent.s3.connection.timeout.ms", "imagecontent.s3.socket.timeout.ms", 
+ * "imagecontent.s3.max.error.retry" and "imagecontent.s3.tcp.keepalive". 
+ * Clients unused for "imagecontent.s3.client.idle.ms" are dropped.
+ * 
+ * Content of at least "imagecontent.s3.multipart.threshold.mb" is uploaded 
+ * in parts of "imagecontent.s3.part.size.mb", and content larger than a part 
+ * is downloaded in ranges; "imagecontent.s3.transfer.concurrency" parts are 
+ * transferred at a time, or all content takes a single request if it's 0.
+ * 
+ * Content downloaded to "imagecontent.download.dir" is kept up to 
+ * "imagecontent.download.dir.max.mb", least recently used content first out.
+ * 
+ * With "imagecontent.writebehind.enabled", content is uploaded to S3 after 
+ * it was stored, by "imagecontent.writebehind.workers" uploaders, with 
+ * the pending uploads journaled in "imagecontent.writebehind.journal". 
+ * Failed uploads are submitted again every "imagecontent.writebehind.retry.interval.ms".
+ */
 public class ImageContentAccessProvider {
     
     private Properties config;
     private AmazonS3ClientPool amazonS3ClientPool;
+    private ParallelTransfer parallelTransfer;
+    private ImageContentAccess imageContentAccess;
         
     public ImageContentAccessProvider(String pathToConfig) {
         this(readConfigProperties(pathToConfig));
@@ -35,7 +63,23 @@ public class ImageContentAccessProvider {
     
     public ImageContentAccessProvider(Properties config) {
         this.config = config;
-        amazonS3ClientPool = new AmazonS3ClientPool();
+        amazonS3ClientPool = new AmazonS3ClientPool(
+                createClientConfiguration(), getIntProperty("imagecontent.s3.client.idle.ms", 30 * 60 * 1000));
+    }
+    
+    private ClientConfiguration createClientConfiguration() {
+        ClientConfiguration clientConfiguration = new ClientConfiguration();
+        clientConfiguration.setMaxConnections(
+                getIntProperty("imagecontent.s3.max.connections", 128));
+        clientConfiguration.setConnectionTimeout(
+                getIntProperty("imagecontent.s3.connection.timeout.ms", clientConfiguration.getConnectionTimeout()));
+        clientConfiguration.setSocketTimeout(
+                getIntProperty("imagecontent.s3.socket.timeout.ms", clientConfiguration.getSocketTimeout()));
+        clientConfiguration.setMaxErrorRetry(
+                getIntProperty("imagecontent.s3.max.error.retry", clientConfiguration.getMaxErrorRetry()));
+        clientConfiguration.setUseTcpKeepAlive(
+                getBooleanProperty("imagecontent.s3.tcp.keepalive", true));
+        return clientConfiguration;
     }
     
     private static Properties readConfigProperties(String pathToConfig) {
@@ -49,8 +93,99 @@ public class ImageContentAccessProvider {
         return config;
     }
 
+    /**
+     * @throws IllegalStateException if write-behind is enabled, 
+     *         which needs {@link #getImageContentAccess(ImagePlantAccess)}.
+     */
     public ImageContentAccess getImageContentAccess() {
-        String dir = config.getProperty("imagecontent.download.dir");
-        return new ImageContentAccessImplS3(dir, amazonS3ClientPool);
+        return getImageContentAccess(null);
+    }
+    
+    /**
+     * @param imagePlantAccess looks up the buckets of the uploads replayed 
+     *                         from the journal; only needed with write-behind.
+     */
+    public synchronized ImageContentAccess getImageContentAccess(ImagePlantAccess imagePlantAccess) {
+        if (null == imageContentAccess) {
+            boolean isWriteBehind = getBooleanProperty("imagecontent.writebehind.enabled", false);
+            if (isWriteBehind && null == imagePlantAccess) {
+                throw new IllegalStateException(
+                        "Write-behind replays uploads with the image plant access, "
+                        + "use getImageContentAccess(ImagePlantAccess)");
+            }
+            String dir = config.getProperty("imagecontent.download.dir");
+            long maxBytes = getIntProperty("imagecontent.download.dir.max.mb", 10240) * 1024L * 1024L;
+            int leaseMillis = getIntProperty("imagecontent.download.dir.lease.ms", 60 * 1000);
+            ImageContentAccessImplS3 s3ContentAccess = new ImageContentAccessImplS3(
+                    new ImageContentDiskCache(dir, maxBytes, leaseMillis), amazonS3ClientPool, getParallelTransfer());
+            if (isWriteBehind) {
+                imageContentAccess = createWriteBehindImageContentAccess(
+                        dir, s3ContentAccess, imagePlantAccess);
+            } else {
+                imageContentAccess = s3ContentAccess;
+            }
+        }
+        return imageContentAccess;
+    }
+    
+    /**
+     * @return the parallel transfer of large content, or null if disabled.
+     */
+    public synchronized ParallelTransfer getParallelTransfer() {
+        int concurrency = getIntProperty("imagecontent.s3.transfer.concurrency", 4);
+        if (null == parallelTransfer && concurrency > 0) {
+            long partSize = getIntProperty("imagecontent.s3.part.size.mb", 8) * 1024L * 1024L;
+            long threshold = getIntProperty("imagecontent.s3.multipart.threshold.mb", 16) * 1024L * 1024L;
+            ExecutorService executor = Executors.newFixedThreadPool(concurrency, new ThreadFactory() {
+                private final AtomicInteger threadNumber = new AtomicInteger(1);
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, 
+                            "images3-transfer-" + threadNumber.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            parallelTransfer = new ParallelTransfer(executor, partSize, threshold);
+        }
+        return parallelTransfer;
+    }
+    
+    private ImageContentAccess createWriteBehindImageContentAccess(String dir, 
+            ImageContentAccessImplS3 s3ContentAccess, ImagePlantAccess imagePlantAccess) {
+        String journalPath = config.getProperty("imagecontent.writebehind.journal");
+        if (null == journalPath || journalPath.trim().length() == 0) {
+            journalPath = dir + File.separator + "upload.journal";
+        }
+        int workers = getIntProperty("imagecontent.writebehind.workers", 4);
+        int queueCapacity = getIntProperty("imagecontent.writebehind.queue.capacity", workers * 16);
+        int maxAttempts = getIntProperty("imagecontent.writebehind.max.attempts", 5);
+        int retryInterval = getIntProperty("imagecontent.writebehind.retry.interval.ms", 60000);
+        return new WriteBehindImageContentAccess(
+                s3ContentAccess, new UploadJournal(new File(journalPath.trim())), imagePlantAccess, 
+                workers, queueCapacity, maxAttempts, retryInterval);
+    }
+    
+    /**
+     * @return the pool of S3 clients, which also reports requests in flight.
+     */
+    public AmazonS3ClientPool getAmazonS3ClientPool() {
+        return amazonS3ClientPool;
+    }
+    
+    private int getIntProperty(String name, int defaultValue) {
+        String value = config.getProperty(name);
+        if (null == value || value.trim().length() == 0) {
+            return defaultValue;
+        }
+        return Integer.valueOf(value.trim());
+    }
+    
+    private boolean getBooleanProperty(String name, boolean defaultValue) {
+        String value = config.getProperty(name);
+        if (null == value || value.trim().length() == 0) {
+            return defaultValue;
+        }
+        return Boolean.valueOf(value.trim());
     }
 }
@@ -0,0 +1,402 @@
+/*******************************************************************************
+ * Copyright 2014 Rui Sun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.images3.data.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.images3.common.ImageIdentity;
+
+/**
+ * Keeps image content on local disk up to a maximum number of bytes, 
+ * evicting the least recently used content first.
+ * 
+ * Content is stored as "&lt;dir&gt;/&lt;imagePlantId&gt;/&lt;xx&gt;/&lt;yy&gt;/&lt;imageId&gt;", 
+ * with "xx" and "yy" taken from a hash of the image id, so no directory 
+ * holds more than a small share of an image plant's images. 
+ * 
+ * The index is kept in memory only, and rebuilt from the directory on 
+ * start, in order of modification time. Content of the former flat layout 
+ * is moved into its shard, and temporary files left by interrupted 
+ * downloads are deleted. 
+ * 
+ * Pinned content, e.g. content not uploaded yet, is never evicted, 
+ * though it counts towards the maximum; it's kept out of the LRU order 
+ * until it's unpinned, so eviction doesn't have to skip it. Content just 
+ * returned by {@link #get(ImageIdentity)} or added by 
+ * {@link #put(ImageIdentity)} is leased for a while, so it isn't evicted 
+ * before the caller opens it. Expired leases are dropped on every lease. 
+ * 
+ * The lock guards the index only; checking and creating files happen 
+ * outside of it.
+ */
+public class ImageContentDiskCache {
+    
+    private static final String PART_FILE_SUFFIX = ".part";
+    private static final long DEFAULT_LEASE_MILLIS = 60 * 1000;
+    
+    private final File dir;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Long> entries; //<imagePlantId/imageId, bytes>, least recently used first
+    private final Set<String> pinned;
+    private final Map<String, Long> pinnedEntries; //<imagePlantId/imageId, bytes>
+    private final long leaseMillis;
+    private final LinkedHashMap<String, Long> leases; //<imagePlantId/imageId, expiry millis>, first to expire first
+    private long bytes;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong evictedBytes = new AtomicLong();
+    
+    public ImageContentDiskCache(String dir, long maxBytes) {
+        this(dir, maxBytes, DEFAULT_LEASE_MILLIS);
+    }
+    
+    /**
+     * @param maxBytes bytes kept before content is evicted.
+     * @param leaseMillis how long content returned to a caller is kept, 
+     *                    at least, for it to be opened.
+     */
+    public ImageContentDiskCache(String dir, long maxBytes, long leaseMillis) {
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("Maximum bytes must be at least 1, " + maxBytes);
+        }
+        if (leaseMillis < 0) {
+            throw new IllegalArgumentException("Lease must be at least 0 millis, " + leaseMillis);
+        }
+        checkForDirExistence(dir);
+        this.dir = new File(dir);
+        this.maxBytes = maxBytes;
+        this.entries = new LinkedHashMap<String, Long>(1024, 0.75f, true);
+        this.pinned = new HashSet<String>();
+        this.pinnedEntries = new HashMap<String, Long>();
+        this.leaseMillis = leaseMillis;
+        this.leases = new LinkedHashMap<String, Long>();
+        rebuildIndex();
+    }
+    
+    private void checkForDirExistence(String path) {
+        File folder = new File(path);
+        if (!folder.exists() 
+                || !folder.isDirectory()) {
+            throw new IllegalArgumentException("Directory doesn't exists " + path);
+        }
+    }
+    
+    private void rebuildIndex() {
+        final List<Path> files = new ArrayList<Path>();
+        final List<Path> flatFiles = new ArrayList<Path>();
+        final Path root = dir.toPath();
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    int depth = root.relativize(file).getNameCount();
+                    if (file.getFileName().toString().endsWith(PART_FILE_SUFFIX)) {
+                        Files.delete(file);
+                    } else if (depth == 2) {
+                        flatFiles.add(file);
+                    } else if (depth == 4) {
+                        files.add(file);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            for (Path file: flatFiles) {
+                files.add(moveToShard(file));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        final Map<Path, Long> modified = new LinkedHashMap<Path, Long>();
+        for (Path file: files) {
+            modified.put(file, file.toFile().lastModified());
+        }
+        Collections.sort(files, new Comparator<Path>() {
+            @Override
+            public int compare(Path file1, Path file2) {
+                return modified.get(file1).compareTo(modified.get(file2));
+            }
+        });
+        for (Path file: files) {
+            String imagePlantId = root.relativize(file).getName(0).toString();
+            String imageId = file.getFileName().toString();
+            long length = file.toFile().length();
+            Long previous = entries.put(generateKey(new ImageIdentity(imagePlantId, imageId)), length);
+            bytes += length - (null == previous ? 0 : previous);
+        }
+    }
+    
+    private Path moveToShard(Path file) throws IOException {
+        String imagePlantId = file.getParent().getFileName().toString();
+        String imageId = file.getFileName().toString();
+        Path target = prepareFile(new ImageIdentity(imagePlantId, imageId)).toPath();
+        return Files.move(file, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+    
+    /**
+     * @return where the content is kept, whether or not it's there.
+     */
+    public File getFile(ImageIdentity id) {
+        return new File(getShard(id), id.getImageId());
+    }
+    
+    /**
+     * @return where to store the content, creating its shard directory.
+     */
+    public File prepareFile(ImageIdentity id) {
+        File shard = getShard(id);
+        if (!shard.exists()) {
+            shard.mkdirs();
+        }
+        return new File(shard, id.getImageId());
+    }
+    
+    private File getShard(ImageIdentity id) {
+        int hash = id.getImageId().hashCode();
+        hash ^= (hash >>> 16);
+        return new File(dir, id.getImagePlantId() 
+                + File.separator + String.format("%02x", (hash >>> 8) & 0xff)
+                + File.separator + String.format("%02x", hash & 0xff));
+    }
+    
+    /**
+     * @return the content, leased so it isn't evicted before it's opened, 
+     *         or null if it isn't cached.
+     */
+    public File get(ImageIdentity id) {
+        String key = generateKey(id);
+        synchronized (this) {
+            if (null == entries.get(key) && !pinnedEntries.containsKey(key)) {
+                misses.incrementAndGet();
+                return null;
+            }
+            lease(key);
+        }
+        File file = getFile(id);
+        if (file.exists()) {
+            hits.incrementAndGet();
+            return file;
+        }
+        synchronized (this) {
+            leases.remove(key);
+            //Only drop the entry if the content wasn't put back meanwhile.
+            if (!file.exists()) {
+                removeEntry(key);
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+    
+    /**
+     * Adds content stored at {@link #prepareFile(ImageIdentity)}, leased 
+     * for the caller, evicting other content when over the maximum.
+     */
+    public void put(ImageIdentity id) {
+        String key = generateKey(id);
+        long length = getFile(id).length();
+        synchronized (this) {
+            Long previous = (pinned.contains(key) ? pinnedEntries : entries).put(key, length);
+            bytes += length - (null == previous ? 0 : previous);
+            lease(key);
+            evict();
+        }
+    }
+    
+    private void removeEntry(String key) {
+        Long length = entries.remove(key);
+        if (null == length) {
+            length = pinnedEntries.remove(key);
+        }
+        if (null != length) {
+            bytes -= length;
+        }
+    }
+    
+    /**
+     * Leases are kept in order of expiry, so the expired ones are 
+     * dropped from the head.
+     */
+    private void lease(String key) {
+        long now = System.currentTimeMillis();
+        Iterator<Long> iterator = leases.values().iterator();
+        while (iterator.hasNext() && iterator.next() <= now) {
+            iterator.remove();
+        }
+        leases.remove(key);
+        leases.put(key, now + leaseMillis);
+    }
+    
+    private boolean isLeased(String key, long now) {
+        Long expiry = leases.get(key);
+        if (null == expiry) {
+            return false;
+        }
+        if (expiry > now) {
+            return true;
+        }
+        leases.remove(key);
+        return false;
+    }
+    
+    /**
+     * Files are deleted while holding the lock, so a concurrent download 
+     * of the same content can't be deleted after it was put back.
+     */
+    private void evict() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            String key = entry.getKey();
+            if (isLeased(key, now)) {
+                continue;
+            }
+            iterator.remove();
+            bytes -= entry.getValue();
+            getFile(parseKey(key)).delete();
+            evictions.incrementAndGet();
+            evictedBytes.addAndGet(entry.getValue());
+        }
+    }
+    
+    public synchronized void remove(ImageIdentity id) {
+        String key = generateKey(id);
+        leases.remove(key);
+        removeEntry(key);
+        getFile(id).delete();
+    }
+    
+    public void removeImagePlant(String imagePlantId) {
+        synchronized (this) {
+            removeImagePlant(imagePlantId, entries);
+            removeImagePlant(imagePlantId, pinnedEntries);
+        }
+        deleteDir(new File(dir, imagePlantId));
+    }
+    
+    private void removeImagePlant(String imagePlantId, Map<String, Long> index) {
+        Iterator<Map.Entry<String, Long>> iterator = index.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            if (parseKey(entry.getKey()).getImagePlantId().equals(imagePlantId)) {
+                iterator.remove();
+                leases.remove(entry.getKey());
+                bytes -= entry.getValue();
+            }
+        }
+    }
+    
+    private void deleteDir(File file) {
+        File[] children = file.listFiles();
+        if (null != children) {
+            for (File child: children) {
+                deleteDir(child);
+            }
+        }
+        file.delete();
+    }
+    
+    public synchronized void pin(ImageIdentity id) {
+        String key = generateKey(id);
+        pinned.add(key);
+        Long length = entries.remove(key);
+        if (null != length) {
+            pinnedEntries.put(key, length);
+        }
+    }
+    
+    /**
+     * The content goes back into the LRU order as the most recently used.
+     */
+    public synchronized void unpin(ImageIdentity id) {
+        String key = generateKey(id);
+        pinned.remove(key);
+        Long length = pinnedEntries.remove(key);
+        if (null != length) {
+            entries.put(key, length);
+        }
+    }
+    
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+    
+    public synchronized long getBytes() {
+        return bytes;
+    }
+    
+    public synchronized int getEntries() {
+        return entries.size() + pinnedEntries.size();
+    }
+    
+    public long getHits() {
+        return hits.get();
+    }
+    
+    public long getMisses() {
+        return misses.get();
+    }
+    
+    public long getEvictions() {
+        return evictions.get();
+    }
+    
+    public long getEvictedBytes() {
+        return evictedBytes.get();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ImageContentDiskCache [maxBytes=" + maxBytes 
+                + ", bytes=" + bytes 
+                + ", entries=" + getEntries()
+                + ", pinned=" + pinned.size() 
+                + ", leased=" + leases.size() 
+                + ", hits=" + hits 
+                + ", misses=" + misses 
+                + ", evictions=" + evictions
+                + ", evictedBytes=" + evictedBytes + "]";
+    }
+    
+    private String generateKey(ImageIdentity id) {
+        return id.getImagePlantId() + "/" + id.getImageId();
+    }
+    
+    private ImageIdentity parseKey(String key) {
+        int slash = key.indexOf('/');
+        return new ImageIdentity(key.substring(0, slash), key.substring(slash + 1));
+    }
+
+}
@@ -0,0 +1,326 @@
+/*******************************************************************************
+ * Copyright 2014 Rui Sun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.images3.data.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+/**
+ * Transfers large objects in parts over several connections. 
+ * 
+ * Files of at least the multipart threshold are uploaded as a multipart 
+ * upload, with the parts uploaded concurrently; smaller files with a single 
+ * put. Downloads start with a ranged get of the first part, which also tells 
+ * the size of the object; the remaining parts are then got concurrently and 
+ * written at their offsets into a temporary file, which replaces the target 
+ * once complete. Objects no larger than a part take a single get. 
+ * 
+ * When a part fails, the parts not started yet are skipped and the running 
+ * ones waited for, before the upload is aborted or the file closed.
+ */
+public class ParallelTransfer {
+    
+    /**
+     * Smallest part S3 accepts, except for the last one.
+     */
+    public static final long MIN_PART_SIZE = 5 * 1024 * 1024;
+    
+    private static final int BUFFER_SIZE = 64 * 1024;
+    
+    private final ExecutorService executor;
+    private final long partSize;
+    private final long multipartThreshold;
+    private final AtomicLong multipartUploads = new AtomicLong();
+    private final AtomicLong parallelDownloads = new AtomicLong();
+    private final AtomicLong transferredParts = new AtomicLong();
+    
+    /**
+     * @param executor runs the parts, its number of threads bounds 
+     *                 the connections of all transfers together.
+     * @param partSize size of every part but the last.
+     * @param multipartThreshold smallest file uploaded in parts.
+     */
+    public ParallelTransfer(ExecutorService executor, long partSize, long multipartThreshold) {
+        if (partSize < MIN_PART_SIZE) {
+            throw new IllegalArgumentException(
+                    "Part size must be at least " + MIN_PART_SIZE + ", " + partSize);
+        }
+        if (multipartThreshold < partSize) {
+            throw new IllegalArgumentException(
+                    "Multipart threshold must be at least the part size " + partSize + ", " + multipartThreshold);
+        }
+        this.executor = executor;
+        this.partSize = partSize;
+        this.multipartThreshold = multipartThreshold;
+    }
+    
+    public void upload(final AmazonS3 client, final String bucketName, final String key, final File file) {
+        long length = file.length();
+        if (length < multipartThreshold) {
+            client.putObject(new PutObjectRequest(bucketName, key, file));
+            return;
+        }
+        final String uploadId = client.initiateMultipartUpload(
+                new InitiateMultipartUploadRequest(bucketName, key)).getUploadId();
+        AtomicBoolean isStopped = new AtomicBoolean(false);
+        List<Future<PartETag>> parts = new ArrayList<Future<PartETag>>();
+        try {
+            for (long offset = 0; offset < length; offset += partSize) {
+                final UploadPartRequest request = new UploadPartRequest()
+                    .withBucketName(bucketName)
+                    .withKey(key)
+                    .withUploadId(uploadId)
+                    .withPartNumber(parts.size() + 1)
+                    .withFile(file)
+                    .withFileOffset(offset)
+                    .withPartSize(Math.min(partSize, length - offset));
+                parts.add(submit(isStopped, new Callable<PartETag>() {
+                    @Override
+                    public PartETag call() throws Exception {
+                        PartETag partETag = client.uploadPart(request).getPartETag();
+                        transferredParts.incrementAndGet();
+                        return partETag;
+                    }
+                }));
+            }
+            List<PartETag> partETags = new ArrayList<PartETag>(parts.size());
+            for (Future<PartETag> part: parts) {
+                partETags.add(getResult(part));
+            }
+            client.completeMultipartUpload(
+                    new CompleteMultipartUploadRequest(bucketName, key, uploadId, partETags));
+            multipartUploads.incrementAndGet();
+        } catch (RuntimeException e) {
+            stop(isStopped, parts);
+            try {
+                client.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, key, uploadId));
+            } catch (RuntimeException abortFailure) {
+                e.addSuppressed(abortFailure);
+            }
+            throw e;
+        }
+    }
+    
+    public void download(final AmazonS3 client, final String bucketName, final String key, File file) {
+        File partFile = new File(file.getPath() + "." + UUID.randomUUID() + ".part");
+        AtomicBoolean isStopped = new AtomicBoolean(false);
+        List<Future<Long>> parts = new ArrayList<Future<Long>>();
+        try {
+            final FileChannel channel = FileChannel.open(partFile.toPath(), 
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            try {
+                long length = downloadPart(client, bucketName, key, 0, channel);
+                for (long offset = partSize; offset < length; offset += partSize) {
+                    final long start = offset;
+                    parts.add(submit(isStopped, new Callable<Long>() {
+                        @Override
+                        public Long call() throws Exception {
+                            return downloadPart(client, bucketName, key, start, channel);
+                        }
+                    }));
+                }
+                for (Future<Long> part: parts) {
+                    getResult(part);
+                }
+            } finally {
+                stop(isStopped, parts);
+                channel.close();
+            }
+            if (!parts.isEmpty()) {
+                parallelDownloads.incrementAndGet();
+            }
+            moveFile(partFile, file);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            partFile.delete();
+        }
+    }
+    
+    /**
+     * @return the size of the whole object, or -1 if it's unknown 
+     *         because the whole object was returned.
+     */
+    private long downloadPart(AmazonS3 client, String bucketName, String key, 
+            long start, FileChannel channel) throws IOException {
+        long end = start + partSize - 1;
+        GetObjectRequest request = new GetObjectRequest(bucketName, key);
+        request.setRange(start, end);
+        S3Object object = client.getObject(request);
+        try {
+            long written = write(object.getObjectContent(), channel, start);
+            long length = getInstanceLength(object);
+            if (written < Math.min(end + 1, length) - start) {
+                throw new IOException("Part of " + key + " at " + start + " is truncated, " + written + " bytes");
+            }
+            transferredParts.incrementAndGet();
+            return length;
+        } finally {
+            object.close();
+        }
+    }
+    
+    private long write(InputStream in, FileChannel channel, long position) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long written = 0;
+        int read = 0;
+        while (-1 != (read = in.read(buffer))) {
+            ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, read);
+            while (bytes.hasRemaining()) {
+                written += channel.write(bytes, position + written);
+            }
+        }
+        return written;
+    }
+    
+    /**
+     * Reads the size of the object from "Content-Range: bytes 0-8388607/12345678".
+     */
+    private long getInstanceLength(S3Object object) {
+        Object contentRange = object.getObjectMetadata().getRawMetadataValue("Content-Range");
+        if (null == contentRange) {
+            return -1;
+        }
+        String value = contentRange.toString();
+        int slash = value.lastIndexOf('/');
+        if (slash < 0 || value.endsWith("*")) {
+            return -1;
+        }
+        return Long.valueOf(value.substring(slash + 1).trim());
+    }
+    
+    private void moveFile(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), 
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+    
+    private <T> T getResult(Future<T> part) {
+        try {
+            return part.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+    
+    /**
+     * @param isStopped once set, the part is skipped if it hasn't started yet.
+     */
+    private <T> Future<T> submit(final AtomicBoolean isStopped, final Callable<T> part) {
+        return executor.submit(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                if (isStopped.get()) {
+                    return null;
+                }
+                return part.call();
+            }
+        });
+    }
+    
+    /**
+     * Skips the parts not started yet and waits for the running ones, 
+     * whose results and failures don't matter anymore. Parts aren't 
+     * cancelled, as a cancelled part can't be waited for.
+     */
+    private void stop(AtomicBoolean isStopped, List<? extends Future<?>> parts) {
+        isStopped.set(true);
+        boolean isInterrupted = false;
+        for (Future<?> part: parts) {
+            while (true) {
+                try {
+                    part.get();
+                    break;
+                } catch (InterruptedException e) {
+                    isInterrupted = true;
+                } catch (ExecutionException e) {
+                    break;
+                } catch (CancellationException e) {
+                    break;
+                }
+            }
+        }
+        if (isInterrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    public long getPartSize() {
+        return partSize;
+    }
+    
+    public long getMultipartThreshold() {
+        return multipartThreshold;
+    }
+    
+    public long getMultipartUploads() {
+        return multipartUploads.get();
+    }
+    
+    public long getParallelDownloads() {
+        return parallelDownloads.get();
+    }
+    
+    public long getTransferredParts() {
+        return transferredParts.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ParallelTransfer [partSize=" + partSize 
+                + ", multipartThreshold=" + multipartThreshold
+                + ", multipartUploads=" + multipartUploads 
+                + ", parallelDownloads=" + parallelDownloads 
+                + ", transferredParts=" + transferredParts + "]";
+    }
+
+}
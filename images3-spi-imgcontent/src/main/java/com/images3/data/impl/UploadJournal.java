@@ -0,0 +1,268 @@
+/*******************************************************************************
+ * Copyright 2014 Rui Sun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.images3.data.impl;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.images3.common.ImageIdentity;
+
+/**
+ * Append-only log of the uploads not yet in S3, one line per record: 
+ * "PUT", image plant id, image id and the time it was stored locally, 
+ * and "DONE", image plant id and image id once it was uploaded or deleted. 
+ * Every record is forced to disk before it returns. 
+ * 
+ * No bucket is journaled, since buckets come with credentials; they're 
+ * looked up from the image plants on replay. The journal is readable by 
+ * its owner only all the same. PUT records of older journals, which 
+ * still carry a bucket, are read without it and dropped on compaction.
+ * 
+ * A partly written last line, left by a crash, is skipped. Once most of 
+ * the records are done the journal is rewritten with the pending ones only.
+ */
+public class UploadJournal {
+    
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String SEPARATOR = "\t";
+    private static final String PUT = "PUT";
+    private static final String DONE = "DONE";
+    private static final int MIN_RECORDS_TO_COMPACT = 1024;
+    private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rw-------");
+    
+    private final File file;
+    private final Map<String, Entry> pending; //<imagePlantId/imageId, Entry>
+    private FileOutputStream output;
+    private Writer writer;
+    private int records;
+    
+    public UploadJournal(File file) {
+        this.file = file;
+        this.pending = new LinkedHashMap<String, Entry>();
+    }
+    
+    /**
+     * Reads the uploads left pending by the last run, and opens the 
+     * journal for new records.
+     * 
+     * @return the pending uploads, in the order they were stored.
+     */
+    public synchronized List<Entry> open() throws IOException {
+        if (file.exists()) {
+            read();
+        }
+        compact();
+        return new ArrayList<Entry>(pending.values());
+    }
+    
+    private void read() throws IOException {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), UTF_8));
+        try {
+            String line = null;
+            while (null != (line = reader.readLine())) {
+                String[] fields = line.split(SEPARATOR, -1);
+                if (fields.length == 4 && fields[0].equals(PUT)) {
+                    ImageIdentity id = new ImageIdentity(fields[1], fields[2]);
+                    pending.put(generateKey(id), new Entry(id, parseTime(fields[3])));
+                } else if (fields.length == 6 && fields[0].equals(PUT)) {
+                    ImageIdentity id = new ImageIdentity(fields[1], fields[2]);
+                    pending.put(generateKey(id), new Entry(id, file.lastModified()));
+                } else if (fields.length == 3 && fields[0].equals(DONE)) {
+                    pending.remove(generateKey(new ImageIdentity(fields[1], fields[2])));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+    
+    /**
+     * @return the time, or 0 for a torn number.
+     */
+    private long parseTime(String time) {
+        try {
+            return Long.parseLong(time);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+    
+    /**
+     * @param creationTime when the content was stored locally.
+     */
+    public synchronized void appendPending(ImageIdentity id, long creationTime) throws IOException {
+        Entry entry = new Entry(id, creationTime);
+        pending.put(generateKey(id), entry);
+        append(toRecord(entry));
+    }
+    
+    public synchronized void appendDone(ImageIdentity id) throws IOException {
+        if (null == pending.remove(generateKey(id))) {
+            return;
+        }
+        append(DONE + SEPARATOR + id.getImagePlantId() + SEPARATOR + id.getImageId());
+        if (records >= MIN_RECORDS_TO_COMPACT 
+                && records > pending.size() * 2) {
+            compact();
+        }
+    }
+    
+    public synchronized int getPendingUploads() {
+        return pending.size();
+    }
+    
+    private void append(String record) throws IOException {
+        if (null == writer) {
+            throw new IllegalStateException("Upload journal isn't open " + file);
+        }
+        writer.write(record);
+        writer.write('\n');
+        writer.flush();
+        output.getChannel().force(false);
+        records++;
+    }
+    
+    /**
+     * Writes the pending uploads to a new journal, which then atomically 
+     * replaces the current one.
+     */
+    private void compact() throws IOException {
+        close();
+        File compacted = new File(file.getPath() + ".compact");
+        Files.deleteIfExists(compacted.toPath());
+        createPrivateFile(compacted.toPath());
+        FileOutputStream out = new FileOutputStream(compacted);
+        try {
+            Writer compactedWriter = new OutputStreamWriter(out, UTF_8);
+            for (Entry entry: pending.values()) {
+                compactedWriter.write(toRecord(entry));
+                compactedWriter.write('\n');
+            }
+            compactedWriter.flush();
+            out.getChannel().force(false);
+        } finally {
+            out.close();
+        }
+        Files.move(compacted.toPath(), file.toPath(), 
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        forceDirectory(file.getAbsoluteFile().getParentFile());
+        output = new FileOutputStream(file, true);
+        writer = new OutputStreamWriter(output, UTF_8);
+        records = pending.size();
+    }
+    
+    /**
+     * Forces the entries of a directory to disk, so a file created in or 
+     * moved into it survives a crash. Does nothing where directories 
+     * can't be opened or forced, e.g. on Windows.
+     */
+    static void forceDirectory(File dir) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            return;
+        }
+        try {
+            channel.force(true);
+        } catch (IOException e) {
+            //Not supported for directories here.
+        } finally {
+            channel.close();
+        }
+    }
+    
+    /**
+     * Creates the file readable and writable by its owner only, where the 
+     * file system has POSIX permissions.
+     */
+    private void createPrivateFile(Path path) throws IOException {
+        if (!FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            Files.createFile(path);
+            return;
+        }
+        try {
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+        } catch (FileAlreadyExistsException e) {
+            Files.setPosixFilePermissions(path, OWNER_ONLY);
+        }
+    }
+    
+    public synchronized void close() throws IOException {
+        if (null != writer) {
+            writer.close();
+            writer = null;
+            output = null;
+        }
+    }
+    
+    private String toRecord(Entry entry) {
+        return PUT 
+                + SEPARATOR + entry.getId().getImagePlantId() 
+                + SEPARATOR + entry.getId().getImageId()
+                + SEPARATOR + entry.getCreationTime();
+    }
+    
+    private String generateKey(ImageIdentity id) {
+        return id.getImagePlantId() + "/" + id.getImageId();
+    }
+    
+    public static class Entry {
+        
+        private final ImageIdentity id;
+        private final long creationTime;
+        
+        public Entry(ImageIdentity id, long creationTime) {
+            this.id = id;
+            this.creationTime = creationTime;
+        }
+
+        public ImageIdentity getId() {
+            return id;
+        }
+
+        /**
+         * @return when the content was stored locally.
+         */
+        public long getCreationTime() {
+            return creationTime;
+        }
+        
+    }
+
+}
@@ -0,0 +1,427 @@
+/*******************************************************************************
+ * Copyright 2014 Rui Sun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.images3.data.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.images3.common.AmazonS3Bucket;
+import com.images3.common.ImageIdentity;
+import com.images3.data.ImagePlantOS;
+import com.images3.data.spi.ImageContentAccess;
+import com.images3.data.spi.ImagePlantAccess;
+
+/**
+ * Returns from {@link #insertImageContent} as soon as the content is on 
+ * local disk and recorded in the upload journal, and uploads it to S3 on a 
+ * bounded pool of uploaders. Until then the content is read from local disk, 
+ * where it's pinned so the disk cache can't evict it. 
+ * 
+ * A full upload queue makes the inserting thread upload by itself. 
+ * An upload that still fails after the maximum attempts stays pending, 
+ * and is submitted again every retry interval until it succeeds. 
+ * 
+ * Uploads left in the journal by the last run are replayed on start, 
+ * with their buckets looked up from the image plants.
+ */
+public class WriteBehindImageContentAccess implements ImageContentAccess {
+    
+    private static final long RETRY_DELAY_MILLIS = 1000;
+    private static final long MAX_RETRY_DELAY_MILLIS = 30000;
+    
+    private final ImageContentAccessImplS3 imageContentAccess;
+    private final UploadJournal journal;
+    private final ImagePlantAccess imagePlantAccess;
+    private final ThreadPoolExecutor uploaders;
+    private final ScheduledExecutorService resubmitter;
+    private final int maxAttempts;
+    private final ConcurrentMap<String, PendingUpload> pendingUploads; //<imagePlantId/imageId, PendingUpload>
+    private final AtomicLong uploads = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong failedUploads = new AtomicLong();
+    
+    /**
+     * @param imageContentAccess stores content locally and uploads it.
+     * @param journal journal of the pending uploads, replayed right away.
+     * @param imagePlantAccess looks up the buckets of the replayed uploads.
+     * @param workers number of uploads in parallel.
+     * @param queueCapacity number of uploads waiting for a worker.
+     * @param maxAttempts attempts of an upload before it waits for the next retry interval.
+     * @param retryIntervalMillis time between submissions of the failed uploads.
+     */
+    public WriteBehindImageContentAccess(ImageContentAccessImplS3 imageContentAccess, 
+            UploadJournal journal, ImagePlantAccess imagePlantAccess, 
+            int workers, int queueCapacity, int maxAttempts, long retryIntervalMillis) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("Number of workers must be at least 1, " + workers);
+        }
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("Maximum attempts must be at least 1, " + maxAttempts);
+        }
+        if (retryIntervalMillis < 1) {
+            throw new IllegalArgumentException("Retry interval must be at least 1, " + retryIntervalMillis);
+        }
+        if (null == imagePlantAccess) {
+            throw new NullPointerException("ImagePlantAccess");
+        }
+        this.imageContentAccess = imageContentAccess;
+        this.journal = journal;
+        this.imagePlantAccess = imagePlantAccess;
+        this.maxAttempts = maxAttempts;
+        this.pendingUploads = new ConcurrentHashMap<String, PendingUpload>();
+        this.uploaders = new ThreadPoolExecutor(
+                workers, workers, 0L, TimeUnit.MILLISECONDS, 
+                new ArrayBlockingQueue<Runnable>(queueCapacity),
+                new ThreadFactory() {
+                    private final AtomicInteger threadNumber = new AtomicInteger(1);
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, 
+                                "images3-upload-" + threadNumber.getAndIncrement());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        this.resubmitter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "images3-upload-resubmit");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        readPendingUploads();
+        resubmitter.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                resubmitPendingUploads();
+            }
+        }, 0, retryIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Their buckets are looked up once they're submitted, which happens 
+     * on the first resubmission, right after start.
+     */
+    private void readPendingUploads() {
+        List<UploadJournal.Entry> entries;
+        try {
+            entries = journal.open();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        for (UploadJournal.Entry entry: entries) {
+            PendingUpload upload = new PendingUpload(
+                    entry.getId(), null, 
+                    imageContentAccess.getImageContentFile(entry.getId()), 
+                    entry.getCreationTime());
+            imageContentAccess.pinImageContent(upload.id);
+            pendingUploads.put(generateKey(upload.id), upload);
+        }
+    }
+    
+    /**
+     * Submits every pending upload that isn't queued or in progress, 
+     * i.e. the ones that failed and the ones replayed from the journal.
+     */
+    private void resubmitPendingUploads() {
+        for (PendingUpload upload: pendingUploads.values()) {
+            try {
+                submit(upload);
+            } catch (RuntimeException e) {
+                //stays pending for the next round.
+            }
+        }
+    }
+
+    @Override
+    public boolean testBucketAccessibility(AmazonS3Bucket bucket) {
+        return imageContentAccess.testBucketAccessibility(bucket);
+    }
+
+    @Override
+    public File insertImageContent(ImageIdentity id, AmazonS3Bucket bucket, File content) {
+        imageContentAccess.pinImageContent(id);
+        File imageFile = imageContentAccess.storeImageContent(id, content);
+        PendingUpload upload = new PendingUpload(id, bucket, imageFile, System.currentTimeMillis());
+        synchronized (upload) {
+            pendingUploads.put(generateKey(id), upload);
+            try {
+                force(imageFile);
+                UploadJournal.forceDirectory(imageFile.getParentFile());
+                journal.appendPending(id, upload.creationTime);
+            } catch (IOException e) {
+                pendingUploads.remove(generateKey(id), upload);
+                imageContentAccess.unpinImageContent(id);
+                throw new RuntimeException(e);
+            }
+        }
+        submit(upload);
+        return imageFile;
+    }
+    
+    private void force(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+    
+    /**
+     * Does nothing if the upload is queued or in progress already.
+     */
+    private void submit(final PendingUpload upload) {
+        if (!upload.isSubmitted.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            uploaders.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        upload(upload);
+                    } finally {
+                        upload.isSubmitted.set(false);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            upload.isSubmitted.set(false);
+            throw e;
+        }
+    }
+    
+    /**
+     * Completes the upload outside of the attempts, so a failure to 
+     * journal it can't make it upload again.
+     */
+    private void upload(PendingUpload upload) {
+        long retryDelay = RETRY_DELAY_MILLIS;
+        boolean isDone = false;
+        for (int attempt = 1; attempt <= maxAttempts && !isDone; attempt++) {
+            try {
+                synchronized (upload) {
+                    if (upload.isCancelled) {
+                        return;
+                    }
+                    if (!upload.file.exists()) {
+                        break;
+                    }
+                    if (null == upload.bucket && !lookUpBucket(upload)) {
+                        isDone = true;
+                        break;
+                    }
+                    imageContentAccess.uploadImageContent(upload.id, upload.bucket, upload.file);
+                }
+                uploads.incrementAndGet();
+                isDone = true;
+            } catch (RuntimeException e) {
+                if (attempt == maxAttempts) {
+                    break;
+                }
+                retries.incrementAndGet();
+                try {
+                    Thread.sleep(retryDelay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY_MILLIS);
+            }
+        }
+        if (isDone) {
+            complete(upload);
+            return;
+        }
+        failedUploads.incrementAndGet();
+        if (!upload.file.exists()) {
+            complete(upload);
+        }
+    }
+    
+    /**
+     * @return false if the image plant doesn't exist anymore, 
+     *         so its content needn't be uploaded.
+     */
+    private boolean lookUpBucket(PendingUpload upload) {
+        ImagePlantOS imagePlant = imagePlantAccess.selectImagePlantById(upload.id.getImagePlantId());
+        if (null == imagePlant) {
+            return false;
+        }
+        upload.bucket = imagePlant.getAmazonS3Bucket();
+        return true;
+    }
+    
+    private void complete(PendingUpload upload) {
+        if (pendingUploads.remove(generateKey(upload.id), upload)) {
+            imageContentAccess.unpinImageContent(upload.id);
+            appendDone(upload.id);
+        }
+    }
+    
+    private void appendDone(ImageIdentity id) {
+        try {
+            journal.appendDone(id);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+    
+    /**
+     * Waits for an upload in progress, so it can't put the content back 
+     * after it was deleted, or for the upload to be journaled, so the 
+     * journal can't replay it.
+     */
+    private void cancel(PendingUpload upload) {
+        synchronized (upload) {
+            upload.isCancelled = true;
+        }
+        imageContentAccess.unpinImageContent(upload.id);
+        appendDone(upload.id);
+    }
+
+    @Override
+    public void deleteImageContent(ImageIdentity id, AmazonS3Bucket bucket) {
+        PendingUpload upload = pendingUploads.remove(generateKey(id));
+        if (null != upload) {
+            cancel(upload);
+        }
+        imageContentAccess.deleteImageContent(id, bucket);
+    }
+
+    @Override
+    public void deleteImageContentByImagePlantId(String imagePlantId, AmazonS3Bucket bucket) {
+        for (PendingUpload upload: pendingUploads.values()) {
+            if (upload.id.getImagePlantId().equals(imagePlantId)
+                    && pendingUploads.remove(generateKey(upload.id), upload)) {
+                cancel(upload);
+            }
+        }
+        imageContentAccess.deleteImageContentByImagePlantId(imagePlantId, bucket);
+    }
+
+    @Override
+    public File selectImageContent(ImageIdentity id, AmazonS3Bucket bucket) {
+        return imageContentAccess.selectImageContent(id, bucket);
+    }
+    
+    public boolean isPending(ImageIdentity id) {
+        return pendingUploads.containsKey(generateKey(id));
+    }
+    
+    public int getPendingUploads() {
+        return pendingUploads.size();
+    }
+    
+    public int getQueuedUploads() {
+        return uploaders.getQueue().size();
+    }
+    
+    /**
+     * @return how long the oldest pending upload has been waiting 
+     *         since its content was stored, or 0 if none is pending.
+     */
+    public long getOldestPendingUploadMillis() {
+        long oldest = Long.MAX_VALUE;
+        for (PendingUpload upload: pendingUploads.values()) {
+            oldest = Math.min(oldest, upload.creationTime);
+        }
+        if (oldest == Long.MAX_VALUE) {
+            return 0;
+        }
+        return Math.max(0, System.currentTimeMillis() - oldest);
+    }
+    
+    public long getUploads() {
+        return uploads.get();
+    }
+    
+    public long getRetries() {
+        return retries.get();
+    }
+    
+    public long getFailedUploads() {
+        return failedUploads.get();
+    }
+    
+    /**
+     * Waits for the queued uploads; the ones not finished in time 
+     * stay in the journal.
+     */
+    public void shutdown(long timeoutMillis) throws InterruptedException {
+        resubmitter.shutdownNow();
+        uploaders.shutdown();
+        uploaders.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+        try {
+            journal.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "WriteBehindImageContentAccess [pendingUploads=" + getPendingUploads() 
+                + ", oldestPendingUploadMillis=" + getOldestPendingUploadMillis()
+                + ", queuedUploads=" + getQueuedUploads() 
+                + ", uploads=" + uploads
+                + ", retries=" + retries 
+                + ", failedUploads=" + failedUploads + "]";
+    }
+    
+    private String generateKey(ImageIdentity id) {
+        return id.getImagePlantId() + "/" + id.getImageId();
+    }
+    
+    private static class PendingUpload {
+        
+        private final ImageIdentity id;
+        private final File file;
+        private final long creationTime;
+        private final AtomicBoolean isSubmitted = new AtomicBoolean();
+        private volatile AmazonS3Bucket bucket;
+        private boolean isCancelled;
+        
+        /**
+         * @param bucket bucket of the upload, or null to look it up when uploading.
+         */
+        public PendingUpload(ImageIdentity id, AmazonS3Bucket bucket, File file, long creationTime) {
+            this.id = id;
+            this.bucket = bucket;
+            this.file = file;
+            this.creationTime = creationTime;
+        }
+        
+    }
+
+}
@@ -0,0 +1,198 @@
+/*******************************************************************************
+ * Copyright 2014 Rui Sun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.images3.data.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.images3.common.ImageIdentity;
+
+public class ImageContentDiskCacheTest {
+    
+    private static final String IMAGE_PLANT_ID = "plant";
+    private static final int CONTENT_BYTES = 100;
+    
+    private File dir;
+    
+    @Before
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("images3").toFile();
+    }
+    
+    @After
+    public void teardown() {
+        deleteFile(dir);
+    }
+    
+    private void deleteFile(File file) {
+        File[] children = file.listFiles();
+        if (null != children) {
+            for (File child: children) {
+                deleteFile(child);
+            }
+        }
+        file.delete();
+    }
+    
+    private ImageIdentity setupId(String imageId) {
+        return new ImageIdentity(IMAGE_PLANT_ID, imageId);
+    }
+    
+    private void setupContent(File file) throws IOException {
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), new byte[CONTENT_BYTES]);
+    }
+    
+    private ImageContentDiskCache setupCache(int maxContents) {
+        return new ImageContentDiskCache(dir.getAbsolutePath(), maxContents * CONTENT_BYTES, 0);
+    }
+    
+    private void put(ImageContentDiskCache cache, ImageIdentity id) throws IOException {
+        setupContent(cache.prepareFile(id));
+        cache.put(id);
+    }
+    
+    @Test
+    public void testGet_Miss() {
+        ImageContentDiskCache cache = setupCache(2);
+        assertNull(cache.get(setupId("a")));
+        assertEquals(1, cache.getMisses());
+        assertFalse(new File(dir, IMAGE_PLANT_ID).exists());
+    }
+    
+    @Test
+    public void testGet_StaleEntry() throws IOException {
+        ImageContentDiskCache cache = setupCache(2);
+        put(cache, setupId("a"));
+        cache.getFile(setupId("a")).delete();
+        assertNull(cache.get(setupId("a")));
+        assertEquals(0, cache.getEntries());
+        assertEquals(0, cache.getBytes());
+    }
+    
+    @Test
+    public void testEvict_LeastRecentlyUsed() throws IOException {
+        ImageContentDiskCache cache = setupCache(2);
+        put(cache, setupId("a"));
+        put(cache, setupId("b"));
+        assertNotNull(cache.get(setupId("a")));
+        put(cache, setupId("c"));
+        assertEquals(2, cache.getEntries());
+        assertEquals(2 * CONTENT_BYTES, cache.getBytes());
+        assertEquals(1, cache.getEvictions());
+        assertFalse(cache.getFile(setupId("b")).exists());
+        assertNotNull(cache.get(setupId("a")));
+        assertNotNull(cache.get(setupId("c")));
+    }
+    
+    @Test
+    public void testEvict_PinnedContent() throws IOException {
+        ImageContentDiskCache cache = setupCache(2);
+        cache.pin(setupId("a"));
+        put(cache, setupId("a"));
+        put(cache, setupId("b"));
+        put(cache, setupId("c"));
+        assertNotNull(cache.get(setupId("a")));
+        assertFalse(cache.getFile(setupId("b")).exists());
+        cache.unpin(setupId("a"));
+        put(cache, setupId("d"));
+        assertNotNull(cache.get(setupId("a")));
+        assertFalse(cache.getFile(setupId("c")).exists());
+        assertEquals(2, cache.getEntries());
+    }
+    
+    @Test
+    public void testEvict_LeasedContent() throws IOException {
+        ImageContentDiskCache cache = new ImageContentDiskCache(
+                dir.getAbsolutePath(), CONTENT_BYTES, 60 * 1000);
+        put(cache, setupId("a"));
+        put(cache, setupId("b"));
+        assertEquals(2, cache.getEntries());
+        assertEquals(0, cache.getEvictions());
+    }
+    
+    @Test
+    public void testRemove() throws IOException {
+        ImageContentDiskCache cache = setupCache(2);
+        put(cache, setupId("a"));
+        cache.pin(setupId("b"));
+        put(cache, setupId("b"));
+        cache.remove(setupId("a"));
+        cache.remove(setupId("b"));
+        assertEquals(0, cache.getEntries());
+        assertEquals(0, cache.getBytes());
+        assertFalse(cache.getFile(setupId("a")).exists());
+    }
+    
+    @Test
+    public void testRemoveImagePlant() throws IOException {
+        ImageContentDiskCache cache = setupCache(4);
+        put(cache, setupId("a"));
+        cache.pin(setupId("b"));
+        put(cache, setupId("b"));
+        put(cache, new ImageIdentity("other", "c"));
+        cache.removeImagePlant(IMAGE_PLANT_ID);
+        assertEquals(1, cache.getEntries());
+        assertEquals(CONTENT_BYTES, cache.getBytes());
+        assertFalse(new File(dir, IMAGE_PLANT_ID).exists());
+    }
+    
+    @Test
+    public void testRebuildIndex() throws IOException {
+        ImageContentDiskCache cache = setupCache(3);
+        put(cache, setupId("a"));
+        put(cache, setupId("b"));
+        put(cache, setupId("c"));
+        long now = System.currentTimeMillis();
+        cache.getFile(setupId("a")).setLastModified(now - 1000);
+        cache.getFile(setupId("b")).setLastModified(now - 3000);
+        cache.getFile(setupId("c")).setLastModified(now - 2000);
+        cache = setupCache(2);
+        assertEquals(3, cache.getEntries());
+        assertEquals(3 * CONTENT_BYTES, cache.getBytes());
+        put(cache, setupId("d"));
+        assertEquals(2, cache.getEntries());
+        assertFalse(cache.getFile(setupId("b")).exists());
+        assertFalse(cache.getFile(setupId("c")).exists());
+        assertTrue(cache.getFile(setupId("a")).exists());
+    }
+    
+    @Test
+    public void testRebuildIndex_MovesFlatContentIntoShards() throws IOException {
+        File flatFile = new File(new File(dir, IMAGE_PLANT_ID), "a");
+        setupContent(flatFile);
+        File partFile = new File(new File(dir, IMAGE_PLANT_ID), "b.part");
+        setupContent(partFile);
+        ImageContentDiskCache cache = setupCache(2);
+        assertFalse(flatFile.exists());
+        assertFalse(partFile.exists());
+        assertEquals(1, cache.getEntries());
+        assertEquals(cache.getFile(setupId("a")), cache.get(setupId("a")));
+        assertTrue(cache.getFile(setupId("a")).exists());
+    }
+    
+}
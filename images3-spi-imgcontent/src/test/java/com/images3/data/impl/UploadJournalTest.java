@@ -0,0 +1,164 @@
+/*******************************************************************************
+ * Copyright 2014 Rui Sun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.images3.data.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.images3.common.ImageIdentity;
+
+public class UploadJournalTest {
+    
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String IMAGE_PLANT_ID = "plant";
+    
+    private File tempDir;
+    private File file;
+    
+    @Before
+    public void setup() throws IOException {
+        tempDir = Files.createTempDirectory("images3").toFile();
+        file = new File(tempDir, "upload.journal");
+    }
+    
+    @After
+    public void teardown() {
+        for (File child: tempDir.listFiles()) {
+            child.delete();
+        }
+        tempDir.delete();
+    }
+    
+    private void setupJournal(String content) throws IOException {
+        Files.write(file.toPath(), content.getBytes(UTF_8));
+    }
+    
+    private List<String> readLines() throws IOException {
+        return Files.readAllLines(file.toPath(), UTF_8);
+    }
+    
+    private ImageIdentity setupId(String imageId) {
+        return new ImageIdentity(IMAGE_PLANT_ID, imageId);
+    }
+    
+    private List<UploadJournal.Entry> reopen() throws IOException {
+        UploadJournal journal = new UploadJournal(file);
+        try {
+            return journal.open();
+        } finally {
+            journal.close();
+        }
+    }
+    
+    @Test
+    public void testReplay() throws IOException {
+        UploadJournal journal = new UploadJournal(file);
+        assertEquals(0, journal.open().size());
+        journal.appendPending(setupId("a"), 100);
+        journal.appendPending(setupId("b"), 200);
+        journal.appendPending(setupId("c"), 300);
+        journal.appendDone(setupId("b"));
+        journal.close();
+        List<UploadJournal.Entry> entries = reopen();
+        assertEquals(2, entries.size());
+        assertEquals("a", entries.get(0).getId().getImageId());
+        assertEquals(100, entries.get(0).getCreationTime());
+        assertEquals("c", entries.get(1).getId().getImageId());
+        assertEquals(300, entries.get(1).getCreationTime());
+    }
+    
+    @Test
+    public void testReplay_TornLastPut() throws IOException {
+        setupJournal("PUT\tplant\ta\t100\nPUT\tplant\tb");
+        List<UploadJournal.Entry> entries = reopen();
+        assertEquals(1, entries.size());
+        assertEquals("a", entries.get(0).getId().getImageId());
+    }
+    
+    @Test
+    public void testReplay_TornLastDone() throws IOException {
+        setupJournal("PUT\tplant\ta\t100\nDONE\tplant");
+        List<UploadJournal.Entry> entries = reopen();
+        assertEquals(1, entries.size());
+        assertEquals("a", entries.get(0).getId().getImageId());
+    }
+    
+    @Test
+    public void testReplay_TornTime() throws IOException {
+        setupJournal("PUT\tplant\ta\t1x");
+        List<UploadJournal.Entry> entries = reopen();
+        assertEquals(1, entries.size());
+        assertEquals(0, entries.get(0).getCreationTime());
+    }
+    
+    @Test
+    public void testOpen_CompactsToPendingRecords() throws IOException {
+        setupJournal("PUT\tplant\ta\t100\n"
+                + "PUT\tplant\tb\tbucket\taccessKey\tsecretKey\n"
+                + "DONE\tplant\ta\n"
+                + "PUT\tplant\tc");
+        reopen();
+        List<String> lines = readLines();
+        assertEquals(1, lines.size());
+        assertEquals(4, lines.get(0).split("\t", -1).length);
+        assertTrue(lines.get(0).startsWith("PUT\tplant\tb\t"));
+        assertFalse(new File(file.getPath() + ".compact").exists());
+    }
+    
+    @Test
+    public void testAppendDone_CompactsOnceMostRecordsAreDone() throws IOException {
+        UploadJournal journal = new UploadJournal(file);
+        journal.open();
+        int records = 2000;
+        for (int i = 0; i < records; i++) {
+            journal.appendPending(setupId(String.valueOf(i)), i);
+        }
+        for (int i = 1; i < records; i++) {
+            journal.appendDone(setupId(String.valueOf(i)));
+        }
+        assertEquals(1, journal.getPendingUploads());
+        journal.close();
+        assertTrue(readLines().size() < records);
+        List<UploadJournal.Entry> entries = reopen();
+        assertEquals(1, entries.size());
+        assertEquals("0", entries.get(0).getId().getImageId());
+        assertEquals(1, readLines().size());
+    }
+    
+    @Test
+    public void testAppendAfterCompaction() throws IOException {
+        setupJournal("PUT\tplant\ta\t100\nDONE\tplant\ta\n");
+        UploadJournal journal = new UploadJournal(file);
+        journal.open();
+        journal.appendPending(setupId("b"), 200);
+        journal.close();
+        List<UploadJournal.Entry> entries = reopen();
+        assertEquals(1, entries.size());
+        assertEquals("b", entries.get(0).getId().getImageId());
+    }
+    
+}
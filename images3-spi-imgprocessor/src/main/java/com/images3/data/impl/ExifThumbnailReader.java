@@ -0,0 +1,149 @@
+/*******************************************************************************
+ * Copyright 2014 Rui Sun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.images3.data.impl;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Extracts the JPEG thumbnail cameras embed in the second image file 
+ * directory of the EXIF segment. ImageIO's JPEG reader only exposes 
+ * JFIF thumbnails, which cameras rarely write.
+ */
+public class ExifThumbnailReader {
+    
+    private static final int APP1 = 0xE1;
+    private static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+    private static final int TAG_THUMBNAIL_LENGTH = 0x0202;
+    private static final int IFD_ENTRY_SIZE = 12;
+    
+    /**
+     * Scans the markers in front of the first frame from the current 
+     * position, which must be the start of the JPEG.
+     * 
+     * @return the encoded thumbnail, or null if there is none.
+     */
+    public byte[] readThumbnail(ImageInputStream in) throws IOException {
+        in.setByteOrder(ByteOrder.BIG_ENDIAN);
+        if (in.readUnsignedShort() != 0xFFD8) {
+            return null;
+        }
+        while (true) {
+            int marker = in.readUnsignedByte();
+            if (marker != 0xFF) {
+                continue;
+            }
+            while (marker == 0xFF) {
+                marker = in.readUnsignedByte();
+            }
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD8)) {
+                continue; //stand-alone markers.
+            }
+            if (marker == 0xD9 || marker == 0xDA || (marker >= 0xC0 && marker <= 0xCF)) {
+                return null; //EXIF always precedes tables, frames and scans.
+            }
+            int length = in.readUnsignedShort();
+            if (length < 2) {
+                return null;
+            }
+            if (marker != APP1) {
+                in.skipBytes(length - 2);
+                continue;
+            }
+            byte[] segment = new byte[length - 2];
+            in.readFully(segment);
+            if (isExif(segment)) {
+                return readThumbnail(segment, 6);
+            }
+        }
+    }
+    
+    private boolean isExif(byte[] segment) {
+        return segment.length > 14
+                && segment[0] == 'E' && segment[1] == 'x' 
+                && segment[2] == 'i' && segment[3] == 'f'
+                && segment[4] == 0 && segment[5] == 0;
+    }
+    
+    /**
+     * @param tiff offset of the TIFF header, to which all EXIF offsets are relative.
+     */
+    private byte[] readThumbnail(byte[] segment, int tiff) {
+        boolean isLittleEndian;
+        if (segment[tiff] == 'I' && segment[tiff + 1] == 'I') {
+            isLittleEndian = true;
+        } else if (segment[tiff] == 'M' && segment[tiff + 1] == 'M') {
+            isLittleEndian = false;
+        } else {
+            return null;
+        }
+        long ifd0 = readInt(segment, tiff + 4, isLittleEndian);
+        long ifd0Entries = readShort(segment, tiff + ifd0, isLittleEndian);
+        if (ifd0Entries < 0) {
+            return null;
+        }
+        long ifd1 = readInt(segment, tiff + ifd0 + 2 + ifd0Entries * IFD_ENTRY_SIZE, isLittleEndian);
+        if (ifd1 <= 0) {
+            return null;
+        }
+        long ifd1Entries = readShort(segment, tiff + ifd1, isLittleEndian);
+        long offset = -1;
+        long length = -1;
+        for (int i = 0; i < ifd1Entries; i++) {
+            long entry = tiff + ifd1 + 2 + i * IFD_ENTRY_SIZE;
+            long tag = readShort(segment, entry, isLittleEndian);
+            if (tag == TAG_THUMBNAIL_OFFSET) {
+                offset = readInt(segment, entry + 8, isLittleEndian);
+            } else if (tag == TAG_THUMBNAIL_LENGTH) {
+                length = readInt(segment, entry + 8, isLittleEndian);
+            }
+        }
+        if (offset <= 0 || length <= 0 
+                || tiff + offset + length > segment.length) {
+            return null;
+        }
+        byte[] thumbnail = new byte[(int) length];
+        System.arraycopy(segment, (int) (tiff + offset), thumbnail, 0, (int) length);
+        return thumbnail;
+    }
+    
+    /**
+     * @return the unsigned value, or -1 if it lies outside of the segment.
+     */
+    private long readShort(byte[] segment, long offset, boolean isLittleEndian) {
+        if (offset < 0 || offset + 2 > segment.length) {
+            return -1;
+        }
+        int b0 = segment[(int) offset] & 0xff;
+        int b1 = segment[(int) offset + 1] & 0xff;
+        return (isLittleEndian ? (b1 << 8) | b0 : (b0 << 8) | b1);
+    }
+    
+    /**
+     * @return the unsigned value, or -1 if it lies outside of the segment.
+     */
+    private long readInt(byte[] segment, long offset, boolean isLittleEndian) {
+        if (offset < 0 || offset + 4 > segment.length) {
+            return -1;
+        }
+        long high = readShort(segment, offset, isLittleEndian);
+        long low = readShort(segment, offset + 2, isLittleEndian);
+        return (isLittleEndian ? (low << 16) | high : (high << 16) | low);
+    }
+    
+}
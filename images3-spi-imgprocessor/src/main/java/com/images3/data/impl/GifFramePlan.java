@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * Copyright 2014 Rui Sun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.images3.data.impl;
+
+import java.io.IOException;
+
+import com.images3.common.AnimationConfig;
+
+/**
+ * Decides which frames of an animated GIF make it into a resized version, 
+ * and how long each of them is shown.
+ * 
+ * Frames are composited onto a full canvas before they are resized, so any 
+ * of them can be dropped without breaking the ones that follow. Dropped 
+ * frames still have to be decoded, but are neither resized nor encoded.
+ */
+public class GifFramePlan {
+    
+    private static final GifFramePlan ALL_FRAMES = new GifFramePlan(null, Integer.MAX_VALUE);
+    
+    private final int[] delays; //'-1' for dropped frames, null to keep every frame as it is.
+    private final int lastFrameIndex;
+    
+    private GifFramePlan(int[] delays, int lastFrameIndex) {
+        this.delays = delays;
+        this.lastFrameIndex = lastFrameIndex;
+    }
+    
+    /**
+     * Reads the frame delays up front only when the frame count or the 
+     * duration is limited.
+     * 
+     * @param animationConfig frame settings, or null to keep every frame.
+     */
+    public static GifFramePlan create(AnimationConfig animationConfig, 
+            GifFrameReader reader) throws IOException {
+        if (null == animationConfig) {
+            return ALL_FRAMES;
+        }
+        if (animationConfig.isFirstFrameOnly()) {
+            return new GifFramePlan(new int[] {0}, 0);
+        }
+        if (animationConfig.getMaxFrames() == AnimationConfig.UNLIMITED_FRAMES
+                && animationConfig.getMaxDurationMillis() == AnimationConfig.UNLIMITED_DURATION) {
+            return ALL_FRAMES;
+        }
+        return create(animationConfig, reader.readFrameDelays());
+    }
+    
+    static GifFramePlan create(AnimationConfig animationConfig, int[] sourceDelays) {
+        if (sourceDelays.length == 0) {
+            return ALL_FRAMES;
+        }
+        int maxDuration = Integer.MAX_VALUE;
+        if (animationConfig.getMaxDurationMillis() != AnimationConfig.UNLIMITED_DURATION) {
+            maxDuration = Math.max(1, animationConfig.getMaxDurationMillis() / 10);
+        }
+        int frameCount = 0;
+        long startTime = 0;
+        while (frameCount < sourceDelays.length && startTime < maxDuration) {
+            startTime += sourceDelays[frameCount++];
+        }
+        int keptCount = frameCount;
+        if (animationConfig.getMaxFrames() != AnimationConfig.UNLIMITED_FRAMES) {
+            keptCount = Math.min(frameCount, animationConfig.getMaxFrames());
+        }
+        
+        int[] delays = new int[frameCount];
+        int keptIndex = -1;
+        long keptStartTime = 0;
+        startTime = 0;
+        for (int i = 0; i < frameCount; i++) {
+            if (isKept(i, keptCount, frameCount)) {
+                keptIndex = i;
+                keptStartTime = startTime;
+                delays[i] = 0;
+            } else {
+                delays[i] = -1;
+            }
+            delays[keptIndex] += sourceDelays[i];
+            startTime += sourceDelays[i];
+        }
+        if (startTime > maxDuration) {
+            delays[keptIndex] = (int) (maxDuration - keptStartTime);
+        }
+        return new GifFramePlan(delays, frameCount - 1);
+    }
+    
+    /**
+     * Spreads the kept frames evenly, always starting with the first one.
+     */
+    private static boolean isKept(int index, int keptCount, int frameCount) {
+        if (index == 0) {
+            return true;
+        }
+        return ((long) index * keptCount) / frameCount 
+                > ((long) (index - 1) * keptCount) / frameCount;
+    }
+    
+    /**
+     * @return true if none of the frames from the given one on are kept, 
+     *         so there's no need to decode them.
+     */
+    public boolean isFinished(int frameIndex) {
+        return frameIndex > lastFrameIndex;
+    }
+    
+    public boolean isKept(int frameIndex) {
+        if (null == delays) {
+            return true;
+        }
+        return frameIndex < delays.length && delays[frameIndex] >= 0;
+    }
+    
+    /**
+     * @return delay of a kept frame, in 1/100 second, including the delays 
+     *         of the frames dropped after it.
+     */
+    public int getDelay(int frameIndex, ImageFrame frame) {
+        if (null == delays) {
+            return frame.getDelay();
+        }
+        return delays[frameIndex];
+    }
+    
+}
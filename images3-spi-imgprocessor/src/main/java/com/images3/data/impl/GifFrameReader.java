@@ -1,15 +1,21 @@
 package com.images3.data.impl;
 
 
+import com.images3.common.ImageFormat;
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
 import javax.imageio.ImageReader;
 import javax.imageio.metadata.IIOMetadata;
 import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.awt.AlphaComposite;
 import java.awt.Color;
+import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
 import java.awt.image.WritableRaster;
@@ -22,33 +28,244 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
+/**
+ * Decodes an animated GIF frame by frame, compositing every frame onto a
+ * single canvas. Only the current canvas and the canvas saved for a
+ * "restoreToPrevious" frame are kept in memory. With a raster pool, both
+ * canvases and every decoded frame are borrowed from it and returned once
+ * no longer needed.
+ */
 public class GifFrameReader {
 
+    private static final String DISPOSAL_NONE = "none";
+    private static final String DISPOSAL_RESTORE_TO_BACKGROUND = "restoreToBackgroundColor";
+    private static final String DISPOSAL_RESTORE_TO_PREVIOUS = "restoreToPrevious";
+
     private InputStream stream;
+    private ImageIOPool imageIOPool;
+    private RasterPool rasterPool;
+    private ImageInputStream imageInputStream;
+    private ImageReader reader;
+
+    private int width = -1;
+    private int height = -1;
+    private Color backgroundColor;
+
+    private BufferedImage master;
+    private BufferedImage previous;
+
+    private int frameIndex;
+    private boolean isFinished;
+
+    private String lastDisposal;
+    private int lastx;
+    private int lasty;
+    private int lastWidth;
+    private int lastHeight;
 
     public GifFrameReader(File file) throws IOException {
-        stream = new BufferedInputStream(Files.newInputStream(file.toPath()));
+        this(file, null);
+    }
+
+    /**
+     * @param imageIOPool pool to borrow the GIF image reader from, 
+     *                    or null to look one up in the registry.
+     */
+    public GifFrameReader(File file, ImageIOPool imageIOPool) throws IOException {
+        this(file, imageIOPool, null);
+    }
+
+    /**
+     * @param rasterPool pool to borrow canvases and frames from, or null to allocate them.
+     */
+    public GifFrameReader(File file, ImageIOPool imageIOPool, RasterPool rasterPool) throws IOException {
+        this(new BufferedInputStream(Files.newInputStream(file.toPath())), imageIOPool, rasterPool);
+    }
+
+    /**
+     * @param stream stream the GIF is read from, closed together with this reader.
+     */
+    public GifFrameReader(InputStream stream, ImageIOPool imageIOPool) {
+        this(stream, imageIOPool, null);
+    }
+
+    /**
+     * @param stream stream the GIF is read from, closed together with this reader.
+     * @param rasterPool pool to borrow canvases and frames from, or null to allocate them.
+     */
+    public GifFrameReader(InputStream stream, ImageIOPool imageIOPool, RasterPool rasterPool) {
+        this.stream = stream;
+        this.imageIOPool = imageIOPool;
+        this.rasterPool = rasterPool;
     }
 
     public GifFrameReader(String path) throws IOException {
         this(new File(path));
     }
 
+    /**
+     * Reads all frames at once. Every frame holds its own copy of the canvas,
+     * so prefer {@link #readNextFrame()} for anything but small images.
+     */
     public List<ImageFrame> read() throws IOException {
         ArrayList<ImageFrame> frames = new ArrayList<>(25);
+        ImageFrame frame = null;
+        while (null != (frame = readNextFrame())) {
+            frames.add(new ImageFrame(
+                    copyImage(frame.getImage()),
+                    frame.getDelay(),
+                    frame.getDisposal(),
+                    frame.getWidth(),
+                    frame.getHeight()));
+        }
+        return Collections.unmodifiableList(frames);
+    }
+
+    /**
+     * Decodes the next frame and composites it onto the canvas.
+     *
+     * The returned frame shares the canvas with this reader, so it is only
+     * valid until the next call.
+     *
+     * @return the composited frame, or null if there are no more frames.
+     */
+    public ImageFrame readNextFrame() throws IOException {
+        if (isFinished) {
+            return null;
+        }
+        if (null == reader) {
+            openReader();
+        }
+
+        BufferedImage image;
+        try{
+            image = reader.read(frameIndex, getReadParam(frameIndex));
+        }catch (IndexOutOfBoundsException io){
+            isFinished = true;
+            return null;
+        }
 
-        ImageReader reader = (ImageReader) ImageIO.getImageReadersByFormatName("gif").next();
-        reader.setInput(ImageIO.createImageInputStream(stream));
+        if (width == -1 || height == -1){
+            width = image.getWidth();
+            height = image.getHeight();
+        }
 
-        int lastx = 0;
-        int lasty = 0;
+        IIOMetadataNode root = getImageMetadata(frameIndex);
+        IIOMetadataNode gce = getGraphicControlExtension(root);
 
-        int width = -1;
-        int height = -1;
+        int delay = 0;
+        String disposal = DISPOSAL_NONE;
+        if (null != gce) {
+            delay = Integer.valueOf(gce.getAttribute("delayTime"));
+            disposal = gce.getAttribute("disposalMethod");
+        }
 
-        IIOMetadata metadata = reader.getStreamMetadata();
+        int x = 0;
+        int y = 0;
+        NodeList children = root.getChildNodes();
+        for (int nodeIndex = 0; nodeIndex < children.getLength(); nodeIndex++){
+            Node nodeItem = children.item(nodeIndex);
 
-        Color backgroundColor = null;
+            if (nodeItem.getNodeName().equals("ImageDescriptor")){
+                NamedNodeMap map = nodeItem.getAttributes();
+
+                x = Integer.valueOf(map.getNamedItem("imageLeftPosition").getNodeValue());
+                y = Integer.valueOf(map.getNamedItem("imageTopPosition").getNodeValue());
+            }
+        }
+
+        if (master == null){
+            master = createCanvas();
+            if (null != backgroundColor) {
+                fillCanvas(0, 0, width, height);
+            }
+        } else {
+            disposeLastFrame();
+        }
+
+        if (disposal.equals(DISPOSAL_RESTORE_TO_PREVIOUS)) {
+            if (null == previous) {
+                previous = createCanvas();
+            }
+            master.copyData(previous.getRaster());
+        }
+
+        Graphics2D graphics = master.createGraphics();
+        graphics.drawImage(image, x, y, null);
+        graphics.dispose();
+
+        lastDisposal = disposal;
+        lastx = x;
+        lasty = y;
+        lastWidth = image.getWidth();
+        lastHeight = image.getHeight();
+        frameIndex++;
+        if (null != rasterPool) {
+            rasterPool.returnImage(image);
+        }
+
+        return new ImageFrame(master, delay, disposal, lastWidth, lastHeight);
+    }
+
+    /**
+     * Lets the frame be decoded into an image borrowed from the raster pool.
+     */
+    private ImageReadParam getReadParam(int index) throws IOException {
+        ImageReadParam param = reader.getDefaultReadParam();
+        if (null != rasterPool) {
+            param.setDestination(rasterPool.borrowImage(
+                    reader.getImageTypes(index).next(), 
+                    reader.getWidth(index), 
+                    reader.getHeight(index)));
+        }
+        return param;
+    }
+
+    private BufferedImage createCanvas() {
+        if (null == rasterPool) {
+            return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        }
+        return rasterPool.borrowImage(width, height, BufferedImage.TYPE_INT_ARGB);
+    }
+
+    /**
+     * Reads the delays of all frames from their headers, without decoding 
+     * any of them. Frames can still be read afterwards.
+     * 
+     * @return delay of every frame, in 1/100 second.
+     */
+    public int[] readFrameDelays() throws IOException {
+        if (null == reader) {
+            openReader();
+        }
+        int[] delays = new int[reader.getNumImages(true)];
+        for (int i = 0; i < delays.length; i++) {
+            IIOMetadataNode gce = getGraphicControlExtension(getImageMetadata(i));
+            if (null != gce) {
+                delays[i] = Integer.valueOf(gce.getAttribute("delayTime"));
+            }
+        }
+        return delays;
+    }
+
+    private IIOMetadataNode getImageMetadata(int index) throws IOException {
+        return (IIOMetadataNode) reader.getImageMetadata(index).getAsTree("javax_imageio_gif_image_1.0");
+    }
+
+    private IIOMetadataNode getGraphicControlExtension(IIOMetadataNode root) {
+        return (IIOMetadataNode) root.getElementsByTagName("GraphicControlExtension").item(0);
+    }
+
+    private void openReader() throws IOException {
+        if (null == imageIOPool) {
+            reader = (ImageReader) ImageIO.getImageReadersByFormatName("gif").next();
+        } else {
+            reader = imageIOPool.borrowReader(ImageFormat.GIF);
+        }
+        imageInputStream = new MemoryCacheImageInputStream(stream);
+        reader.setInput(imageInputStream);
+
+        IIOMetadata metadata = reader.getStreamMetadata();
 
         if(metadata != null) {
             IIOMetadataNode globalRoot = (IIOMetadataNode) metadata.getAsTree(metadata.getNativeMetadataFormatName());
@@ -87,100 +304,60 @@ public class GifFrameReader {
                 }
             }
         }
+    }
 
-        BufferedImage master = null;
-        boolean hasBackround = false;
-
-        for (int frameIndex = 0;; frameIndex++) {
-            BufferedImage image;
-            try{
-                image = reader.read(frameIndex);
-            }catch (IndexOutOfBoundsException io){
-                break;
-            }
-
-            if (width == -1 || height == -1){
-                width = image.getWidth();
-                height = image.getHeight();
-            }
-
-            IIOMetadataNode root = (IIOMetadataNode) reader.getImageMetadata(frameIndex).getAsTree("javax_imageio_gif_image_1.0");
-            IIOMetadataNode gce = (IIOMetadataNode) root.getElementsByTagName("GraphicControlExtension").item(0);
-            NodeList children = root.getChildNodes();
-
-            int delay = Integer.valueOf(gce.getAttribute("delayTime"));
-
-            String disposal = gce.getAttribute("disposalMethod");
-
-            if (master == null){
-                master = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-                master.createGraphics().setColor(backgroundColor);
-                master.createGraphics().fillRect(0, 0, master.getWidth(), master.getHeight());
-
-                hasBackround = image.getWidth() == width && image.getHeight() == height;
-
-                master.createGraphics().drawImage(image, 0, 0, null);
-            }else{
-                int x = 0;
-                int y = 0;
-
-                for (int nodeIndex = 0; nodeIndex < children.getLength(); nodeIndex++){
-                    Node nodeItem = children.item(nodeIndex);
-
-                    if (nodeItem.getNodeName().equals("ImageDescriptor")){
-                        NamedNodeMap map = nodeItem.getAttributes();
-
-                        x = Integer.valueOf(map.getNamedItem("imageLeftPosition").getNodeValue());
-                        y = Integer.valueOf(map.getNamedItem("imageTopPosition").getNodeValue());
-                    }
-                }
-
-                if (disposal.equals("restoreToPrevious")){
-                    BufferedImage from = null;
-                    for (int i = frameIndex - 1; i >= 0; i--){
-                        if (!frames.get(i).getDisposal().equals("restoreToPrevious") || frameIndex == 0){
-                            from = frames.get(i).getImage();
-                            break;
-                        }
-                    }
-
-                    {
-                        ColorModel model = from.getColorModel();
-                        boolean alpha = from.isAlphaPremultiplied();
-                        WritableRaster raster = from.copyData(null);
-                        master = new BufferedImage(model, raster, alpha, null);
-                    }
-                }else if (disposal.equals("restoreToBackgroundColor") && backgroundColor != null){
-                    if (!hasBackround || frameIndex > 1){
-                        master.createGraphics().fillRect(lastx, lasty, frames.get(frameIndex - 1).getWidth(), frames.get(frameIndex - 1).getHeight());
-                    }
-                }
-                master.createGraphics().drawImage(image, x, y, null);
-
-                lastx = x;
-                lasty = y;
-            }
-
-            {
-                BufferedImage copy;
+    /**
+     * Applies the disposal method of the previously drawn frame, which per the
+     * GIF spec takes effect before the next frame is rendered.
+     */
+    private void disposeLastFrame() {
+        if (lastDisposal.equals(DISPOSAL_RESTORE_TO_BACKGROUND)) {
+            fillCanvas(lastx, lasty, lastWidth, lastHeight);
+        } else if (lastDisposal.equals(DISPOSAL_RESTORE_TO_PREVIOUS) && null != previous) {
+            previous.copyData(master.getRaster());
+        }
+    }
 
-                {
-                    ColorModel model = master.getColorModel();
-                    boolean alpha = master.isAlphaPremultiplied();
-                    WritableRaster raster = master.copyData(null);
-                    copy = new BufferedImage(model, raster, alpha, null);
-                }
-                frames.add(new ImageFrame(copy, delay, disposal, image.getWidth(), image.getHeight()));
-            }
-            master.flush();
+    private void fillCanvas(int x, int y, int w, int h) {
+        Graphics2D graphics = master.createGraphics();
+        if (null != backgroundColor) {
+            graphics.setColor(backgroundColor);
+        } else {
+            graphics.setComposite(AlphaComposite.Clear);
         }
-        reader.dispose();
+        graphics.fillRect(x, y, w, h);
+        graphics.dispose();
+    }
 
-        return Collections.unmodifiableList(frames);
+    private BufferedImage copyImage(BufferedImage image) {
+        ColorModel model = image.getColorModel();
+        boolean alpha = image.isAlphaPremultiplied();
+        WritableRaster raster = image.copyData(null);
+        return new BufferedImage(model, raster, alpha, null);
     }
 
     public void close() throws IOException {
+        if (null != reader) {
+            if (null == imageIOPool) {
+                reader.dispose();
+            } else {
+                imageIOPool.returnReader(ImageFormat.GIF, reader);
+            }
+        }
+        if (null != imageInputStream) {
+            imageInputStream.close();
+        }
         stream.close();
+        if (null != rasterPool) {
+            if (null != master) {
+                rasterPool.returnImage(master);
+            }
+            if (null != previous) {
+                rasterPool.returnImage(previous);
+            }
+        }
+        master = null;
+        previous = null;
     }
 
 }
@@ -1,5 +1,7 @@
 package com.images3.data.impl;
 
+import com.images3.common.ImageFormat;
+
 import javax.imageio.*;
 import javax.imageio.metadata.IIOMetadata;
 import javax.imageio.metadata.IIOMetadataNode;
@@ -14,7 +16,9 @@ public class GifFrameWriter {
     private final ImageWriter gifWriter;
     private final ImageWriteParam imageWriteParam;
     private final IIOMetadata imageMetaData;
+    private final IIOMetadataNode imageMetaDataRoot;
     private final ImageOutputStream outputStream;
+    private final ImageIOPool imageIOPool;
 
     public GifFrameWriter(String path,
                           int imageType,
@@ -30,9 +34,42 @@ public class GifFrameWriter {
             int timeBetweenFramesMS,
             boolean loopContinuously,
             String disposalMethod) throws IIOException, IOException {
-        outputStream = new FileImageOutputStream(file);
+        this(file, null, imageType, timeBetweenFramesMS, loopContinuously, disposalMethod);
+    }
+
+    /**
+     * @param imageIOPool pool to borrow the GIF image writer from,
+     *                    or null to look one up in the registry.
+     */
+    public GifFrameWriter (
+            File file,
+            ImageIOPool imageIOPool,
+            int imageType,
+            int timeBetweenFramesMS,
+            boolean loopContinuously,
+            String disposalMethod) throws IIOException, IOException {
+        this(new FileImageOutputStream(file), imageIOPool, imageType, 
+                timeBetweenFramesMS, loopContinuously, disposalMethod);
+    }
+
+    /**
+     * @param outputStream stream the GIF is written to, closed together with this writer.
+     */
+    public GifFrameWriter (
+            ImageOutputStream outputStream,
+            ImageIOPool imageIOPool,
+            int imageType,
+            int timeBetweenFramesMS,
+            boolean loopContinuously,
+            String disposalMethod) throws IIOException, IOException {
+        this.outputStream = outputStream;
+        this.imageIOPool = imageIOPool;
         // my method to create a writer
-        gifWriter = getWriter();
+        if (null == imageIOPool) {
+            gifWriter = getWriter();
+        } else {
+            gifWriter = imageIOPool.borrowWriter(ImageFormat.GIF);
+        }
         imageWriteParam = gifWriter.getDefaultWriteParam();
         ImageTypeSpecifier imageTypeSpecifier =
                 ImageTypeSpecifier.createFromBufferedImageType(imageType);
@@ -81,6 +118,7 @@ public class GifFrameWriter {
         appEntensionsNode.appendChild(child);
 
         imageMetaData.setFromTree(metaFormatName, root);
+        imageMetaDataRoot = root;
 
         gifWriter.setOutput(outputStream);
         gifWriter.prepareWriteSequence(null);
@@ -100,6 +138,26 @@ public class GifFrameWriter {
                 imageWriteParam);
     }
 
+    /**
+     * Writes a frame with its own delay and disposal method instead of the
+     * ones this writer was created with.
+     */
+    public void writeToSequence(RenderedImage img,
+                                int timeBetweenFramesMS,
+                                String disposalMethod) throws IOException {
+        IIOMetadataNode graphicsControlExtensionNode = getNode(
+                imageMetaDataRoot,
+                "GraphicControlExtension");
+        graphicsControlExtensionNode.setAttribute("disposalMethod", disposalMethod);
+        graphicsControlExtensionNode.setAttribute(
+                "delayTime",
+                Integer.toString(timeBetweenFramesMS / 10));
+        imageMetaData.setFromTree(
+                imageMetaData.getNativeMetadataFormatName(),
+                imageMetaDataRoot);
+        writeToSequence(img);
+    }
+
     /**
      * Close this GifFrameWriter object. This does not close the underlying
      * stream, just finishes off the GIF.
@@ -107,6 +165,9 @@ public class GifFrameWriter {
     public void close() throws IOException {
         gifWriter.endWriteSequence();
         outputStream.close();
+        if (null != imageIOPool) {
+            imageIOPool.returnWriter(ImageFormat.GIF, gifWriter);
+        }
     }
 
     /**
@@ -0,0 +1,234 @@
+/*******************************************************************************
+ * Copyright 2014 Rui Sun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.images3.data.impl;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import org.w3c.dom.NodeList;
+
+import com.images3.common.ChromaSubsampling;
+import com.images3.common.EncodingConfig;
+import com.images3.common.ImageFormat;
+
+/**
+ * Writes an image with the encoder settings of a template applied through 
+ * ImageWriteParam and, for JPEG, the image metadata. 
+ * 
+ * PNG writers only take a compression level since Java 9; with older 
+ * ones the image data written by the writer is deflated again at the 
+ * template's level.
+ */
+public class ImageEncoder {
+    
+    private static final String JPEG_METADATA_FORMAT = "javax_imageio_jpeg_image_1.0";
+    private static final int PNG_COMPRESSION_LEVEL_MAX = 9;
+    private static final int PNG_SIGNATURE_LENGTH = 8;
+    private static final int PNG_IDAT = 0x49444154;
+
+    public void write(ImageWriter writer, BufferedImage image, ImageFormat format, 
+            EncodingConfig encodingConfig) throws IOException {
+        if (null == encodingConfig) {
+            writer.write(image);
+            return;
+        }
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        IIOMetadata metadata = null;
+        if (format == ImageFormat.JPEG) {
+            setJpegParam(param, encodingConfig);
+            metadata = getJpegMetadata(writer, image, param, encodingConfig);
+        } else if (format == ImageFormat.PNG && !setPngParam(param, encodingConfig)) {
+            writeDeflatedPng(writer, image, encodingConfig.getPngCompressionLevel());
+            return;
+        }
+        writer.write(null, new IIOImage(image, null, metadata), param);
+    }
+    
+    private void setJpegParam(ImageWriteParam param, EncodingConfig encodingConfig) {
+        if (encodingConfig.getJpegQuality() != EncodingConfig.DEFAULT_JPEG_QUALITY) {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(encodingConfig.getJpegQuality() / 100f);
+        }
+        if (encodingConfig.isProgressive() && param.canWriteProgressive()) {
+            param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+        }
+    }
+    
+    /**
+     * The deflate level is mapped onto the compression quality, which 
+     * PNG writers support since Java 9. 
+     * 
+     * @return false if the writer can't take the level.
+     */
+    private boolean setPngParam(ImageWriteParam param, EncodingConfig encodingConfig) {
+        if (encodingConfig.getPngCompressionLevel() == EncodingConfig.DEFAULT_PNG_COMPRESSION_LEVEL) {
+            return true;
+        }
+        if (!param.canWriteCompressed()) {
+            return false;
+        }
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(
+                1f - (float) encodingConfig.getPngCompressionLevel() / PNG_COMPRESSION_LEVEL_MAX);
+        return true;
+    }
+    
+    /**
+     * Writes the PNG to memory first, and then to the writer's output 
+     * with its image data deflated at the given level.
+     */
+    private void writeDeflatedPng(ImageWriter writer, BufferedImage image, int level) throws IOException {
+        Object output = writer.getOutput();
+        if (!(output instanceof ImageOutputStream)) {
+            writer.write(image);
+            return;
+        }
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageOutputStream buffer = new MemoryCacheImageOutputStream(png);
+        try {
+            writer.setOutput(buffer);
+            writer.write(image);
+        } finally {
+            buffer.close();
+            writer.setOutput(output);
+        }
+        ((ImageOutputStream) output).write(deflatePng(png.toByteArray(), level));
+    }
+    
+    /**
+     * Replaces the IDAT chunks of a PNG, which hold the zlib stream of the 
+     * image data, with a single chunk deflated at the given level. Other 
+     * chunks are copied as they are.
+     */
+    private byte[] deflatePng(byte[] png, int level) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(png));
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream(png.length);
+        DataOutputStream out = new DataOutputStream(deflated);
+        byte[] signature = new byte[PNG_SIGNATURE_LENGTH];
+        in.readFully(signature);
+        out.write(signature);
+        ByteArrayOutputStream imageData = null;
+        while (in.available() > 0) {
+            int length = in.readInt();
+            int type = in.readInt();
+            byte[] data = new byte[length];
+            in.readFully(data);
+            int crc = in.readInt();
+            if (type == PNG_IDAT) {
+                if (null == imageData) {
+                    imageData = new ByteArrayOutputStream();
+                }
+                imageData.write(data);
+                continue;
+            }
+            if (null != imageData) {
+                writePngChunk(out, PNG_IDAT, deflate(imageData.toByteArray(), level));
+                imageData = null;
+            }
+            out.writeInt(length);
+            out.writeInt(type);
+            out.write(data);
+            out.writeInt(crc);
+        }
+        out.flush();
+        return deflated.toByteArray();
+    }
+    
+    private byte[] deflate(byte[] zlibData, int level) throws IOException {
+        Deflater deflater = new Deflater(level);
+        try {
+            ByteArrayOutputStream deflated = new ByteArrayOutputStream(zlibData.length);
+            DeflaterOutputStream out = new DeflaterOutputStream(deflated, deflater);
+            InputStream in = new InflaterInputStream(new ByteArrayInputStream(zlibData));
+            byte[] buffer = new byte[8192];
+            int count = 0;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            out.finish();
+            return deflated.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+    
+    private void writePngChunk(DataOutputStream out, int type, byte[] data) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(new byte[] {
+                (byte) (type >>> 24), (byte) (type >>> 16), (byte) (type >>> 8), (byte) type});
+        crc.update(data);
+        out.writeInt(data.length);
+        out.writeInt(type);
+        out.write(data);
+        out.writeInt((int) crc.getValue());
+    }
+    
+    private IIOMetadata getJpegMetadata(ImageWriter writer, BufferedImage image, 
+            ImageWriteParam param, EncodingConfig encodingConfig) throws IOException {
+        if (encodingConfig.getChromaSubsampling() == ChromaSubsampling.DEFAULT) {
+            return null;
+        }
+        IIOMetadata metadata = writer.getDefaultImageMetadata(
+                ImageTypeSpecifier.createFromRenderedImage(image), param);
+        IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(JPEG_METADATA_FORMAT);
+        setChromaSubsampling(root, encodingConfig.getChromaSubsampling());
+        metadata.setFromTree(JPEG_METADATA_FORMAT, root);
+        return metadata;
+    }
+    
+    /**
+     * Chroma subsampling is expressed through the sampling factors of the 
+     * luma component; both chroma components are sampled once.
+     */
+    private void setChromaSubsampling(IIOMetadataNode root, ChromaSubsampling chromaSubsampling) {
+        NodeList components = root.getElementsByTagName("componentSpec");
+        if (components.getLength() < 3) {
+            return;
+        }
+        int horizontal = 1;
+        int vertical = 1;
+        if (chromaSubsampling == ChromaSubsampling.YUV422) {
+            horizontal = 2;
+        } else if (chromaSubsampling == ChromaSubsampling.YUV420) {
+            horizontal = 2;
+            vertical = 2;
+        }
+        for (int i = 0; i < components.getLength(); i++) {
+            IIOMetadataNode component = (IIOMetadataNode) components.item(i);
+            component.setAttribute("HsamplingFactor", String.valueOf(i == 0 ? horizontal : 1));
+            component.setAttribute("VsamplingFactor", String.valueOf(i == 0 ? vertical : 1));
+        }
+    }
+    
+}
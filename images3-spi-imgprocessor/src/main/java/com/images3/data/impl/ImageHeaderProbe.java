@@ -0,0 +1,426 @@
+/*******************************************************************************
+ * Copyright 2014 Rui Sun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.images3.data.impl;
+
+import java.awt.color.ColorSpace;
+import java.awt.image.ColorModel;
+import java.awt.image.IndexColorModel;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+import com.images3.common.ImageColorType;
+import com.images3.common.ImageDimension;
+import com.images3.common.ImageFormat;
+import com.images3.common.ImageMetadata;
+import com.images3.common.ImageProbe;
+
+/**
+ * Reads format, dimensions, frame count, alpha and color type of an image 
+ * in a single pass over its header. JPEG, PNG, GIF and BMP headers are parsed 
+ * directly; ImageIO is only used when a header can't be recognized.
+ */
+public class ImageHeaderProbe {
+    
+    private static final int PNG_COLOR_GRAYSCALE = 0;
+    private static final int PNG_COLOR_RGB = 2;
+    private static final int PNG_COLOR_INDEXED = 3;
+    private static final int PNG_COLOR_GRAYSCALE_ALPHA = 4;
+    private static final int PNG_COLOR_RGB_ALPHA = 6;
+    
+    private static final int GIF_EXTENSION = 0x21;
+    private static final int GIF_IMAGE_DESCRIPTOR = 0x2C;
+    private static final int GIF_TRAILER = 0x3B;
+    private static final int GIF_GRAPHIC_CONTROL_EXTENSION = 0xF9;
+
+    /**
+     * @return the probe, or null if the file isn't a supported image.
+     */
+    public ImageProbe probe(File imageFile) {
+        try {
+            ImageProbe probe = probeHeader(
+                    new BufferedInputStream(Files.newInputStream(imageFile.toPath())), 
+                    imageFile.length());
+            if (null == probe) {
+                probe = probeWithImageIO(ImageIO.createImageInputStream(imageFile), imageFile.length());
+            }
+            return probe;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+    
+    /**
+     * Probes the remaining bytes of the given buffer without changing its position.
+     * 
+     * @return the probe, or null if the content isn't a supported image.
+     */
+    public ImageProbe probe(ByteBuffer imageContent) {
+        try {
+            long size = imageContent.remaining();
+            ImageProbe probe = probeHeader(new ByteBufferInputStream(imageContent.duplicate()), size);
+            if (null == probe) {
+                probe = probeWithImageIO(
+                        new MemoryCacheImageInputStream(
+                                new ByteBufferInputStream(imageContent.duplicate())), size);
+            }
+            return probe;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+    
+    private ImageProbe probeHeader(InputStream stream, long size) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        try {
+            int b0 = in.read();
+            int b1 = in.read();
+            if (b0 == 0xFF && b1 == 0xD8) {
+                return probeJPEG(in, size);
+            }
+            if (b0 == 0x89 && b1 == 'P') {
+                return probePNG(in, size);
+            }
+            if (b0 == 'G' && b1 == 'I') {
+                return probeGIF(in, size);
+            }
+            if (b0 == 'B' && b1 == 'M') {
+                return probeBMP(in, size);
+            }
+        } catch (EOFException e) {
+            //truncated header, let ImageIO decide.
+        } finally {
+            in.close();
+        }
+        return null;
+    }
+    
+    private ImageProbe probeJPEG(DataInputStream in, long size) throws IOException {
+        while (true) {
+            int marker = in.readUnsignedByte();
+            if (marker != 0xFF) {
+                continue;
+            }
+            while (marker == 0xFF) {
+                marker = in.readUnsignedByte();
+            }
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD8)) {
+                continue; //stand-alone markers.
+            }
+            if (marker == 0xD9 || marker == 0xDA) {
+                return null; //end of image or start of scan before any frame header.
+            }
+            int length = in.readUnsignedShort();
+            if (isStartOfFrame(marker)) {
+                in.readUnsignedByte(); //sample precision
+                int height = in.readUnsignedShort();
+                int width = in.readUnsignedShort();
+                int components = in.readUnsignedByte();
+                ImageColorType colorType = ImageColorType.UNKNOWN;
+                if (components == 1) {
+                    colorType = ImageColorType.GRAYSCALE;
+                } else if (components == 3) {
+                    colorType = ImageColorType.YCBCR;
+                } else if (components == 4) {
+                    colorType = ImageColorType.CMYK;
+                }
+                return createProbe(ImageFormat.JPEG, width, height, size, 1, false, colorType);
+            }
+            skipFully(in, length - 2);
+        }
+    }
+    
+    private boolean isStartOfFrame(int marker) {
+        return marker >= 0xC0 && marker <= 0xCF
+                && marker != 0xC4 //huffman table
+                && marker != 0xC8 //reserved
+                && marker != 0xCC; //arithmetic coding conditioning
+    }
+    
+    private ImageProbe probePNG(DataInputStream in, long size) throws IOException {
+        if (in.readUnsignedByte() != 'N' 
+                || in.readUnsignedByte() != 'G') {
+            return null;
+        }
+        skipFully(in, 4);
+        int length = in.readInt();
+        if (readChunkType(in) != 0x49484452) { //IHDR
+            return null;
+        }
+        int width = in.readInt();
+        int height = in.readInt();
+        in.readUnsignedByte(); //bit depth
+        int pngColorType = in.readUnsignedByte();
+        skipFully(in, length - 10 + 4); //rest of IHDR and its CRC
+        
+        boolean hasTransparency = false;
+        int numberOfFrames = 1;
+        while (true) {
+            length = in.readInt();
+            int chunkType = readChunkType(in);
+            if (chunkType == 0x49444154 //IDAT
+                    || chunkType == 0x49454E44) { //IEND
+                break;
+            }
+            if (chunkType == 0x74524E53) { //tRNS
+                hasTransparency = true;
+            } else if (chunkType == 0x6163544C) { //acTL
+                numberOfFrames = in.readInt();
+                length -= 4;
+            }
+            skipFully(in, (long) length + 4);
+        }
+        
+        ImageColorType colorType = ImageColorType.UNKNOWN;
+        boolean hasAlpha = hasTransparency;
+        switch (pngColorType) {
+        case PNG_COLOR_GRAYSCALE:
+            colorType = ImageColorType.GRAYSCALE;
+            break;
+        case PNG_COLOR_RGB:
+            colorType = ImageColorType.RGB;
+            break;
+        case PNG_COLOR_INDEXED:
+            colorType = ImageColorType.INDEXED;
+            break;
+        case PNG_COLOR_GRAYSCALE_ALPHA:
+            colorType = ImageColorType.GRAYSCALE;
+            hasAlpha = true;
+            break;
+        case PNG_COLOR_RGB_ALPHA:
+            colorType = ImageColorType.RGB;
+            hasAlpha = true;
+            break;
+        }
+        return createProbe(ImageFormat.PNG, width, height, size, numberOfFrames, hasAlpha, colorType);
+    }
+    
+    private int readChunkType(DataInputStream in) throws IOException {
+        return in.readInt();
+    }
+    
+    private ImageProbe probeGIF(DataInputStream in, long size) throws IOException {
+        if (in.readUnsignedByte() != 'F' 
+                || in.readUnsignedByte() != '8') {
+            return null;
+        }
+        skipFully(in, 2); //version "7a" or "9a"
+        int width = readUnsignedShortLE(in);
+        int height = readUnsignedShortLE(in);
+        int packed = in.readUnsignedByte();
+        skipFully(in, 2); //background color index, pixel aspect ratio
+        skipColorTable(in, packed);
+        
+        boolean hasAlpha = false;
+        int numberOfFrames = 0;
+        try {
+            boolean isFinished = false;
+            while (!isFinished) {
+                int block = in.readUnsignedByte();
+                if (block == GIF_EXTENSION) {
+                    int label = in.readUnsignedByte();
+                    if (label == GIF_GRAPHIC_CONTROL_EXTENSION) {
+                        int blockSize = in.readUnsignedByte();
+                        int gcePacked = in.readUnsignedByte();
+                        hasAlpha |= (gcePacked & 0x01) != 0;
+                        skipFully(in, blockSize - 1);
+                    }
+                    skipSubBlocks(in);
+                } else if (block == GIF_IMAGE_DESCRIPTOR) {
+                    skipFully(in, 8); //left, top, width, height
+                    skipColorTable(in, in.readUnsignedByte());
+                    in.readUnsignedByte(); //LZW minimum code size
+                    skipSubBlocks(in);
+                    numberOfFrames++;
+                } else {
+                    isFinished = true; //trailer or garbage after the last frame.
+                }
+            }
+        } catch (EOFException e) {
+            //truncated after the last complete frame, which decoders tolerate.
+        }
+        if (numberOfFrames == 0) {
+            return null;
+        }
+        return createProbe(ImageFormat.GIF, width, height, size, 
+                numberOfFrames, hasAlpha, ImageColorType.INDEXED);
+    }
+    
+    private void skipColorTable(DataInputStream in, int packed) throws IOException {
+        if ((packed & 0x80) != 0) {
+            skipFully(in, 3 * (1 << ((packed & 0x07) + 1)));
+        }
+    }
+    
+    private void skipSubBlocks(DataInputStream in) throws IOException {
+        int length = in.readUnsignedByte();
+        while (length > 0) {
+            skipFully(in, length);
+            length = in.readUnsignedByte();
+        }
+    }
+    
+    private ImageProbe probeBMP(DataInputStream in, long size) throws IOException {
+        skipFully(in, 12); //file size, reserved, pixel data offset
+        int headerSize = readIntLE(in);
+        int width;
+        int height;
+        int bitsPerPixel;
+        boolean hasAlpha = false;
+        if (headerSize == 12) { //OS/2 BITMAPCOREHEADER
+            width = readUnsignedShortLE(in);
+            height = readUnsignedShortLE(in);
+            skipFully(in, 2); //planes
+            bitsPerPixel = readUnsignedShortLE(in);
+        } else if (headerSize >= 40) {
+            width = readIntLE(in);
+            height = Math.abs(readIntLE(in)); //negative for top-down bitmaps
+            skipFully(in, 2); //planes
+            bitsPerPixel = readUnsignedShortLE(in);
+            if (headerSize >= 56 && bitsPerPixel == 32) {
+                skipFully(in, 4 + 4 + 4 + 4 + 4 + 4); //compression to important colors
+                skipFully(in, 4 + 4 + 4); //red, green and blue masks
+                hasAlpha = readIntLE(in) != 0;
+            }
+        } else {
+            return null;
+        }
+        ImageColorType colorType = bitsPerPixel <= 8 ? ImageColorType.INDEXED : ImageColorType.RGB;
+        return createProbe(ImageFormat.BMP, width, height, size, 1, hasAlpha, colorType);
+    }
+    
+    private ImageProbe probeWithImageIO(ImageInputStream imageInputStream, long size) throws IOException {
+        if (null == imageInputStream) {
+            return null;
+        }
+        ImageReader imageReader = null;
+        try {
+            Iterator<ImageReader> imageReaders = ImageIO.getImageReaders(imageInputStream);
+            if (!imageReaders.hasNext()) {
+                return null;
+            }
+            imageReader = imageReaders.next();
+            imageReader.setInput(imageInputStream);
+            ImageFormat format = getImageFormat(imageReader.getFormatName());
+            if (null == format) {
+                return null;
+            }
+            ImageTypeSpecifier type = imageReader.getRawImageType(0);
+            if (null == type) {
+                type = imageReader.getImageTypes(0).next();
+            }
+            ColorModel colorModel = type.getColorModel();
+            return createProbe(
+                    format, 
+                    imageReader.getWidth(0), 
+                    imageReader.getHeight(0), 
+                    size, 
+                    imageReader.getNumImages(true), 
+                    colorModel.hasAlpha(), 
+                    getColorType(colorModel));
+        } catch (IOException e) {
+            return null; //a reader exists, but the content is unreadable.
+        } finally {
+            if (null != imageReader) {
+                imageReader.dispose();
+            }
+            imageInputStream.close();
+        }
+    }
+    
+    private ImageFormat getImageFormat(String formatName) {
+        if (formatName.equalsIgnoreCase("JPEG")) {
+            return ImageFormat.JPEG;
+        } else if (formatName.equalsIgnoreCase("png")) {
+            return ImageFormat.PNG;
+        } else if (formatName.equalsIgnoreCase("bmp")) {
+            return ImageFormat.BMP;
+        } else if (formatName.equalsIgnoreCase("gif")) {
+            return ImageFormat.GIF;
+        }
+        return null;
+    }
+    
+    private ImageColorType getColorType(ColorModel colorModel) {
+        if (colorModel instanceof IndexColorModel) {
+            return ImageColorType.INDEXED;
+        }
+        switch (colorModel.getColorSpace().getType()) {
+        case ColorSpace.TYPE_GRAY:
+            return ImageColorType.GRAYSCALE;
+        case ColorSpace.TYPE_RGB:
+            return ImageColorType.RGB;
+        case ColorSpace.TYPE_YCbCr:
+            return ImageColorType.YCBCR;
+        case ColorSpace.TYPE_CMYK:
+            return ImageColorType.CMYK;
+        default:
+            return ImageColorType.UNKNOWN;
+        }
+    }
+    
+    private ImageProbe createProbe(ImageFormat format, int width, int height, long size,
+            int numberOfFrames, boolean hasAlpha, ImageColorType colorType) {
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+        ImageMetadata metadata = new ImageMetadata(new ImageDimension(width, height), format, size);
+        return new ImageProbe(metadata, numberOfFrames, hasAlpha, colorType);
+    }
+    
+    private int readUnsignedShortLE(DataInputStream in) throws IOException {
+        int b0 = in.readUnsignedByte();
+        int b1 = in.readUnsignedByte();
+        return (b1 << 8) | b0;
+    }
+    
+    private int readIntLE(DataInputStream in) throws IOException {
+        int b0 = in.readUnsignedByte();
+        int b1 = in.readUnsignedByte();
+        int b2 = in.readUnsignedByte();
+        int b3 = in.readUnsignedByte();
+        return (b3 << 24) | (b2 << 16) | (b1 << 8) | b0;
+    }
+    
+    private void skipFully(DataInputStream in, long bytes) throws IOException {
+        if (bytes < 0) {
+            throw new EOFException("Malformed header");
+        }
+        while (bytes > 0) {
+            long skipped = in.skip(bytes);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException();
+                }
+                skipped = 1;
+            }
+            bytes -= skipped;
+        }
+    }
+    
+}
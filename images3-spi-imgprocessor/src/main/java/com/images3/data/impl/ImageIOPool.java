@@ -0,0 +1,154 @@
+/*******************************************************************************
+ * Copyright 2014 Rui Sun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.images3.data.impl;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.IIOException;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.spi.ImageWriterSpi;
+
+import com.images3.common.ImageFormat;
+
+/**
+ * Keeps idle ImageReader and ImageWriter instances per format so they can be 
+ * reset and reused instead of being looked up through the synchronized 
+ * IIORegistry for every image. 
+ * 
+ * A borrowed instance belongs to the borrowing thread until it is returned.
+ */
+public class ImageIOPool {
+    
+    private final Map<ImageFormat, ImageReaderSpi> readerSpis;
+    private final Map<ImageFormat, ImageWriterSpi> writerSpis;
+    private final Map<ImageFormat, BlockingQueue<ImageReader>> idleReaders;
+    private final Map<ImageFormat, BlockingQueue<ImageWriter>> idleWriters;
+    
+    private final AtomicLong readerHits = new AtomicLong();
+    private final AtomicLong readerMisses = new AtomicLong();
+    private final AtomicLong writerHits = new AtomicLong();
+    private final AtomicLong writerMisses = new AtomicLong();
+    
+    /**
+     * @param maxIdlePerFormat maximum number of idle readers, and of idle writers, 
+     *                         kept for each format.
+     */
+    public ImageIOPool(int maxIdlePerFormat) {
+        checkForMaxIdle(maxIdlePerFormat);
+        readerSpis = new EnumMap<ImageFormat, ImageReaderSpi>(ImageFormat.class);
+        writerSpis = new EnumMap<ImageFormat, ImageWriterSpi>(ImageFormat.class);
+        idleReaders = new EnumMap<ImageFormat, BlockingQueue<ImageReader>>(ImageFormat.class);
+        idleWriters = new EnumMap<ImageFormat, BlockingQueue<ImageWriter>>(ImageFormat.class);
+        for (ImageFormat format: ImageFormat.values()) {
+            idleReaders.put(format, new ArrayBlockingQueue<ImageReader>(maxIdlePerFormat));
+            idleWriters.put(format, new ArrayBlockingQueue<ImageWriter>(maxIdlePerFormat));
+            Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName(format.toString());
+            if (readers.hasNext()) {
+                ImageReader reader = readers.next();
+                readerSpis.put(format, reader.getOriginatingProvider());
+                idleReaders.get(format).offer(reader);
+            }
+            Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format.toString());
+            if (writers.hasNext()) {
+                ImageWriter writer = writers.next();
+                writerSpis.put(format, writer.getOriginatingProvider());
+                idleWriters.get(format).offer(writer);
+            }
+        }
+    }
+    
+    private void checkForMaxIdle(int maxIdlePerFormat) {
+        if (maxIdlePerFormat < 1) {
+            throw new IllegalArgumentException(
+                    "Maximum idle instances must be at least 1, " + maxIdlePerFormat);
+        }
+    }
+    
+    public ImageReader borrowReader(ImageFormat format) throws IOException {
+        ImageReader reader = idleReaders.get(format).poll();
+        if (null != reader) {
+            readerHits.incrementAndGet();
+            return reader;
+        }
+        readerMisses.incrementAndGet();
+        ImageReaderSpi spi = readerSpis.get(format);
+        if (null == spi) {
+            throw new IIOException("No " + format + " image reader exists");
+        }
+        return spi.createReaderInstance();
+    }
+    
+    public void returnReader(ImageFormat format, ImageReader reader) {
+        reader.reset();
+        if (!idleReaders.get(format).offer(reader)) {
+            reader.dispose();
+        }
+    }
+    
+    public ImageWriter borrowWriter(ImageFormat format) throws IOException {
+        ImageWriter writer = idleWriters.get(format).poll();
+        if (null != writer) {
+            writerHits.incrementAndGet();
+            return writer;
+        }
+        writerMisses.incrementAndGet();
+        ImageWriterSpi spi = writerSpis.get(format);
+        if (null == spi) {
+            throw new IIOException("No " + format + " image writer exists");
+        }
+        return spi.createWriterInstance();
+    }
+    
+    public void returnWriter(ImageFormat format, ImageWriter writer) {
+        writer.reset();
+        if (!idleWriters.get(format).offer(writer)) {
+            writer.dispose();
+        }
+    }
+    
+    public long getReaderHits() {
+        return readerHits.get();
+    }
+
+    public long getReaderMisses() {
+        return readerMisses.get();
+    }
+
+    public long getWriterHits() {
+        return writerHits.get();
+    }
+
+    public long getWriterMisses() {
+        return writerMisses.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ImageIOPool [readerHits=" + readerHits + ", readerMisses="
+                + readerMisses + ", writerHits=" + writerHits
+                + ", writerMisses=" + writerMisses + "]";
+    }
+    
+}
@@ -0,0 +1,32 @@
+/*******************************************************************************
+ * Copyright 2014 Rui Sun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.images3.data.impl;
+
+import com.images3.data.spi.ImageProcessor;
+
+/**
+ * Creates the image processor of a processing engine registered with 
+ * {@link ImageProcessorProvider#registerEngine(String, ImageProcessorFactory)}.
+ */
+public interface ImageProcessorFactory {
+
+    /**
+     * @param provider provider of the configuration and of the temp file 
+     *                 arena and pools the engine may share with others.
+     */
+    public ImageProcessor createImageProcessor(ImageProcessorProvider provider);
+    
+}
@@ -16,136 +16,1213 @@
 package com.images3.data.impl;
 
 import com.images3.common.*;
+import com.images3.data.ImageDecodingBudget;
+import com.images3.data.TempFile;
+import com.images3.data.TempFileArena;
 import com.images3.data.spi.ImageProcessor;
 import org.imgscalr.Scalr;
 
-import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
 import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.event.IIOReadUpdateListener;
+import javax.imageio.stream.FileImageInputStream;
+import javax.imageio.stream.FileImageOutputStream;
 import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
-import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 public class ImageProcessorImplImgscalr implements ImageProcessor {
     
-    private final String tempDir;
+    private static final int SUBSAMPLING_HEADROOM = 2;
+    private static final int PLACEHOLDER_SIZE = 32;
+    private static final float MAX_THUMBNAIL_ASPECT_DEVIATION = 0.02f;
+    
+    private final TempFileArena tempFileArena;
+    private final ImageHeaderProbe headerProbe;
+    private final ImageEncoder imageEncoder;
+    private final PixelResampler pixelResampler;
+    private final PlaceholderEncoder placeholderEncoder;
+    private final ExifThumbnailReader exifThumbnailReader;
+    private final ImageIOPool imageIOPool;
+    private final RasterPool rasterPool;
+    private final ForkJoinPool framePool;
+    private final int maxFrameParallelism;
+    private final int inMemoryThreshold;
+    private final long tiledPixelThreshold;
+    private final int stripHeight;
+    private final long bandPixelThreshold;
+    private final ProcessingCapacity processingCapacity;
     
     public ImageProcessorImplImgscalr(String tempDir) {
-        checkForDirExistence(tempDir);
-        this.tempDir = tempDir;
+        this(new Builder().setTempDir(tempDir));
     }
     
-    private void checkForDirExistence(String path) {
-        File folder = new File(path);
-        if (!folder.exists() 
-                || !folder.isDirectory()) {
-            throw new IllegalArgumentException("Directory doesn't exists " + path);
-        }
+    private ImageProcessorImplImgscalr(Builder builder) {
+        this.tempFileArena = builder.getTempFileArena();
+        this.rasterPool = builder.getRasterPool();
+        this.headerProbe = new ImageHeaderProbe();
+        this.imageEncoder = new ImageEncoder();
+        this.pixelResampler = new PixelResampler(rasterPool);
+        this.placeholderEncoder = new PlaceholderEncoder();
+        this.exifThumbnailReader = new ExifThumbnailReader();
+        this.imageIOPool = builder.getImageIOPool();
+        this.framePool = builder.getFramePool();
+        this.maxFrameParallelism = builder.getMaxFrameParallelism();
+        this.inMemoryThreshold = builder.getInMemoryThreshold();
+        this.tiledPixelThreshold = builder.getTiledPixelThreshold();
+        this.stripHeight = builder.getStripHeight();
+        this.bandPixelThreshold = builder.getBandPixelThreshold();
+        this.processingCapacity = builder.getProcessingCapacity();
     }
-
+    
+    public ImageIOPool getImageIOPool() {
+        return imageIOPool;
+    }
+    
+    public TempFileArena getTempFileArena() {
+        return tempFileArena;
+    }
+    
+    public RasterPool getRasterPool() {
+        return rasterPool;
+    }
+    
     @Override
     public boolean isSupportedFormat(File imageFile) {
-        return (null != getImageFormat(imageFile));
+        return (null != probeImage(imageFile));
+    }
+    
+    @Override
+    public ImageProbe probeImage(File imageFile) {
+        return headerProbe.probe(imageFile);
     }
 
     public ImageMetadata readImageMetadata(File imageFile) {
-        ImageMetadata metadata = null;
-        ImageInputStream imageInputStream = null;
-        ImageReader imageReader = null;
+        ImageProbe probe = probeImage(imageFile);
+        if (null == probe) {
+            throw new IllegalArgumentException(imageFile.getAbsolutePath());
+        }
+        return probe.getMetadata();
+    }
+    
+    public File resizeImage(ImageMetadata metadata, File imageFile, ResizingConfig resizingConfig) {
+        return resizeImage(metadata, imageFile, resizingConfig, false);
+    }
+    
+    /**
+     * A large master image with an explicit filter is resized in bands 
+     * on the idle workers too.
+     */
+    @Override
+    public File resizeMasterImage(ImageMetadata metadata, File imageFile, ResizingConfig resizingConfig) {
+        return resizeImage(metadata, imageFile, resizingConfig, true);
+    }
+    
+    private File resizeImage(ImageMetadata metadata, File imageFile, ResizingConfig resizingConfig, 
+            boolean isBandable) {
+        TempFile resizedImageFile = null;
+        try {
+            ImageFormat format = metadata.getFormat();
+            resizedImageFile = tempFileArena.createTempFile(metadata.getSize());
+            resizingConfig = getResizingConfig(metadata, resizingConfig);
+            if (format == ImageFormat.GIF) {
+                resizeGifImage(metadata, imageFile, resizedImageFile.getFile(), resizingConfig);
+            } else {
+                resizeNonGifImage(metadata, imageFile, resizedImageFile.getFile(), resizingConfig, isBandable);
+            }
+            return resizedImageFile.getFile();
+        } catch (IOException e) {
+            releaseTempFile(resizedImageFile);
+            throw new RuntimeException(e);
+        } catch (RuntimeException e) {
+            releaseTempFile(resizedImageFile);
+            throw e;
+        }
+    }
+
+    @Override
+    public List<File> resizeImages(ImageMetadata metadata, File imageFile, List<ResizingConfig> resizingConfigs) {
+        List<TempFile> tempFiles = new ArrayList<TempFile>(resizingConfigs.size());
+        List<File> resizedImageFiles = new ArrayList<File>(resizingConfigs.size());
         try {
-            imageInputStream = ImageIO.createImageInputStream(imageFile);
-            imageReader = getImageReader(imageFile, imageInputStream);
-            metadata = createImageMetadata(imageFile, imageReader);
+            ImageFormat format = metadata.getFormat();
+            List<ResizingConfig> configs = new ArrayList<ResizingConfig>(resizingConfigs.size());
+            for (ResizingConfig resizingConfig: resizingConfigs) {
+                configs.add(getResizingConfig(metadata, resizingConfig));
+                TempFile tempFile = tempFileArena.createTempFile(metadata.getSize());
+                tempFiles.add(tempFile);
+                resizedImageFiles.add(tempFile.getFile());
+            }
+            if (format == ImageFormat.GIF) {
+                resizeGifImages(imageFile, resizedImageFiles, configs);
+            } else {
+                resizeNonGifImages(metadata, imageFile, format, resizedImageFiles, configs);
+            }
+            return resizedImageFiles;
         } catch (IOException e) {
+            releaseTempFiles(tempFiles);
             throw new RuntimeException(e);
+        } catch (RuntimeException e) {
+            releaseTempFiles(tempFiles);
+            throw e;
+        }
+    }
+    
+    /**
+     * Releases the file through the temp file arena, which deletes it 
+     * and frees its reservation.
+     */
+    @Override
+    public void discardImage(ImageMetadata metadata, File imageFile) {
+        TempFile tempFile = tempFileArena.getTempFile(imageFile);
+        if (null != tempFile) {
+            tempFile.release();
+        } else {
+            imageFile.delete();
+        }
+    }
+    
+    /**
+     * Decodes the image subsampled close to the placeholder size, and 
+     * encodes a box-filtered thumbnail of at most 32x32 pixels.
+     */
+    @Override
+    public ImagePlaceholder createPlaceholder(ImageMetadata metadata, File imageFile) {
+        ResizingConfig resizingConfig = new ResizingConfig(
+                ResizingUnit.PIXEL, PLACEHOLDER_SIZE, PLACEHOLDER_SIZE, true);
+        BufferedImage image = null;
+        BufferedImage thumbnail = null;
+        try {
+            image = readImage(
+                    new FileImageInputStream(imageFile), 
+                    metadata.getFormat(), 
+                    getSubsamplingFactor(metadata, Collections.singletonList(resizingConfig)), 
+                    null);
+            ImageDimension target = getTargetDimension(image.getWidth(), image.getHeight(), resizingConfig);
+            thumbnail = pixelResampler.resize(
+                    image, Math.max(1, target.getWidth()), Math.max(1, target.getHeight()), 
+                    ResamplingFilter.BOX);
+            return placeholderEncoder.encode(thumbnail);
+        } catch (IOException e) {
+            return null;
+        } catch (RuntimeException e) {
+            //Decoders report truncated or corrupt content this way too.
+            return null;
         } finally {
-            if (null != imageInputStream) {
-                try {
-                    imageInputStream.close();
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
+            if (null != image) {
+                rasterPool.returnImage(image);
             }
-            if (null != imageReader) {
-                imageReader.dispose();
+            if (null != thumbnail) {
+                rasterPool.returnImage(thumbnail);
             }
         }
-        return metadata;
     }
     
-    private ImageReader getImageReader(File imageFile, ImageInputStream imageInputStream) {
-        Iterator<ImageReader> imageReaders = ImageIO.getImageReaders(imageInputStream);
-        if (!imageReaders.hasNext()) {
-            throw new IllegalArgumentException(imageFile.getAbsolutePath());
+    /**
+     * GIFs are decoded frame by frame onto a canvas, whatever their number 
+     * of frames. Other images are decoded whole, subsampled as far as the 
+     * targets allow, or in strips if they're still too big; Scalr may copy 
+     * a whole decoded image into a type it can resize.
+     */
+    @Override
+    public long getPeakDecodingMemory(ImageMetadata metadata, List<ResizingConfig> resizingConfigs) {
+        List<ResizingConfig> configs = new ArrayList<ResizingConfig>(resizingConfigs.size());
+        boolean isScalr = false;
+        for (ResizingConfig resizingConfig: resizingConfigs) {
+            configs.add(getResizingConfig(metadata, resizingConfig));
+            isScalr |= (resizingConfig.getResamplingFilter() == ResamplingFilter.DEFAULT);
         }
-        ImageReader imageReader = imageReaders.next();
-        imageReader.setInput(imageInputStream);
-        return imageReader;
+        int width = metadata.getDimension().getWidth();
+        int height = metadata.getDimension().getHeight();
+        long targetPixels = 0;
+        for (ResizingConfig resizingConfig: configs) {
+            ImageDimension target = getTargetDimension(width, height, resizingConfig);
+            targetPixels += (long) Math.max(1, target.getWidth()) * Math.max(1, target.getHeight());
+        }
+        long pixels = 0;
+        if (metadata.getFormat() == ImageFormat.GIF) {
+            int pendingFrames = (null == framePool || maxFrameParallelism == 1 ? 0 : maxFrameParallelism);
+            //the canvas and the frame being read, plus a copy of every pending frame.
+            pixels = (long) width * height * (2 + pendingFrames) 
+                    + targetPixels * Math.max(1, pendingFrames);
+        } else {
+            int subsampling = getSubsamplingFactor(metadata, configs);
+            long sampledWidth = (width + subsampling - 1) / subsampling;
+            long sampledHeight = (height + subsampling - 1) / subsampling;
+            if (sampledWidth * sampledHeight > tiledPixelThreshold) {
+                pixels = sampledWidth * stripHeight + targetPixels;
+            } else {
+                pixels = sampledWidth * sampledHeight * (isScalr ? 2 : 1) + targetPixels;
+            }
+        }
+        return pixels * ImageDecodingBudget.BYTES_PER_PIXEL;
     }
     
-    private ImageMetadata createImageMetadata(File imageFile, ImageReader imageReader) throws IOException {
-        ImageDimension dimension = new ImageDimension(imageReader.getWidth(0), imageReader.getHeight(0));
-        ImageFormat format = ImageFormat.valueOf(imageReader.getFormatName().toUpperCase());
-        return new ImageMetadata(dimension, format, imageFile.length());
+    @Override
+    public ImageProbe probeImage(ByteBuffer imageContent) {
+        return headerProbe.probe(imageContent);
     }
-
-    public File resizeImage(ImageMetadata metadata, File imageFile, ResizingConfig resizingConfig) {
+    
+    @Override
+    public EncodedImage resizeImage(ImageMetadata metadata, InputStream imageContent, 
+            ResizingConfig resizingConfig) {
+        try {
+            ByteArrayOutputStream head = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count = 0;
+            while (head.size() <= inMemoryThreshold
+                    && -1 != (count = imageContent.read(buffer))) {
+                head.write(buffer, 0, count);
+            }
+            if (head.size() <= inMemoryThreshold) {
+                return resizeImage(metadata, ByteBuffer.wrap(head.toByteArray()), resizingConfig);
+            }
+            return resizeImageThroughFiles(
+                    metadata,
+                    new SequenceInputStream(new ByteArrayInputStream(head.toByteArray()), imageContent), 
+                    resizingConfig);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+    
+    /**
+     * Decodes from and encodes to memory-cached image streams, so neither 
+     * the content nor the ImageIO stream cache touches the disk.
+     */
+    @Override
+    public EncodedImage resizeImage(ImageMetadata metadata, ByteBuffer imageContent, 
+            ResizingConfig resizingConfig) {
+        if (imageContent.remaining() > inMemoryThreshold) {
+            return resizeImageThroughFiles(
+                    metadata, new ByteBufferInputStream(imageContent.duplicate()), resizingConfig);
+        }
         try {
-            ImageFormat format = getImageFormat(imageFile);
-            String fileName = UUID.randomUUID().toString();
-            File resizedImageFile = prepareImageFile(tempDir + File.separator + fileName);
+            ImageFormat format = metadata.getFormat();
             resizingConfig = getResizingConfig(metadata, resizingConfig);
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            ImageOutputStream imageOutputStream = new MemoryCacheImageOutputStream(output);
+            InputStream input = new ByteBufferInputStream(imageContent.duplicate());
+            ImageDimension dimension = null;
             if (format == ImageFormat.GIF) {
-                resizeGifImage(metadata, imageFile, resizedImageFile, resizingConfig);
+                GifFrameReader reader = new GifFrameReader(input, imageIOPool, rasterPool);
+                dimension = resizeGifImage(reader, imageOutputStream, resizingConfig);
+                if (null == dimension) {
+                    throw new IllegalArgumentException("GIF image has no frames");
+                }
             } else {
-                resizeNonGifImage(metadata, imageFile, resizedImageFile, resizingConfig);
+                BufferedImage resizedImage = readAndResizeImages(
+                        new MemoryCacheImageInputStream(input), 
+                        metadata, 
+                        Collections.singletonList(resizingConfig), 
+                        false)[0];
+                try {
+                    writeImage(resizedImage, format, imageOutputStream, resizingConfig.getEncodingConfig());
+                    dimension = new ImageDimension(resizedImage.getWidth(), resizedImage.getHeight());
+                } finally {
+                    rasterPool.returnImage(resizedImage);
+                }
             }
-            return resizedImageFile;
+            return new EncodedImage(
+                    ByteBuffer.wrap(output.toByteArray()), 
+                    new ImageMetadata(dimension, format, output.size()));
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
+    
+    private EncodedImage resizeImageThroughFiles(ImageMetadata metadata, InputStream imageContent,
+            ResizingConfig resizingConfig) {
+        TempFile imageFile = null;
+        File resizedImageFile = null;
+        try {
+            imageFile = tempFileArena.createTempFile(metadata.getSize());
+            Files.copy(imageContent, imageFile.getFile().toPath(), StandardCopyOption.REPLACE_EXISTING);
+            resizedImageFile = resizeImage(metadata, imageFile.getFile(), resizingConfig);
+            ImageMetadata resizedMetadata = readImageMetadata(resizedImageFile);
+            byte[] content = Files.readAllBytes(resizedImageFile.toPath());
+            return new EncodedImage(ByteBuffer.wrap(content), resizedMetadata);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            releaseTempFile(imageFile);
+            if (null != resizedImageFile) {
+                tempFileArena.release(resizedImageFile);
+            }
+        }
+    }
+    
+    private void resizeNonGifImages(ImageMetadata metadata, File imageFile, ImageFormat format,
+            List<File> resizedImageFiles, List<ResizingConfig> resizingConfigs) throws IOException {
+        BufferedImage[] resizedImages = readAndResizeImages(
+                new FileImageInputStream(imageFile), metadata, resizingConfigs, false);
+        try {
+            checkForInterruption();
+            for (int i = 0; i < resizedImages.length; i++) {
+                writeImage(resizedImages[i], format, resizedImageFiles.get(i), 
+                        resizingConfigs.get(i).getEncodingConfig());
+            }
+        } finally {
+            returnImages(resizedImages);
+        }
+    }
+    
+    private void resizeGifImages(File imageFile,
+            List<File> resizedImageFiles, List<ResizingConfig> resizingConfigs) throws IOException {
+        GifFrameReader reader = new GifFrameReader(imageFile, imageIOPool, rasterPool);
+        ImageOutputStream[] outputs = new ImageOutputStream[resizingConfigs.size()];
+        GifFrameWriter[] writers = new GifFrameWriter[resizingConfigs.size()];
+        GifFramePlan[] plans = new GifFramePlan[resizingConfigs.size()];
+        try {
+            for (int i = 0; i < outputs.length; i++) {
+                outputs[i] = new FileImageOutputStream(resizedImageFiles.get(i));
+                plans[i] = GifFramePlan.create(resizingConfigs.get(i).getAnimationConfig(), reader);
+            }
+            ImageFrame frame = null;
+            int frameIndex = 0;
+            while (!isFinished(plans, frameIndex) && null != (frame = reader.readNextFrame())) {
+                checkForInterruption();
+                List<Integer> keptIndexes = new ArrayList<Integer>(plans.length);
+                List<ResizingConfig> keptConfigs = new ArrayList<ResizingConfig>(plans.length);
+                for (int i = 0; i < plans.length; i++) {
+                    if (plans[i].isKept(frameIndex)) {
+                        keptIndexes.add(i);
+                        keptConfigs.add(resizingConfigs.get(i));
+                    }
+                }
+                BufferedImage[] resizedImages = resizeImages(frame.getImage(), keptConfigs);
+                for (int j = 0; j < resizedImages.length; j++) {
+                    int i = keptIndexes.get(j);
+                    writers[i] = writeGifFrame(writers[i], outputs[i], frame, 
+                            plans[i].getDelay(frameIndex, frame), resizedImages[j]);
+                }
+                returnResizedImages(frame.getImage(), resizedImages);
+                frameIndex++;
+            }
+        } finally {
+            reader.close();
+            for (int i = 0; i < writers.length; i++) {
+                closeGifOutput(writers[i], outputs[i]);
+            }
+        }
+    }
+    
+    private boolean isFinished(GifFramePlan[] plans, int frameIndex) {
+        for (GifFramePlan plan: plans) {
+            if (!plan.isFinished(frameIndex)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Lets a cancelled job stop between frames instead of running to the end.
+     */
+    private void checkForInterruption() throws InterruptedIOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Image processing was cancelled");
+        }
+    }
+    
+    /**
+     * Resizes one decoded image to every given config, largest target first. 
+     * A target is derived from an earlier, proportionally resized result instead 
+     * of the original whenever that result is still at least twice as big 
+     * as the target in both dimensions.
+     */
+    private BufferedImage[] resizeImages(BufferedImage originalImage, List<ResizingConfig> resizingConfigs) {
+        BufferedImage[] resizedImages = new BufferedImage[resizingConfigs.size()];
+        for (Integer index: getResizingOrder(originalImage, resizingConfigs)) {
+            ResizingConfig resizingConfig = resizingConfigs.get(index);
+            BufferedImage source = selectResizingSource(
+                    originalImage, resizedImages, resizingConfigs, resizingConfig);
+            resizedImages[index] = resizeImage(source, resizingConfig);
+        }
+        return resizedImages;
+    }
+    
+    private List<Integer> getResizingOrder(BufferedImage originalImage, 
+            final List<ResizingConfig> resizingConfigs) {
+        final long[] areas = new long[resizingConfigs.size()];
+        List<Integer> order = new ArrayList<Integer>(resizingConfigs.size());
+        for (int i = 0; i < resizingConfigs.size(); i++) {
+            ImageDimension target = getTargetDimension(
+                    originalImage.getWidth(), originalImage.getHeight(), resizingConfigs.get(i));
+            areas[i] = (long) target.getWidth() * target.getHeight();
+            order.add(i);
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return Long.compare(areas[o2], areas[o1]);
+            }
+        });
+        return order;
+    }
+    
+    private BufferedImage selectResizingSource(BufferedImage originalImage, BufferedImage[] resizedImages,
+            List<ResizingConfig> resizingConfigs, ResizingConfig resizingConfig) {
+        ImageDimension target = getTargetDimension(
+                originalImage.getWidth(), originalImage.getHeight(), resizingConfig);
+        BufferedImage source = originalImage;
+        for (int i = 0; i < resizedImages.length; i++) {
+            BufferedImage candidate = resizedImages[i];
+            if (null == candidate 
+                    || !resizingConfigs.get(i).isKeepProportions()
+                    || candidate.getWidth() < target.getWidth() * 2
+                    || candidate.getHeight() < target.getHeight() * 2) {
+                continue;
+            }
+            if ((long) candidate.getWidth() * candidate.getHeight() 
+                    < (long) source.getWidth() * source.getHeight()) {
+                source = candidate;
+            }
+        }
+        return source;
+    }
+    
+    /**
+     * Estimates the dimension Scalr produces for the given config.
+     */
+    private ImageDimension getTargetDimension(int width, int height, ResizingConfig resizingConfig) {
+        if (!resizingConfig.isKeepProportions()) {
+            return new ImageDimension(resizingConfig.getWidth(), resizingConfig.getHeight());
+        }
+        if (width >= height) {
+            int targetHeight = Math.round(resizingConfig.getWidth() * ((float) height / (float) width));
+            return new ImageDimension(resizingConfig.getWidth(), targetHeight);
+        }
+        int targetWidth = Math.round(resizingConfig.getHeight() * ((float) width / (float) height));
+        return new ImageDimension(targetWidth, resizingConfig.getHeight());
+    }
 
     private void resizeGifImage(ImageMetadata metadata, File imageFile,
                                 File resizedImageFile, ResizingConfig resizingConfig) throws IOException {
-        GifFrameReader reader = new GifFrameReader(imageFile);
-        List<ImageFrame> frames = reader.read();
-        reader.close();
-        BufferedImage[] resizedImages = new BufferedImage[frames.size()];
-        for( int i = 0; i < frames.size(); i++ ){
-            BufferedImage image = resizeImage(frames.get(i).getImage(), resizingConfig);
-            resizedImages[i] = image;
-        }
-        GifFrameWriter writer =
-                new GifFrameWriter(
-                        resizedImageFile,
-                        frames.get(0).getImage().getType(),
-                        frames.get(0).getDelay() * 10,
-                        true,
-                        frames.get(0).getDisposal());
-        writer.writeToSequence(resizedImages[0]);
-        for ( int i = 1; i < resizedImages.length; i++ ) {
-            BufferedImage nextImage = resizedImages[i];
-            writer.writeToSequence(nextImage);
-        }
-        writer.close();
+        GifFrameReader reader = new GifFrameReader(imageFile, imageIOPool, rasterPool);
+        resizeGifImage(reader, new FileImageOutputStream(resizedImageFile), resizingConfig);
+    }
+    
+    /**
+     * Closes the given reader and output once done.
+     * 
+     * @return dimension of the resized frames, or null if the GIF has no frames.
+     */
+    private ImageDimension resizeGifImage(GifFrameReader reader, 
+            ImageOutputStream output, ResizingConfig resizingConfig) throws IOException {
+        if (null == framePool || maxFrameParallelism == 1) {
+            return resizeGifFramesSequentially(reader, output, resizingConfig);
+        } else {
+            return resizeGifFramesInParallel(reader, output, resizingConfig);
+        }
+    }
+    
+    private ImageDimension resizeGifFramesSequentially(GifFrameReader reader,
+                                ImageOutputStream output, ResizingConfig resizingConfig) throws IOException {
+        GifFrameWriter writer = null;
+        ImageDimension dimension = null;
+        try {
+            GifFramePlan plan = GifFramePlan.create(resizingConfig.getAnimationConfig(), reader);
+            ImageFrame frame = null;
+            int frameIndex = 0;
+            while (!plan.isFinished(frameIndex) && null != (frame = reader.readNextFrame())) {
+                checkForInterruption();
+                if (plan.isKept(frameIndex)) {
+                    BufferedImage image = resizeImage(frame.getImage(), resizingConfig);
+                    writer = writeGifFrame(writer, output, frame, plan.getDelay(frameIndex, frame), image);
+                    dimension = new ImageDimension(image.getWidth(), image.getHeight());
+                    returnResizedImages(frame.getImage(), image);
+                }
+                frameIndex++;
+            }
+        } finally {
+            reader.close();
+            closeGifOutput(writer, output);
+        }
+        return dimension;
+    }
+    
+    /**
+     * Composited frames are independent of each other, so up to 
+     * maxFrameParallelism of them are resized on the frame pool while 
+     * the results are written back in their original order.
+     */
+    private ImageDimension resizeGifFramesInParallel(GifFrameReader reader,
+                                ImageOutputStream output, ResizingConfig resizingConfig) throws IOException {
+        GifFrameWriter writer = null;
+        ImageDimension dimension = null;
+        Deque<PendingFrame> pendingFrames = new ArrayDeque<PendingFrame>(maxFrameParallelism);
+        try {
+            GifFramePlan plan = GifFramePlan.create(resizingConfig.getAnimationConfig(), reader);
+            ImageFrame frame = null;
+            int frameIndex = 0;
+            while (!plan.isFinished(frameIndex) && null != (frame = reader.readNextFrame())) {
+                checkForInterruption();
+                if (plan.isKept(frameIndex)) {
+                    if (pendingFrames.size() >= maxFrameParallelism) {
+                        PendingFrame pending = pendingFrames.poll();
+                        BufferedImage image = pending.getResizedImage();
+                        writer = writeGifFrame(writer, output, pending.getFrame(), 
+                                pending.getFrame().getDelay(), image);
+                        dimension = new ImageDimension(image.getWidth(), image.getHeight());
+                        returnPendingFrame(pending, image);
+                    }
+                    ImageFrame copy = copyFrame(frame, plan.getDelay(frameIndex, frame));
+                    pendingFrames.add(submitGifFrame(copy, resizingConfig));
+                }
+                frameIndex++;
+            }
+            while (!pendingFrames.isEmpty()) {
+                PendingFrame pending = pendingFrames.poll();
+                BufferedImage image = pending.getResizedImage();
+                writer = writeGifFrame(writer, output, pending.getFrame(), 
+                        pending.getFrame().getDelay(), image);
+                dimension = new ImageDimension(image.getWidth(), image.getHeight());
+                returnPendingFrame(pending, image);
+            }
+        } finally {
+            for (PendingFrame pending: pendingFrames) {
+                pending.cancel();
+            }
+            reader.close();
+            closeGifOutput(writer, output);
+        }
+        return dimension;
+    }
+    
+    private PendingFrame submitGifFrame(final ImageFrame frame, final ResizingConfig resizingConfig) {
+        ForkJoinTask<BufferedImage> task = framePool.submit(new Callable<BufferedImage>() {
+            @Override
+            public BufferedImage call() throws Exception {
+                return resizeImage(frame.getImage(), resizingConfig);
+            }
+        });
+        return new PendingFrame(frame, task);
+    }
+    
+    /**
+     * @param delay delay of the copy, in 1/100 second.
+     */
+    private ImageFrame copyFrame(ImageFrame frame, int delay) {
+        BufferedImage source = frame.getImage();
+        BufferedImage copy = rasterPool.borrowImage(
+                source.getWidth(), source.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        source.copyData(copy.getRaster());
+        return new ImageFrame(copy, delay, frame.getDisposal(), frame.getWidth(), frame.getHeight());
+    }
+    
+    /**
+     * Pending frames that were cancelled may still be resized, 
+     * so only written frames are returned.
+     */
+    private void returnPendingFrame(PendingFrame pending, BufferedImage resizedImage) {
+        returnResizedImages(pending.getFrame().getImage(), resizedImage);
+        rasterPool.returnImage(pending.getFrame().getImage());
+    }
+    
+    /**
+     * @param delay delay of the frame, in 1/100 second.
+     */
+    private GifFrameWriter writeGifFrame(GifFrameWriter writer, ImageOutputStream output, 
+            ImageFrame frame, int delay, BufferedImage resizedImage) throws IOException {
+        if (null == writer) {
+            writer = new GifFrameWriter(
+                    output,
+                    imageIOPool,
+                    frame.getImage().getType(),
+                    delay * 10,
+                    true,
+                    frame.getDisposal());
+        }
+        writer.writeToSequence(resizedImage, delay * 10, frame.getDisposal());
+        return writer;
+    }
+    
+    /**
+     * A writer closes its output, which is left open when no frame was written.
+     */
+    private void closeGifOutput(GifFrameWriter writer, ImageOutputStream output) throws IOException {
+        if (null != writer) {
+            writer.close();
+        } else if (null != output) {
+            output.close();
+        }
+    }
+    
+    private static class PendingFrame {
+        
+        private final ImageFrame frame;
+        private final ForkJoinTask<BufferedImage> task;
+        
+        public PendingFrame(ImageFrame frame, ForkJoinTask<BufferedImage> task) {
+            this.frame = frame;
+            this.task = task;
+        }
+        
+        public ImageFrame getFrame() {
+            return frame;
+        }
+        
+        public BufferedImage getResizedImage() throws IOException {
+            try {
+                return task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+        }
+        
+        public void cancel() {
+            task.cancel(true);
+        }
     }
 
     private void resizeNonGifImage(ImageMetadata metadata, File imageFile,
-                                   File resizedImageFile, ResizingConfig resizingConfig) throws IOException {
-        BufferedImage originalImage = ImageIO.read(
-                new BufferedInputStream(Files.newInputStream(imageFile.toPath())));
-        BufferedImage resizedImage = resizeImage(originalImage, resizingConfig);
-        ImageIO.write(
-                resizedImage,
-                getImageFormat(imageFile).toString(),
-                new BufferedOutputStream(Files.newOutputStream(resizedImageFile.toPath())));
+                                   File resizedImageFile, ResizingConfig resizingConfig, 
+                                   boolean isBandable) throws IOException {
+        BufferedImage resizedImage = readAndResizeImages(
+                new FileImageInputStream(imageFile), 
+                metadata, 
+                Collections.singletonList(resizingConfig), 
+                isBandable)[0];
+        try {
+            writeImage(resizedImage, metadata.getFormat(), resizedImageFile, 
+                    resizingConfig.getEncodingConfig());
+        } finally {
+            rasterPool.returnImage(resizedImage);
+        }
+    }
+    
+    /**
+     * Decodes the image, in strips if it's too big to be decoded at once, 
+     * and resizes it to every given config.
+     * 
+     * @param isBandable whether a single config may be resized in bands.
+     */
+    private BufferedImage[] readAndResizeImages(ImageInputStream imageInputStream, ImageMetadata metadata,
+            List<ResizingConfig> resizingConfigs, boolean isBandable) throws IOException {
+        if (metadata.getFormat() == ImageFormat.JPEG) {
+            BufferedImage thumbnail = readEmbeddedThumbnail(imageInputStream, metadata, resizingConfigs);
+            if (null != thumbnail) {
+                imageInputStream.close();
+                BufferedImage[] resizedImages = resizeImages(thumbnail, resizingConfigs);
+                returnSourceImage(thumbnail, resizedImages);
+                return resizedImages;
+            }
+        }
+        int subsampling = getSubsamplingFactor(metadata, resizingConfigs);
+        long pixels = (long) metadata.getDimension().getWidth() * metadata.getDimension().getHeight();
+        if (pixels / ((long) subsampling * subsampling) > tiledPixelThreshold) {
+            return readAndResizeImagesInStrips(imageInputStream, metadata, subsampling, resizingConfigs);
+        }
+        BufferedImage originalImage = readImage(
+                imageInputStream, metadata.getFormat(), subsampling, null);
+        BufferedImage[] resizedImages;
+        try {
+            checkForInterruption();
+            int bands = (isBandable ? getResizingBands(originalImage, resizingConfigs) : 1);
+            if (bands > 1) {
+                resizedImages = new BufferedImage[] {
+                        resizeImageInBands(originalImage, resizingConfigs.get(0), bands)};
+            } else {
+                resizedImages = resizeImages(originalImage, resizingConfigs);
+            }
+        } catch (IOException e) {
+            rasterPool.returnImage(originalImage);
+            throw e;
+        }
+        returnSourceImage(originalImage, resizedImages);
+        return resizedImages;
+    }
+    
+    /**
+     * Returns a decoded image to the raster pool, unless a resize 
+     * handed it back unchanged.
+     */
+    private void returnSourceImage(BufferedImage source, BufferedImage[] resizedImages) {
+        for (BufferedImage resizedImage: resizedImages) {
+            if (resizedImage == source) {
+                return;
+            }
+        }
+        rasterPool.returnImage(source);
+    }
+    
+    private void returnResizedImages(BufferedImage source, BufferedImage... resizedImages) {
+        for (BufferedImage resizedImage: resizedImages) {
+            if (resizedImage != source) {
+                rasterPool.returnImage(resizedImage);
+            }
+        }
+    }
+    
+    private void returnImages(BufferedImage[] images) {
+        for (BufferedImage image: images) {
+            rasterPool.returnImage(image);
+        }
+    }
+    
+    /**
+     * Looks for an EXIF or JFIF thumbnail with the aspect ratio of the image 
+     * that is at least as big as every target, so the image itself needn't 
+     * be decoded.
+     * 
+     * @return the thumbnail, or null if there is no such thumbnail; the 
+     *         stream is back at its start either way.
+     */
+    private BufferedImage readEmbeddedThumbnail(ImageInputStream imageInputStream, ImageMetadata metadata,
+            List<ResizingConfig> resizingConfigs) throws IOException {
+        int width = metadata.getDimension().getWidth();
+        int height = metadata.getDimension().getHeight();
+        int minWidth = 0;
+        int minHeight = 0;
+        for (ResizingConfig resizingConfig: resizingConfigs) {
+            ImageDimension target = getTargetDimension(width, height, resizingConfig);
+            minWidth = Math.max(minWidth, target.getWidth());
+            minHeight = Math.max(minHeight, target.getHeight());
+        }
+        if (minWidth >= width || minHeight >= height) {
+            return null;
+        }
+        BufferedImage thumbnail = null;
+        try {
+            byte[] exifThumbnail = exifThumbnailReader.readThumbnail(imageInputStream);
+            if (null != exifThumbnail) {
+                thumbnail = readImage(
+                        new MemoryCacheImageInputStream(new ByteArrayInputStream(exifThumbnail)), 
+                        ImageFormat.JPEG, 1, null);
+            }
+            if (!isUsableThumbnail(thumbnail, width, height, minWidth, minHeight)) {
+                if (null != thumbnail) {
+                    rasterPool.returnImage(thumbnail);
+                }
+                imageInputStream.seek(0);
+                thumbnail = readJfifThumbnail(imageInputStream);
+            }
+        } catch (IOException e) {
+            thumbnail = null;
+        } finally {
+            imageInputStream.seek(0);
+        }
+        return (isUsableThumbnail(thumbnail, width, height, minWidth, minHeight) ? thumbnail : null);
+    }
+    
+    private BufferedImage readJfifThumbnail(ImageInputStream imageInputStream) throws IOException {
+        ImageReader imageReader = null;
+        try {
+            imageReader = imageIOPool.borrowReader(ImageFormat.JPEG);
+            imageReader.setInput(imageInputStream, false, false);
+            if (!imageReader.hasThumbnails(0)) {
+                return null;
+            }
+            return imageReader.readThumbnail(0, 0);
+        } finally {
+            if (null != imageReader) {
+                imageIOPool.returnReader(ImageFormat.JPEG, imageReader);
+            }
+        }
+    }
+    
+    private boolean isUsableThumbnail(BufferedImage thumbnail, int width, int height, 
+            int minWidth, int minHeight) {
+        if (null == thumbnail
+                || thumbnail.getWidth() < minWidth 
+                || thumbnail.getHeight() < minHeight) {
+            return false;
+        }
+        float aspect = (float) width / height;
+        float thumbnailAspect = (float) thumbnail.getWidth() / thumbnail.getHeight();
+        return Math.abs(thumbnailAspect - aspect) <= aspect * MAX_THUMBNAIL_ASPECT_DEVIATION;
+    }
+    
+    /**
+     * A single large image is resized in as many bands as there are idle 
+     * workers, plus its own. Bands go through the raster resampler, so only 
+     * images with an explicit filter are banded; the default filter is 
+     * Scalr's, and output mustn't depend on the load of the node.
+     */
+    private int getResizingBands(BufferedImage originalImage, List<ResizingConfig> resizingConfigs) {
+        if (null == processingCapacity 
+                || resizingConfigs.size() != 1
+                || resizingConfigs.get(0).getResamplingFilter() == ResamplingFilter.DEFAULT
+                || (long) originalImage.getWidth() * originalImage.getHeight() < bandPixelThreshold) {
+            return 1;
+        }
+        return 1 + processingCapacity.getIdleWorkers();
+    }
+    
+    private BufferedImage resizeImageInBands(BufferedImage originalImage, ResizingConfig resizingConfig, 
+            int bands) throws IOException {
+        ImageDimension target = getTargetDimension(
+                originalImage.getWidth(), originalImage.getHeight(), resizingConfig);
+        try {
+            return pixelResampler.resize(
+                    originalImage, Math.max(1, target.getWidth()), Math.max(1, target.getHeight()), 
+                    resizingConfig.getResamplingFilter(), processingCapacity, bands);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Image processing was cancelled");
+        }
+    }
+    
+    /**
+     * Decodes the image once and feeds its rows to one strip resampler per 
+     * config as the reader reports them. The reader decodes into a ring of 
+     * rows as high as a strip, so only a strip and the resamplers' row 
+     * buffers are held in memory. A progressive JPEG is resampled again 
+     * on every scan. 
+     * 
+     * Readers that don't decode rows in order, like interlaced PNGs, or 
+     * whose image type can't be decoded into a ring, are read again one 
+     * region per strip. BMPs always are, since their reader seeks straight 
+     * to the rows of a region. 
+     * 
+     * Strips always go through the raster resampler; see getRasterFilter.
+     */
+    private BufferedImage[] readAndResizeImagesInStrips(ImageInputStream imageInputStream, 
+            ImageMetadata metadata, int subsampling, List<ResizingConfig> resizingConfigs) throws IOException {
+        ImageFormat format = metadata.getFormat();
+        PixelResampler.StripResampler[] resamplers = 
+                new PixelResampler.StripResampler[resizingConfigs.size()];
+        ImageReader imageReader = null;
+        try {
+            imageReader = imageIOPool.borrowReader(format);
+            imageReader.setInput(imageInputStream, false, true);
+            boolean isRead = false;
+            if (format != ImageFormat.BMP) {
+                isRead = readAndResizeImageInOnePass(
+                        imageReader, metadata, subsampling, resizingConfigs, resamplers);
+            }
+            if (!isRead) {
+                readAndResizeImageInRegions(
+                        imageReader, metadata, subsampling, resizingConfigs, resamplers);
+            }
+        } finally {
+            if (null != imageReader) {
+                imageIOPool.returnReader(format, imageReader);
+            }
+            imageInputStream.close();
+        }
+        BufferedImage[] resizedImages = new BufferedImage[resamplers.length];
+        for (int i = 0; i < resamplers.length; i++) {
+            resizedImages[i] = resamplers[i].finish();
+        }
+        return resizedImages;
+    }
+    
+    /**
+     * @return false if the image has to be read again by regions.
+     */
+    private boolean readAndResizeImageInOnePass(ImageReader imageReader, ImageMetadata metadata, 
+            int subsampling, List<ResizingConfig> resizingConfigs, 
+            PixelResampler.StripResampler[] resamplers) throws IOException {
+        int sampledWidth = getSampledLength(metadata.getDimension().getWidth(), subsampling);
+        int sampledHeight = getSampledLength(metadata.getDimension().getHeight(), subsampling);
+        Iterator<ImageTypeSpecifier> types = imageReader.getImageTypes(0);
+        if (!types.hasNext()) {
+            return false;
+        }
+        RowRing ring = RowRing.create(types.next(), sampledWidth, sampledHeight, stripHeight);
+        if (null == ring) {
+            return false;
+        }
+        openResamplers(resamplers, resizingConfigs, sampledWidth, sampledHeight, 
+                ring.getStrip().getColorModel().hasAlpha());
+        ImageReadParam param = imageReader.getDefaultReadParam();
+        if (subsampling > 1) {
+            param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        }
+        param.setDestination(ring.getDestination());
+        RowFeeder feeder = new RowFeeder(ring, resamplers);
+        imageReader.addIIOReadUpdateListener(feeder);
+        try {
+            imageReader.read(0, param);
+        } finally {
+            imageReader.removeIIOReadUpdateListener(feeder);
+        }
+        checkForInterruption();
+        return feeder.isInOrder() && feeder.getNextRow() == sampledHeight;
+    }
+    
+    /**
+     * Decodes horizontal strips of the image one at a time into the same 
+     * destination.
+     */
+    private void readAndResizeImageInRegions(ImageReader imageReader, ImageMetadata metadata, 
+            int subsampling, List<ResizingConfig> resizingConfigs, 
+            PixelResampler.StripResampler[] resamplers) throws IOException {
+        int width = metadata.getDimension().getWidth();
+        int height = metadata.getDimension().getHeight();
+        int sampledWidth = getSampledLength(width, subsampling);
+        int sampledHeight = getSampledLength(height, subsampling);
+        int sourceStripHeight = stripHeight * subsampling;
+        ImageReadParam param = imageReader.getDefaultReadParam();
+        if (subsampling > 1) {
+            param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        }
+        BufferedImage strip = borrowDestination(imageReader, 
+                sampledWidth, getSampledLength(Math.min(sourceStripHeight, height), subsampling));
+        try {
+            for (int y = 0; y < height; y += sourceStripHeight) {
+                int sourceRows = Math.min(sourceStripHeight, height - y);
+                param.setSourceRegion(new Rectangle(0, y, width, sourceRows));
+                param.setDestination(strip);
+                strip = imageReader.read(0, param);
+                if (0 == y) {
+                    openResamplers(resamplers, resizingConfigs, sampledWidth, sampledHeight, 
+                            strip.getColorModel().hasAlpha());
+                }
+                int rows = getSampledLength(sourceRows, subsampling);
+                for (PixelResampler.StripResampler resampler: resamplers) {
+                    resampler.push(strip, y / subsampling, rows);
+                }
+                checkForInterruption();
+            }
+        } finally {
+            if (null != strip) {
+                rasterPool.returnImage(strip);
+            }
+        }
+    }
+    
+    /**
+     * Opens one strip resampler per config, or starts the ones left open 
+     * by an earlier attempt over.
+     */
+    private void openResamplers(PixelResampler.StripResampler[] resamplers, 
+            List<ResizingConfig> resizingConfigs, int sampledWidth, int sampledHeight, boolean hasAlpha) {
+        for (int i = 0; i < resamplers.length; i++) {
+            if (null != resamplers[i]) {
+                resamplers[i].restart();
+                continue;
+            }
+            ResizingConfig resizingConfig = resizingConfigs.get(i);
+            ImageDimension target = getTargetDimension(sampledWidth, sampledHeight, resizingConfig);
+            resamplers[i] = pixelResampler.open(
+                    sampledWidth, sampledHeight, 
+                    Math.max(1, target.getWidth()), Math.max(1, target.getHeight()), 
+                    getRasterFilter(resizingConfig), hasAlpha);
+        }
+    }
+    
+    private static int getSampledLength(int length, int subsampling) {
+        return (length + subsampling - 1) / subsampling;
+    }
+    
+    /**
+     * Scalr resizes with Method.SPEED, which interpolates bilinearly, so 
+     * the default filter is resampled with the bilinear filter. The result 
+     * is close to, but not the same as, resizing the whole image with Scalr.
+     */
+    private ResamplingFilter getRasterFilter(ResizingConfig resizingConfig) {
+        if (resizingConfig.getResamplingFilter() == ResamplingFilter.DEFAULT) {
+            return ResamplingFilter.BILINEAR;
+        }
+        return resizingConfig.getResamplingFilter();
+    }
+    
+    /**
+     * Pushes the rows the reader decodes into a ring to the resamplers, 
+     * and stops the reader once rows come out of order.
+     */
+    private static class RowFeeder implements IIOReadUpdateListener {
+        
+        private final RowRing ring;
+        private final PixelResampler.StripResampler[] resamplers;
+        private int nextRow = 0;
+        private boolean isInOrder = true;
+        
+        public RowFeeder(RowRing ring, PixelResampler.StripResampler[] resamplers) {
+            this.ring = ring;
+            this.resamplers = resamplers;
+        }
+        
+        public int getNextRow() {
+            return nextRow;
+        }
+        
+        public boolean isInOrder() {
+            return isInOrder;
+        }
+
+        @Override
+        public void imageUpdate(ImageReader source, BufferedImage image, int minX, int minY, 
+                int width, int height, int periodX, int periodY, int[] bands) {
+            if (!isInOrder) {
+                return;
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                source.abort();
+                return;
+            }
+            if (0 == minY && nextRow > 0) {
+                for (PixelResampler.StripResampler resampler: resamplers) {
+                    resampler.restart();
+                }
+                nextRow = 0;
+            }
+            if (minY != nextRow || 0 != minX || 1 != periodX || 1 != periodY
+                    || width != image.getWidth() || height > ring.getRows()) {
+                isInOrder = false;
+                source.abort();
+                return;
+            }
+            int y = minY;
+            int end = minY + height;
+            while (y < end) {
+                int stripY = ring.getStripRow(y);
+                int rows = Math.min(end - y, ring.getRows() - stripY);
+                for (PixelResampler.StripResampler resampler: resamplers) {
+                    resampler.push(ring.getStrip(), stripY, y, rows);
+                }
+                y += rows;
+            }
+            nextRow = end;
+        }
+
+        @Override
+        public void passStarted(ImageReader source, BufferedImage image, int pass, int minPass, 
+                int maxPass, int minX, int minY, int periodX, int periodY, int[] bands) {
+        }
+
+        @Override
+        public void passComplete(ImageReader source, BufferedImage image) {
+        }
+
+        @Override
+        public void thumbnailPassStarted(ImageReader source, BufferedImage thumbnail, int pass, 
+                int minPass, int maxPass, int minX, int minY, int periodX, int periodY, int[] bands) {
+        }
+
+        @Override
+        public void thumbnailUpdate(ImageReader source, BufferedImage thumbnail, int minX, int minY, 
+                int width, int height, int periodX, int periodY, int[] bands) {
+        }
+
+        @Override
+        public void thumbnailPassComplete(ImageReader source, BufferedImage thumbnail) {
+        }
+        
+    }
+    
+    /**
+     * Calculates how many source pixels can be skipped per decoded pixel while 
+     * the decoded image stays at least SUBSAMPLING_HEADROOM times as big as 
+     * every target, so Scalr still has enough detail to finish the resize.
+     * 
+     * @return 1 if the image needs to be decoded at full resolution.
+     */
+    private int getSubsamplingFactor(ImageMetadata metadata, List<ResizingConfig> resizingConfigs) {
+        int width = metadata.getDimension().getWidth();
+        int height = metadata.getDimension().getHeight();
+        int factor = Integer.MAX_VALUE;
+        for (ResizingConfig resizingConfig: resizingConfigs) {
+            ImageDimension target = getTargetDimension(width, height, resizingConfig);
+            int horizontal = width / Math.max(1, target.getWidth() * SUBSAMPLING_HEADROOM);
+            int vertical = height / Math.max(1, target.getHeight() * SUBSAMPLING_HEADROOM);
+            factor = Math.min(factor, Math.min(horizontal, vertical));
+        }
+        return Math.max(1, factor);
+    }
+    
+    /**
+     * Decodes the image, optionally skipping pixels and restricting to 
+     * a region of the source.
+     * 
+     * @param subsampling decode every n-th pixel in both dimensions.
+     * @param sourceRegion region of the source to decode, or null for the whole image.
+     */
+    private BufferedImage readImage(ImageInputStream imageInputStream, ImageFormat format, 
+            int subsampling, Rectangle sourceRegion) throws IOException {
+        ImageReader imageReader = null;
+        try {
+            imageReader = imageIOPool.borrowReader(format);
+            imageReader.setInput(imageInputStream, true, true);
+            ImageReadParam param = imageReader.getDefaultReadParam();
+            if (subsampling > 1) {
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+            }
+            int width = imageReader.getWidth(0);
+            int height = imageReader.getHeight(0);
+            if (null != sourceRegion) {
+                param.setSourceRegion(sourceRegion);
+                width = sourceRegion.width;
+                height = sourceRegion.height;
+            }
+            param.setDestination(borrowDestination(imageReader, 
+                    (width + subsampling - 1) / subsampling, (height + subsampling - 1) / subsampling));
+            return imageReader.read(0, param);
+        } finally {
+            if (null != imageReader) {
+                imageIOPool.returnReader(format, imageReader);
+            }
+            imageInputStream.close();
+        }
+    }
+    
+    /**
+     * Borrows an image of the type the reader would decode into on its own.
+     * 
+     * @return the image, or null to let the reader allocate one.
+     */
+    private BufferedImage borrowDestination(ImageReader imageReader, int width, int height) {
+        try {
+            Iterator<ImageTypeSpecifier> types = imageReader.getImageTypes(0);
+            if (types.hasNext()) {
+                return rasterPool.borrowImage(types.next(), width, height);
+            }
+        } catch (IOException e) {
+            //Fails again on decoding, with the reader's own error.
+        }
+        return null;
+    }
+    
+    private void writeImage(BufferedImage image, ImageFormat format, File imageFile, 
+            EncodingConfig encodingConfig) throws IOException {
+        writeImage(image, format, new FileImageOutputStream(imageFile), encodingConfig);
+    }
+    
+    private void writeImage(BufferedImage image, ImageFormat format, 
+            ImageOutputStream imageOutputStream, EncodingConfig encodingConfig) throws IOException {
+        ImageWriter imageWriter = null;
+        try {
+            imageWriter = imageIOPool.borrowWriter(format);
+            imageWriter.setOutput(imageOutputStream);
+            imageEncoder.write(imageWriter, image, format, encodingConfig);
+        } finally {
+            if (null != imageWriter) {
+                imageIOPool.returnWriter(format, imageWriter);
+            }
+            imageOutputStream.close();
+        }
     }
 
     private ResizingConfig getResizingConfig(ImageMetadata metadata, ResizingConfig resizingConfig) {
@@ -156,12 +1233,18 @@ public class ImageProcessorImplImgscalr implements ImageProcessor {
                     ResizingUnit.PIXEL, 
                     (int) width, 
                     (int) height,
-                    resizingConfig.isKeepProportions());
+                    resizingConfig.isKeepProportions(),
+                    resizingConfig.getEncodingConfig(),
+                    resizingConfig.getResamplingFilter(),
+                    resizingConfig.getAnimationConfig());
         }
         return resizingConfig;
     }
     
     private BufferedImage resizeImage(BufferedImage originalImage, ResizingConfig resizingConfig) {
+        if (resizingConfig.getResamplingFilter() != ResamplingFilter.DEFAULT) {
+            return resampleImage(originalImage, resizingConfig);
+        }
         BufferedImage resizedImage = null;
         if (resizingConfig.isKeepProportions()) {
             resizedImage = Scalr.resize(
@@ -175,46 +1258,219 @@ public class ImageProcessorImplImgscalr implements ImageProcessor {
         return resizedImage;
     }
     
-    private File prepareImageFile(String path) throws IOException {
-        File file = new File(path);
-        if (file.exists()) {
-            throw new IllegalArgumentException("Image file, " + file.getName() + " has already exist!");
-        } else {
-            file.createNewFile();
+    /**
+     * Resizes with the primitive raster resampler, fitting proportional 
+     * sizes the same way as imgscalr's automatic mode.
+     */
+    private BufferedImage resampleImage(BufferedImage originalImage, ResizingConfig resizingConfig) {
+        ImageDimension target = getTargetDimension(
+                originalImage.getWidth(), originalImage.getHeight(), resizingConfig);
+        return pixelResampler.resize(
+                originalImage, Math.max(1, target.getWidth()), Math.max(1, target.getHeight()), 
+                resizingConfig.getResamplingFilter());
+    }
+    
+    private void releaseTempFile(TempFile tempFile) {
+        if (null != tempFile) {
+            tempFile.release();
+        }
+    }
+    
+    private void releaseTempFiles(List<TempFile> tempFiles) {
+        for (TempFile tempFile: tempFiles) {
+            tempFile.release();
         }
-        return file;
     }
     
     public ImageFormat getImageFormat(File imageFile) {
-        ImageInputStream imageInputStream = null;
-        ImageFormat format = null;
-        try {
-            imageInputStream = ImageIO.createImageInputStream(imageFile);
-            Iterator<ImageReader> iter = ImageIO.getImageReaders(imageInputStream);
-            if (iter.hasNext()) {
-                ImageReader reader = iter.next();
-                if (reader.getFormatName().equalsIgnoreCase("JPEG")) {
-                    format = ImageFormat.JPEG;
-                } else if (reader.getFormatName().equalsIgnoreCase("png")) {
-                    format = ImageFormat.PNG;
-                } else if (reader.getFormatName().equalsIgnoreCase("bmp")) {
-                    format = ImageFormat.BMP;
-                } else if (reader.getFormatName().equalsIgnoreCase("gif")) {
-                    format = ImageFormat.GIF;
+        ImageProbe probe = probeImage(imageFile);
+        return (null == probe ? null : probe.getFormat());
+    }
+    
+    public static class Builder {
+        
+        private String tempDir;
+        private TempFileArena tempFileArena;
+        private ImageIOPool imageIOPool;
+        private RasterPool rasterPool;
+        private ForkJoinPool framePool;
+        private int maxFrameParallelism = 1;
+        private int inMemoryThreshold = 1024 * 1024;
+        private long tiledPixelThreshold = 32L * 1024 * 1024;
+        private int stripHeight = 256;
+        private long bandPixelThreshold = 8L * 1024 * 1024;
+        private ProcessingCapacity processingCapacity;
+        
+        public Builder() {
+            
+        }
+        
+        public Builder setTempDir(String tempDir) {
+            this.tempDir = tempDir;
+            return this;
+        }
+        
+        /**
+         * @param tempFileArena arena the temporary files are created in, 
+         *                      or null to create one in the temp directory.
+         */
+        public Builder setTempFileArena(TempFileArena tempFileArena) {
+            this.tempFileArena = tempFileArena;
+            return this;
+        }
+        
+        public Builder setImageIOPool(ImageIOPool imageIOPool) {
+            this.imageIOPool = imageIOPool;
+            return this;
+        }
+        
+        /**
+         * @param rasterPool pool decoded and resized images are borrowed from, 
+         *                   or null to create one retaining up to 64 MB.
+         */
+        public Builder setRasterPool(RasterPool rasterPool) {
+            this.rasterPool = rasterPool;
+            return this;
+        }
+        
+        /**
+         * @param framePool pool shared by all jobs for resizing GIF frames, 
+         *                  or null to resize them on the calling thread.
+         */
+        public Builder setFramePool(ForkJoinPool framePool) {
+            this.framePool = framePool;
+            return this;
+        }
+        
+        /**
+         * @param maxFrameParallelism maximum number of frames of a single GIF 
+         *                            being resized at the same time.
+         */
+        public Builder setMaxFrameParallelism(int maxFrameParallelism) {
+            this.maxFrameParallelism = maxFrameParallelism;
+            return this;
+        }
+        
+        /**
+         * @param inMemoryThreshold size in bytes up to which images given in 
+         *                          memory are processed without temporary files.
+         */
+        public Builder setInMemoryThreshold(int inMemoryThreshold) {
+            this.inMemoryThreshold = inMemoryThreshold;
+            return this;
+        }
+        
+        /**
+         * @param tiledPixelThreshold number of decoded pixels above which 
+         *                            images are decoded and resized in strips.
+         */
+        public Builder setTiledPixelThreshold(long tiledPixelThreshold) {
+            this.tiledPixelThreshold = tiledPixelThreshold;
+            return this;
+        }
+        
+        /**
+         * @param stripHeight decoded rows per strip in tiled mode.
+         */
+        public Builder setStripHeight(int stripHeight) {
+            this.stripHeight = stripHeight;
+            return this;
+        }
+        
+        /**
+         * @param bandPixelThreshold number of decoded pixels from which a single 
+         *                           image is resized in parallel bands.
+         */
+        public Builder setBandPixelThreshold(long bandPixelThreshold) {
+            this.bandPixelThreshold = bandPixelThreshold;
+            return this;
+        }
+        
+        /**
+         * @param processingCapacity capacity whose idle workers resize bands of 
+         *                           a large master image, or null to never use bands.
+         */
+        public Builder setProcessingCapacity(ProcessingCapacity processingCapacity) {
+            this.processingCapacity = processingCapacity;
+            return this;
+        }
+        
+        protected TempFileArena getTempFileArena() {
+            if (null == tempFileArena) {
+                if (null == tempDir) {
+                    throw new NullPointerException("TempDir");
                 }
+                tempFileArena = new TempFileArena.Builder()
+                    .setFallbackDir(tempDir)
+                    .build();
             }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        } finally {
-            if (null != imageInputStream) {
-                try {
-                    imageInputStream.close();
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
+            return tempFileArena;
+        }
+        
+        protected ImageIOPool getImageIOPool() {
+            if (null == imageIOPool) {
+                imageIOPool = new ImageIOPool(Runtime.getRuntime().availableProcessors());
+            }
+            return imageIOPool;
+        }
+        
+        protected RasterPool getRasterPool() {
+            if (null == rasterPool) {
+                rasterPool = new RasterPool(64L * 1024 * 1024);
+            }
+            return rasterPool;
+        }
+        
+        protected ForkJoinPool getFramePool() {
+            return framePool;
+        }
+        
+        protected int getMaxFrameParallelism() {
+            if (maxFrameParallelism < 1) {
+                throw new IllegalArgumentException(
+                        "Frame parallelism must be at least 1, " + maxFrameParallelism);
             }
+            return maxFrameParallelism;
+        }
+        
+        protected int getInMemoryThreshold() {
+            if (inMemoryThreshold < 0) {
+                throw new IllegalArgumentException(
+                        "In-memory threshold can't be negative, " + inMemoryThreshold);
+            }
+            return inMemoryThreshold;
+        }
+        
+        protected long getTiledPixelThreshold() {
+            if (tiledPixelThreshold < 1) {
+                throw new IllegalArgumentException(
+                        "Tiled pixel threshold must be at least 1, " + tiledPixelThreshold);
+            }
+            return tiledPixelThreshold;
+        }
+        
+        protected int getStripHeight() {
+            if (stripHeight < 1) {
+                throw new IllegalArgumentException("Strip height must be at least 1, " + stripHeight);
+            }
+            return stripHeight;
+        }
+        
+        protected long getBandPixelThreshold() {
+            if (bandPixelThreshold < 1) {
+                throw new IllegalArgumentException(
+                        "Band pixel threshold must be at least 1, " + bandPixelThreshold);
+            }
+            return bandPixelThreshold;
+        }
+        
+        protected ProcessingCapacity getProcessingCapacity() {
+            return processingCapacity;
+        }
+        
+        public ImageProcessorImplImgscalr build() {
+            return new ImageProcessorImplImgscalr(this);
         }
-        return format;
     }
     
 }
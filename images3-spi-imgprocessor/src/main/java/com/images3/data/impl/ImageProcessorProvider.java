@@ -19,13 +19,54 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.images3.common.ImageFormat;
+import com.images3.data.ImageDecodingBudget;
+import com.images3.data.TempFileArena;
 import com.images3.data.spi.ImageProcessor;
 
+/**
+ * Creates the image processor from the configuration. 
+ * 
+ * Images are processed by the engine named by "image.processing.engine", 
+ * or by the engine named by "image.processing.engine.&lt;format&gt;" for 
+ * images of that format, e.g. "image.processing.engine.gif". Engines other 
+ * than the built-in "imgscalr" engine are registered by name before the 
+ * processor is created.
+ * 
+ * A candidate engine named by "image.processing.engine.shadow", or by 
+ * "image.processing.engine.shadow.&lt;format&gt;", repeats a sample of the 
+ * resizes to compare its latency and output size with the serving engine's.
+ * 
+ * Jobs share "image.processing.decoding.budget.mb" of memory for decoding, 
+ * half of the maximum heap by default, and wait for it at most 
+ * "image.processing.decoding.budget.wait.ms".
+ */
 public class ImageProcessorProvider {
     
+    public static final String DEFAULT_ENGINE = "imgscalr";
+    
     private Properties config;
+    private final Map<String, ImageProcessorFactory> engineFactories;
+    private final Map<String, ImageProcessor> engines;
+    private final Map<ImageFormat, ShadowImageProcessor> shadowImageProcessors;
+    private ThreadPoolExecutor shadowExecutor;
+    private ScheduledImageProcessor scheduledImageProcessor;
+    private ImageDecodingBudget imageDecodingBudget;
+    private ImageIOPool imageIOPool;
+    private RasterPool rasterPool;
+    private ForkJoinPool framePool;
+    private TempFileArena tempFileArena;
     
     public ImageProcessorProvider(String pathToConfig) {
         this(readConfigProperties(pathToConfig));
@@ -33,6 +74,15 @@ public class ImageProcessorProvider {
     
     public ImageProcessorProvider(Properties config) {
         this.config = config;
+        this.engineFactories = new HashMap<String, ImageProcessorFactory>();
+        this.engines = new HashMap<String, ImageProcessor>();
+        this.shadowImageProcessors = new EnumMap<ImageFormat, ShadowImageProcessor>(ImageFormat.class);
+        this.engineFactories.put(DEFAULT_ENGINE, new ImageProcessorFactory() {
+            @Override
+            public ImageProcessor createImageProcessor(ImageProcessorProvider provider) {
+                return provider.createImageProcessor();
+            }
+        });
     }
     
     private static Properties readConfigProperties(String pathToConfig) {
@@ -47,7 +97,241 @@ public class ImageProcessorProvider {
     }
 
     public ImageProcessor getImageProcessor() {
-        String dir = config.getProperty("image.processing.tempdir");
-        return new ImageProcessorImplImgscalr(dir);
+        return getScheduledImageProcessor();
+    }
+    
+    public Properties getConfig() {
+        return config;
+    }
+    
+    /**
+     * Makes an engine available to the configuration under the given name.
+     * 
+     * @throws IllegalStateException if the image processor was already created.
+     */
+    public synchronized void registerEngine(String name, ImageProcessorFactory factory) {
+        if (null != scheduledImageProcessor) {
+            throw new IllegalStateException("Engines must be registered before the image processor is created");
+        }
+        engineFactories.put(name, factory);
+    }
+    
+    /**
+     * @return the processor comparing the engines of the given format, 
+     *         or null if there's no candidate engine for it.
+     */
+    public synchronized ShadowImageProcessor getShadowImageProcessor(ImageFormat format) {
+        getScheduledImageProcessor();
+        return shadowImageProcessors.get(format);
+    }
+    
+    /**
+     * @return the processor shared by all callers, which also exposes 
+     *         queue depth and wait time of the processing jobs.
+     */
+    public synchronized ScheduledImageProcessor getScheduledImageProcessor() {
+        if (null == scheduledImageProcessor) {
+            int workers = getIntProperty(
+                    "image.processing.workers", Runtime.getRuntime().availableProcessors());
+            int queueCapacity = getIntProperty("image.processing.queue.capacity", workers * 4);
+            int deadline = getIntProperty("image.processing.deadline.ms", 30000);
+            scheduledImageProcessor = new ScheduledImageProcessor(
+                    createRoutedImageProcessor(), workers, queueCapacity, deadline, 
+                    getImageDecodingBudget());
+        }
+        return scheduledImageProcessor;
+    }
+    
+    /**
+     * @return memory shared by all images being decoded.
+     */
+    public synchronized ImageDecodingBudget getImageDecodingBudget() {
+        if (null == imageDecodingBudget) {
+            int defaultCapacity = (int) (Runtime.getRuntime().maxMemory() / 2 / (1024 * 1024));
+            long capacity = getIntProperty("image.processing.decoding.budget.mb", defaultCapacity) * 1024L * 1024L;
+            int maxWait = getIntProperty("image.processing.decoding.budget.wait.ms", 30000);
+            imageDecodingBudget = new ImageDecodingBudget(capacity, maxWait);
+        }
+        return imageDecodingBudget;
+    }
+    
+    private ImageProcessor createRoutedImageProcessor() {
+        ImageProcessor defaultProcessor = getEngine(getProperty("image.processing.engine", DEFAULT_ENGINE));
+        String defaultCandidate = getProperty("image.processing.engine.shadow", null);
+        int samplePercent = getIntProperty("image.processing.engine.shadow.sample.percent", 1);
+        Map<ImageFormat, ImageProcessor> processors = new EnumMap<ImageFormat, ImageProcessor>(ImageFormat.class);
+        boolean isRouted = false;
+        for (ImageFormat format: ImageFormat.values()) {
+            String suffix = "." + format.toString().toLowerCase();
+            String engine = getProperty("image.processing.engine" + suffix, null);
+            ImageProcessor processor = (null == engine ? defaultProcessor : getEngine(engine));
+            String candidate = getProperty("image.processing.engine.shadow" + suffix, defaultCandidate);
+            if (null != candidate) {
+                ShadowImageProcessor shadowImageProcessor = new ShadowImageProcessor(
+                        processor, getEngine(candidate), samplePercent, 
+                        getShadowExecutor(), getTempFileArena());
+                shadowImageProcessors.put(format, shadowImageProcessor);
+                processor = shadowImageProcessor;
+            }
+            processors.put(format, processor);
+            isRouted |= (processor != defaultProcessor);
+        }
+        if (!isRouted) {
+            return defaultProcessor;
+        }
+        return new RoutingImageProcessor(defaultProcessor, processors);
+    }
+    
+    /**
+     * Engines are created once, and shared by all formats routed to them.
+     */
+    private ImageProcessor getEngine(String name) {
+        ImageProcessor engine = engines.get(name);
+        if (null == engine) {
+            ImageProcessorFactory factory = engineFactories.get(name);
+            if (null == factory) {
+                throw new IllegalArgumentException("No image processing engine named " + name);
+            }
+            engine = factory.createImageProcessor(this);
+            engines.put(name, engine);
+        }
+        return engine;
+    }
+    
+    /**
+     * Candidate runs are dropped rather than queued once the workers are busy.
+     */
+    private ThreadPoolExecutor getShadowExecutor() {
+        if (null == shadowExecutor) {
+            int workers = getIntProperty("image.processing.engine.shadow.workers", 1);
+            int queueCapacity = getIntProperty("image.processing.engine.shadow.queue.capacity", 8);
+            shadowExecutor = new ThreadPoolExecutor(
+                    workers, workers, 0L, TimeUnit.MILLISECONDS, 
+                    new ArrayBlockingQueue<Runnable>(queueCapacity),
+                    new ThreadFactory() {
+                        private final AtomicInteger threadNumber = new AtomicInteger(1);
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, 
+                                    "images3-shadow-" + threadNumber.getAndIncrement());
+                            thread.setDaemon(true);
+                            thread.setPriority(Thread.MIN_PRIORITY);
+                            return thread;
+                        }
+                    });
+        }
+        return shadowExecutor;
+    }
+    
+    private ImageProcessor createImageProcessor() {
+        int frameParallelism = getIntProperty("image.processing.gif.parallelism.perjob", 4);
+        int inMemoryThreshold = getIntProperty("image.processing.inmemory.threshold", 1024 * 1024);
+        int tiledThreshold = getIntProperty("image.processing.tiled.threshold.pixels", 32 * 1024 * 1024);
+        int stripHeight = getIntProperty("image.processing.tiled.strip.height", 256);
+        int bandThreshold = getIntProperty("image.processing.band.threshold.pixels", 8 * 1024 * 1024);
+        return new ImageProcessorImplImgscalr.Builder()
+            .setTempFileArena(getTempFileArena())
+            .setImageIOPool(getImageIOPool())
+            .setRasterPool(getRasterPool())
+            .setFramePool(getFramePool())
+            .setMaxFrameParallelism(frameParallelism)
+            .setInMemoryThreshold(inMemoryThreshold)
+            .setTiledPixelThreshold(tiledThreshold)
+            .setStripHeight(stripHeight)
+            .setBandPixelThreshold(bandThreshold)
+            .setProcessingCapacity(new ProcessingCapacity() {
+                private volatile ProcessingCapacity capacity;
+                /**
+                 * Looked up once, since the scheduled processor is created 
+                 * after the processors it schedules.
+                 */
+                private ProcessingCapacity getCapacity() {
+                    ProcessingCapacity scheduled = capacity;
+                    if (null == scheduled) {
+                        scheduled = getScheduledImageProcessor();
+                        capacity = scheduled;
+                    }
+                    return scheduled;
+                }
+                @Override
+                public int getIdleWorkers() {
+                    return getCapacity().getIdleWorkers();
+                }
+                @Override
+                public void execute(Runnable task) {
+                    getCapacity().execute(task);
+                }
+                @Override
+                public boolean remove(Runnable task) {
+                    return getCapacity().remove(task);
+                }
+            })
+            .build();
+    }
+    
+    /**
+     * @return the arena all temporary files of image processing are created in.
+     */
+    public synchronized TempFileArena getTempFileArena() {
+        if (null == tempFileArena) {
+            TempFileArena.Builder builder = new TempFileArena.Builder()
+                .setFallbackDir(config.getProperty("image.processing.tempdir"))
+                .setMaxLeaseMillis(getIntProperty("image.processing.tempfile.maxage.ms", 3600000))
+                .setSweepIntervalMillis(getIntProperty("image.processing.tempfile.sweep.ms", 60000))
+                .setDefaultFileEstimate(getIntProperty("image.processing.tempfile.estimate.kb", 1024) * 1024L);
+            String fastDir = config.getProperty("image.processing.tempdir.fast");
+            if (null != fastDir && fastDir.trim().length() > 0) {
+                long capacity = getIntProperty(
+                        "image.processing.tempdir.fast.capacity.mb", 256) * 1024L * 1024L;
+                builder.setPrimaryDir(fastDir.trim(), capacity);
+            }
+            tempFileArena = builder.build();
+        }
+        return tempFileArena;
+    }
+    
+    public synchronized ImageIOPool getImageIOPool() {
+        if (null == imageIOPool) {
+            int maxIdle = getIntProperty(
+                    "image.processing.imageio.pool.maxidle", Runtime.getRuntime().availableProcessors());
+            imageIOPool = new ImageIOPool(maxIdle);
+        }
+        return imageIOPool;
+    }
+    
+    /**
+     * @return the pool decoded and resized images are borrowed from.
+     */
+    public synchronized RasterPool getRasterPool() {
+        if (null == rasterPool) {
+            long maxRetained = getIntProperty("image.processing.rasterpool.max.mb", 64) * 1024L * 1024L;
+            rasterPool = new RasterPool(maxRetained);
+        }
+        return rasterPool;
+    }
+    
+    public synchronized ForkJoinPool getFramePool() {
+        if (null == framePool) {
+            int poolSize = getIntProperty(
+                    "image.processing.gif.pool.size", Runtime.getRuntime().availableProcessors());
+            framePool = new ForkJoinPool(poolSize);
+        }
+        return framePool;
+    }
+    
+    private String getProperty(String name, String defaultValue) {
+        String value = config.getProperty(name);
+        if (null == value || value.trim().length() == 0) {
+            return defaultValue;
+        }
+        return value.trim();
+    }
+    
+    private int getIntProperty(String name, int defaultValue) {
+        String value = config.getProperty(name);
+        if (null == value || value.trim().length() == 0) {
+            return defaultValue;
+        }
+        return Integer.valueOf(value.trim());
     }
 }
@@ -0,0 +1,589 @@
+/*******************************************************************************
+ * Copyright 2014 Rui Sun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.images3.data.impl;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.images3.common.ResamplingFilter;
+
+/**
+ * Separable resampler working directly on packed ARGB int rasters. 
+ * 
+ * Source rows are resampled horizontally into a ring buffer holding as 
+ * many rows as the vertical kernel spans, and output rows are resampled 
+ * vertically from it as soon as their last source row has arrived. Source 
+ * rows can therefore be fed strip by strip, never holding the whole source.
+ * Kernel weights are computed once per resize into flat tables, and working 
+ * arrays are pooled per thread, so a resize in steady state only allocates 
+ * its output, which is borrowed from the raster pool if there is one. 
+ * Images with alpha are resampled premultiplied.
+ * 
+ * Output rows can also be split into bands resampled in parallel. Every 
+ * band resamples the source rows under its own kernel window, so rows at 
+ * band edges are resampled horizontally by both neighbours.
+ */
+public class PixelResampler {
+    
+    private static final int MAX_POOLED_SCRATCHES = 4;
+    
+    private final ThreadLocal<Deque<Scratch>> scratches = new ThreadLocal<Deque<Scratch>>() {
+        @Override
+        protected Deque<Scratch> initialValue() {
+            return new ArrayDeque<Scratch>(MAX_POOLED_SCRATCHES);
+        }
+    };
+    
+    private final RasterPool rasterPool;
+    
+    public PixelResampler() {
+        this(null);
+    }
+    
+    /**
+     * @param rasterPool pool to borrow output images from, or null to allocate them.
+     */
+    public PixelResampler(RasterPool rasterPool) {
+        this.rasterPool = rasterPool;
+    }
+    
+    /**
+     * @param filter any filter but {@link ResamplingFilter#DEFAULT}.
+     */
+    public BufferedImage resize(BufferedImage source, int width, int height, ResamplingFilter filter) {
+        StripResampler resampler = open(
+                source.getWidth(), source.getHeight(), width, height, 
+                filter, source.getColorModel().hasAlpha());
+        resampler.push(source, 0, source.getHeight());
+        return resampler.finish();
+    }
+    
+    /**
+     * Resizes with the output rows split into the given number of bands. 
+     * All bands but the first are handed to the given capacity; the calling 
+     * thread resamples the first one, and then every band the capacity 
+     * refused or hasn't started yet, which it withdraws from the capacity. 
+     * 
+     * @param filter any filter but {@link ResamplingFilter#DEFAULT}.
+     */
+    public BufferedImage resize(final BufferedImage source, int width, int height, 
+            ResamplingFilter filter, ProcessingCapacity capacity, int bands) throws InterruptedException {
+        checkForSize(width, height, filter);
+        final boolean hasAlpha = source.getColorModel().hasAlpha();
+        final WeightTable xWeights = new WeightTable().compute(source.getWidth(), width, filter);
+        final WeightTable yWeights = new WeightTable().compute(source.getHeight(), height, filter);
+        final BufferedImage output = createOutput(width, height, hasAlpha);
+        bands = Math.max(1, Math.min(bands, height));
+        List<FutureTask<Void>> tasks = new ArrayList<FutureTask<Void>>(bands);
+        for (int band = 0; band < bands; band++) {
+            final int fromRow = (int) ((long) height * band / bands);
+            final int toRow = (int) ((long) height * (band + 1) / bands);
+            FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    StripResampler resampler = new StripResampler(
+                            borrowScratch(), xWeights, yWeights, fromRow, toRow, output, hasAlpha);
+                    resampler.pushBand(source);
+                    resampler.finish();
+                    return null;
+                }
+            });
+            tasks.add(task);
+            if (band > 0) {
+                try {
+                    capacity.execute(task);
+                } catch (RejectedExecutionException e) {
+                    //run below by the calling thread.
+                }
+            }
+        }
+        try {
+            for (FutureTask<Void> task: tasks) {
+                capacity.remove(task);
+                task.run();
+                task.get();
+            }
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            for (FutureTask<Void> task: tasks) {
+                capacity.remove(task);
+                task.cancel(false);
+            }
+        }
+        return output;
+    }
+    
+    /**
+     * Starts a resize whose source rows are pushed in order, in strips of 
+     * any height. 
+     * 
+     * @param filter any filter but {@link ResamplingFilter#DEFAULT}.
+     */
+    public StripResampler open(int sourceWidth, int sourceHeight, int width, int height, 
+            ResamplingFilter filter, boolean hasAlpha) {
+        checkForSize(width, height, filter);
+        Scratch scratch = borrowScratch();
+        return new StripResampler(
+                scratch, 
+                scratch.xWeights.compute(sourceWidth, width, filter),
+                scratch.yWeights.compute(sourceHeight, height, filter),
+                0, height, createOutput(width, height, hasAlpha), hasAlpha);
+    }
+    
+    private void checkForSize(int width, int height, ResamplingFilter filter) {
+        if (width < 1 || height < 1) {
+            throw new IllegalArgumentException("Illegal size " + width + "x" + height);
+        }
+        if (filter == ResamplingFilter.DEFAULT) {
+            throw new IllegalArgumentException("No kernel for " + filter);
+        }
+    }
+    
+    private BufferedImage createOutput(int width, int height, boolean hasAlpha) {
+        int imageType = (hasAlpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        if (null == rasterPool) {
+            return new BufferedImage(width, height, imageType);
+        }
+        return rasterPool.borrowImage(width, height, imageType);
+    }
+    
+    private Scratch borrowScratch() {
+        Scratch scratch = scratches.get().poll();
+        if (null == scratch) {
+            scratch = new Scratch();
+        }
+        return scratch;
+    }
+    
+    private void recycle(Scratch scratch) {
+        Deque<Scratch> pool = scratches.get();
+        if (pool.size() < MAX_POOLED_SCRATCHES) {
+            pool.push(scratch);
+        }
+    }
+    
+    /**
+     * A resize in progress of the output rows from fromRow to toRow. 
+     * It isn't thread-safe.
+     */
+    public class StripResampler {
+        
+        private final Scratch scratch;
+        private final int width;
+        private final int fromRow;
+        private final int toRow;
+        private final boolean hasAlpha;
+        private final WeightTable xWeights;
+        private final WeightTable yWeights;
+        private final int ringRows;
+        private final int[] ring;
+        private final int[] row;
+        private final BufferedImage output;
+        private final int[] pixels;
+        private int nextSourceRow;
+        private int nextOutputRow;
+        
+        private StripResampler(Scratch scratch, WeightTable xWeights, WeightTable yWeights,
+                int fromRow, int toRow, BufferedImage output, boolean hasAlpha) {
+            this.scratch = scratch;
+            this.width = xWeights.size;
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+            this.hasAlpha = hasAlpha;
+            this.xWeights = xWeights;
+            this.yWeights = yWeights;
+            this.ringRows = Math.min(yWeights.maxTaps, yWeights.inSize);
+            this.ring = scratch.getRing(ringRows * width);
+            this.row = scratch.getRow(xWeights.inSize);
+            scratch.ensureAccumulators(width);
+            this.output = output;
+            this.pixels = ((DataBufferInt) output.getRaster().getDataBuffer()).getData();
+            this.nextOutputRow = fromRow;
+            this.nextSourceRow = (fromRow == 0 ? 0 : yWeights.starts[fromRow]);
+        }
+        
+        /**
+         * Pushes the first rows of a strip, which must continue right 
+         * after the rows pushed so far.
+         * 
+         * @param sourceY source row of the first row of the strip.
+         * @param rows number of rows of the strip to push.
+         */
+        public void push(BufferedImage strip, int sourceY, int rows) {
+            push(strip, 0, sourceY, rows);
+        }
+        
+        /**
+         * Pushes rows of a strip, which must continue right after the 
+         * rows pushed so far.
+         * 
+         * @param stripY row of the strip to start from.
+         * @param sourceY source row of that row of the strip.
+         * @param rows number of rows of the strip to push.
+         */
+        public void push(BufferedImage strip, int stripY, int sourceY, int rows) {
+            if (sourceY != nextSourceRow) {
+                throw new IllegalStateException(
+                        "Expected source row " + nextSourceRow + " instead of " + sourceY);
+            }
+            pushRows(strip, stripY, rows);
+        }
+        
+        /**
+         * Starts over from the first source row, e.g. when a progressive 
+         * image is decoded again with more detail. Rows already resized 
+         * are overwritten.
+         */
+        public void restart() {
+            nextOutputRow = fromRow;
+            nextSourceRow = (fromRow == 0 ? 0 : yWeights.starts[fromRow]);
+        }
+        
+        /**
+         * Pushes every source row under the kernel window of this band.
+         */
+        private void pushBand(BufferedImage source) {
+            int lastRow = yWeights.starts[toRow - 1] + yWeights.counts[toRow - 1];
+            pushRows(source, nextSourceRow, lastRow - nextSourceRow);
+        }
+        
+        private void pushRows(BufferedImage image, int imageRow, int rows) {
+            for (int y = 0; y < rows; y++) {
+                readRow(image, imageRow + y, row, hasAlpha);
+                pushRow(row);
+            }
+        }
+        
+        private void pushRow(int[] argb) {
+            int sourceY = nextSourceRow++;
+            resampleRow(argb, ring, (sourceY % ringRows) * width, xWeights);
+            while (nextOutputRow < toRow 
+                    && yWeights.starts[nextOutputRow] + yWeights.counts[nextOutputRow] - 1 <= sourceY) {
+                resampleColumn(nextOutputRow);
+                nextOutputRow++;
+            }
+        }
+        
+        /**
+         * @return the resized image, once all source rows have been pushed.
+         */
+        public BufferedImage finish() {
+            if (nextOutputRow < toRow) {
+                throw new IllegalStateException(
+                        "Only " + nextSourceRow + " of " + yWeights.inSize + " source rows were pushed");
+            }
+            recycle(scratch);
+            return output;
+        }
+        
+        private void resampleColumn(int y) {
+            float[] accA = scratch.accA;
+            float[] accR = scratch.accR;
+            float[] accG = scratch.accG;
+            float[] accB = scratch.accB;
+            for (int x = 0; x < width; x++) {
+                accA[x] = 0;
+                accR[x] = 0;
+                accG[x] = 0;
+                accB[x] = 0;
+            }
+            int start = yWeights.starts[y];
+            int count = yWeights.counts[y];
+            int w = y * yWeights.maxTaps;
+            for (int k = 0; k < count; k++) {
+                float weight = yWeights.weights[w + k];
+                int rowOffset = ((start + k) % ringRows) * width;
+                for (int x = 0; x < width; x++) {
+                    int pixel = ring[rowOffset + x];
+                    accA[x] += (pixel >>> 24) * weight;
+                    accR[x] += ((pixel >> 16) & 0xff) * weight;
+                    accG[x] += ((pixel >> 8) & 0xff) * weight;
+                    accB[x] += (pixel & 0xff) * weight;
+                }
+            }
+            int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                int pixel = pack(accA[x], accR[x], accG[x], accB[x]);
+                pixels[offset + x] = (hasAlpha ? unpremultiply(pixel) : pixel);
+            }
+        }
+    }
+    
+    private static void resampleRow(int[] row, int[] target, int offset, WeightTable table) {
+        float[] weights = table.weights;
+        int taps = table.maxTaps;
+        for (int i = 0; i < table.size; i++) {
+            int start = table.starts[i];
+            int count = table.counts[i];
+            int w = i * taps;
+            float a = 0, r = 0, g = 0, b = 0;
+            for (int k = 0; k < count; k++) {
+                int pixel = row[start + k];
+                float weight = weights[w + k];
+                a += (pixel >>> 24) * weight;
+                r += ((pixel >> 16) & 0xff) * weight;
+                g += ((pixel >> 8) & 0xff) * weight;
+                b += (pixel & 0xff) * weight;
+            }
+            target[offset + i] = pack(a, r, g, b);
+        }
+    }
+    
+    /**
+     * Reads a row as ARGB, premultiplied if the image has alpha. The common 
+     * decoded types are read straight from their data buffers.
+     */
+    private static void readRow(BufferedImage image, int y, int[] row, boolean hasAlpha) {
+        int width = image.getWidth();
+        Raster raster = image.getRaster();
+        int type = image.getType();
+        if (raster.getSampleModelTranslateX() != 0 
+                || raster.getSampleModelTranslateY() != 0) {
+            readRowByRGB(image, y, row, hasAlpha);
+            return;
+        }
+        switch (type) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB:
+            case BufferedImage.TYPE_INT_ARGB_PRE: {
+                DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+                int stride = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+                System.arraycopy(buffer.getData(), buffer.getOffset() + y * stride, row, 0, width);
+                if (type == BufferedImage.TYPE_INT_RGB) {
+                    for (int x = 0; x < width; x++) {
+                        row[x] |= 0xff000000;
+                    }
+                } else if (type == BufferedImage.TYPE_INT_ARGB) {
+                    premultiply(row, width);
+                }
+                break;
+            }
+            case BufferedImage.TYPE_3BYTE_BGR:
+            case BufferedImage.TYPE_4BYTE_ABGR:
+            case BufferedImage.TYPE_BYTE_GRAY: {
+                DataBufferByte buffer = (DataBufferByte) raster.getDataBuffer();
+                PixelInterleavedSampleModel model = (PixelInterleavedSampleModel) raster.getSampleModel();
+                byte[] data = buffer.getData();
+                int offset = buffer.getOffset() + y * model.getScanlineStride();
+                if (type == BufferedImage.TYPE_3BYTE_BGR) {
+                    for (int x = 0; x < width; x++, offset += 3) {
+                        row[x] = 0xff000000 
+                                | ((data[offset + 2] & 0xff) << 16) 
+                                | ((data[offset + 1] & 0xff) << 8) 
+                                | (data[offset] & 0xff);
+                    }
+                } else if (type == BufferedImage.TYPE_4BYTE_ABGR) {
+                    for (int x = 0; x < width; x++, offset += 4) {
+                        row[x] = ((data[offset] & 0xff) << 24) 
+                                | ((data[offset + 3] & 0xff) << 16) 
+                                | ((data[offset + 2] & 0xff) << 8) 
+                                | (data[offset + 1] & 0xff);
+                    }
+                    premultiply(row, width);
+                } else {
+                    for (int x = 0; x < width; x++, offset++) {
+                        int gray = data[offset] & 0xff;
+                        row[x] = 0xff000000 | (gray << 16) | (gray << 8) | gray;
+                    }
+                }
+                break;
+            }
+            default:
+                readRowByRGB(image, y, row, hasAlpha);
+        }
+    }
+    
+    private static void readRowByRGB(BufferedImage image, int y, int[] row, boolean hasAlpha) {
+        image.getRGB(0, y, image.getWidth(), 1, row, 0, image.getWidth());
+        if (hasAlpha) {
+            premultiply(row, image.getWidth());
+        }
+    }
+    
+    private static void premultiply(int[] row, int width) {
+        for (int x = 0; x < width; x++) {
+            int pixel = row[x];
+            int a = pixel >>> 24;
+            if (a == 0xff) {
+                continue;
+            }
+            int r = (((pixel >> 16) & 0xff) * a + 127) / 255;
+            int g = (((pixel >> 8) & 0xff) * a + 127) / 255;
+            int b = ((pixel & 0xff) * a + 127) / 255;
+            row[x] = (a << 24) | (r << 16) | (g << 8) | b;
+        }
+    }
+    
+    private static int unpremultiply(int pixel) {
+        int a = pixel >>> 24;
+        if (a == 0xff) {
+            return pixel;
+        }
+        if (a == 0) {
+            return 0;
+        }
+        int r = Math.min(255, (((pixel >> 16) & 0xff) * 255 + a / 2) / a);
+        int g = Math.min(255, (((pixel >> 8) & 0xff) * 255 + a / 2) / a);
+        int b = Math.min(255, ((pixel & 0xff) * 255 + a / 2) / a);
+        return (a << 24) | (r << 16) | (g << 8) | b;
+    }
+    
+    private static int pack(float a, float r, float g, float b) {
+        return (clamp(a) << 24) | (clamp(r) << 16) | (clamp(g) << 8) | clamp(b);
+    }
+    
+    private static int clamp(float value) {
+        int v = (int) (value + 0.5f);
+        return (v < 0 ? 0 : (v > 255 ? 255 : v));
+    }
+    
+    private static double getSupport(ResamplingFilter filter) {
+        switch (filter) {
+            case BOX:
+                return 0.5;
+            case BILINEAR:
+                return 1.0;
+            case LANCZOS3:
+                return 3.0;
+            default:
+                throw new IllegalArgumentException("No kernel for " + filter);
+        }
+    }
+    
+    private static double getWeight(ResamplingFilter filter, double x) {
+        switch (filter) {
+            case BOX:
+                return (x >= -0.5 && x < 0.5) ? 1.0 : 0.0;
+            case BILINEAR:
+                x = Math.abs(x);
+                return (x < 1.0) ? 1.0 - x : 0.0;
+            case LANCZOS3:
+                x = Math.abs(x);
+                return (x < 3.0) ? sinc(x) * sinc(x / 3.0) : 0.0;
+            default:
+                throw new IllegalArgumentException("No kernel for " + filter);
+        }
+    }
+    
+    private static double sinc(double x) {
+        if (x == 0.0) {
+            return 1.0;
+        }
+        x *= Math.PI;
+        return Math.sin(x) / x;
+    }
+    
+    /**
+     * Source positions and normalized kernel weights of every output 
+     * position along one axis. Weights of output position i start at 
+     * i * maxTaps.
+     */
+    static class WeightTable {
+        
+        int inSize;
+        int size;
+        int maxTaps;
+        int[] starts = new int[0];
+        int[] counts = new int[0];
+        float[] weights = new float[0];
+        
+        WeightTable compute(int inSize, int outSize, ResamplingFilter filter) {
+            double scale = (double) inSize / outSize;
+            double filterScale = Math.max(scale, 1.0);
+            double support = getSupport(filter) * filterScale;
+            this.inSize = inSize;
+            size = outSize;
+            maxTaps = (int) Math.ceil(support) * 2 + 1;
+            if (starts.length < outSize) {
+                starts = new int[outSize];
+                counts = new int[outSize];
+            }
+            if (weights.length < outSize * maxTaps) {
+                weights = new float[outSize * maxTaps];
+            }
+            for (int i = 0; i < outSize; i++) {
+                double center = (i + 0.5) * scale;
+                int min = Math.max((int) (center - support + 0.5), 0);
+                int max = Math.min((int) (center + support + 0.5), inSize);
+                int count = Math.min(max - min, maxTaps);
+                int offset = i * maxTaps;
+                double total = 0;
+                for (int k = 0; k < count; k++) {
+                    double weight = getWeight(filter, (k + min - center + 0.5) / filterScale);
+                    weights[offset + k] = (float) weight;
+                    total += weight;
+                }
+                if (total != 0) {
+                    for (int k = 0; k < count; k++) {
+                        weights[offset + k] /= total;
+                    }
+                }
+                starts[i] = min;
+                counts[i] = count;
+            }
+            return this;
+        }
+    }
+    
+    private static class Scratch {
+        
+        final WeightTable xWeights = new WeightTable();
+        final WeightTable yWeights = new WeightTable();
+        int[] row = new int[0];
+        int[] ring = new int[0];
+        float[] accA = new float[0];
+        float[] accR = new float[0];
+        float[] accG = new float[0];
+        float[] accB = new float[0];
+        
+        int[] getRow(int length) {
+            if (row.length < length) {
+                row = new int[length];
+            }
+            return row;
+        }
+        
+        int[] getRing(int length) {
+            if (ring.length < length) {
+                ring = new int[length];
+            }
+            return ring;
+        }
+        
+        void ensureAccumulators(int length) {
+            if (accA.length < length) {
+                accA = new float[length];
+                accR = new float[length];
+                accG = new float[length];
+                accB = new float[length];
+            }
+        }
+    }
+    
+}
@@ -0,0 +1,166 @@
+/*******************************************************************************
+ * Copyright 2014 Rui Sun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.images3.data.impl;
+
+import java.awt.image.BufferedImage;
+
+import com.images3.common.ImagePlaceholder;
+
+/**
+ * Computes the dominant color and the BlurHash of a small image, 
+ * usually a thumbnail of at most a few dozen pixels a side.
+ * 
+ * The dominant color is the mean of the most populated cell of a 
+ * 16x16x16 color histogram. The BlurHash follows the reference encoder 
+ * at https://github.com/woltapp/blurhash, with 4x3 components for 
+ * landscape images and 3x4 for portrait ones.
+ */
+public class PlaceholderEncoder {
+    
+    private static final String BASE83 = 
+            "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz#$%*+,-.:;=?@[]^_{|}~";
+    private static final int MAJOR_COMPONENTS = 4;
+    private static final int MINOR_COMPONENTS = 3;
+    
+    public ImagePlaceholder encode(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = image.getRGB(0, 0, width, height, null, 0, width);
+        return new ImagePlaceholder(
+                getDominantColor(pixels), 
+                getBlurHash(pixels, width, height));
+    }
+    
+    private String getDominantColor(int[] pixels) {
+        int[] counts = new int[4096];
+        long[] sums = new long[4096 * 3];
+        for (int pixel: pixels) {
+            if ((pixel >>> 24) < 128) {
+                continue;
+            }
+            int r = (pixel >> 16) & 0xff;
+            int g = (pixel >> 8) & 0xff;
+            int b = pixel & 0xff;
+            int cell = ((r >> 4) << 8) | ((g >> 4) << 4) | (b >> 4);
+            counts[cell]++;
+            sums[cell * 3] += r;
+            sums[cell * 3 + 1] += g;
+            sums[cell * 3 + 2] += b;
+        }
+        int dominant = 0;
+        for (int cell = 1; cell < counts.length; cell++) {
+            if (counts[cell] > counts[dominant]) {
+                dominant = cell;
+            }
+        }
+        int count = counts[dominant];
+        if (count == 0) {
+            return "#000000";
+        }
+        int r = (int) (sums[dominant * 3] / count);
+        int g = (int) (sums[dominant * 3 + 1] / count);
+        int b = (int) (sums[dominant * 3 + 2] / count);
+        return String.format("#%02x%02x%02x", r, g, b);
+    }
+    
+    private String getBlurHash(int[] pixels, int width, int height) {
+        int componentsX = (width >= height ? MAJOR_COMPONENTS : MINOR_COMPONENTS);
+        int componentsY = (width >= height ? MINOR_COMPONENTS : MAJOR_COMPONENTS);
+        float[] linear = new float[pixels.length * 3];
+        for (int i = 0; i < pixels.length; i++) {
+            linear[i * 3] = toLinear((pixels[i] >> 16) & 0xff);
+            linear[i * 3 + 1] = toLinear((pixels[i] >> 8) & 0xff);
+            linear[i * 3 + 2] = toLinear(pixels[i] & 0xff);
+        }
+        double[][] factors = new double[componentsX * componentsY][];
+        for (int j = 0; j < componentsY; j++) {
+            for (int i = 0; i < componentsX; i++) {
+                factors[j * componentsX + i] = getFactor(linear, width, height, i, j);
+            }
+        }
+        
+        StringBuilder hash = new StringBuilder();
+        encode83(hash, (componentsX - 1) + (componentsY - 1) * 9, 1);
+        double maximum = 1;
+        if (factors.length > 1) {
+            double actualMaximum = 0;
+            for (int k = 1; k < factors.length; k++) {
+                for (double value: factors[k]) {
+                    actualMaximum = Math.max(actualMaximum, Math.abs(value));
+                }
+            }
+            int quantisedMaximum = (int) Math.max(0, Math.min(82, Math.floor(actualMaximum * 166 - 0.5)));
+            maximum = (quantisedMaximum + 1) / 166.0;
+            encode83(hash, quantisedMaximum, 1);
+        } else {
+            encode83(hash, 0, 1);
+        }
+        double[] dc = factors[0];
+        encode83(hash, (toSRGB(dc[0]) << 16) + (toSRGB(dc[1]) << 8) + toSRGB(dc[2]), 4);
+        for (int k = 1; k < factors.length; k++) {
+            double[] ac = factors[k];
+            encode83(hash, 
+                    quantiseAC(ac[0], maximum) * 19 * 19 
+                    + quantiseAC(ac[1], maximum) * 19 
+                    + quantiseAC(ac[2], maximum), 
+                    2);
+        }
+        return hash.toString();
+    }
+    
+    private double[] getFactor(float[] linear, int width, int height, int i, int j) {
+        double r = 0, g = 0, b = 0;
+        for (int y = 0; y < height; y++) {
+            double basisY = Math.cos(Math.PI * j * y / height);
+            for (int x = 0; x < width; x++) {
+                double basis = Math.cos(Math.PI * i * x / width) * basisY;
+                int offset = (y * width + x) * 3;
+                r += basis * linear[offset];
+                g += basis * linear[offset + 1];
+                b += basis * linear[offset + 2];
+            }
+        }
+        double scale = (i == 0 && j == 0 ? 1.0 : 2.0) / (width * height);
+        return new double[] {r * scale, g * scale, b * scale};
+    }
+    
+    private static int quantiseAC(double value, double maximum) {
+        double normalized = value / maximum;
+        double signedRoot = Math.signum(normalized) * Math.sqrt(Math.abs(normalized));
+        return (int) Math.max(0, Math.min(18, Math.floor(signedRoot * 9 + 9.5)));
+    }
+    
+    private static float toLinear(int value) {
+        double v = value / 255.0;
+        return (float) (v <= 0.04045 ? v / 12.92 : Math.pow((v + 0.055) / 1.055, 2.4));
+    }
+    
+    private static int toSRGB(double value) {
+        double v = Math.max(0, Math.min(1, value));
+        if (v <= 0.0031308) {
+            return (int) (v * 12.92 * 255 + 0.5);
+        }
+        return (int) ((1.055 * Math.pow(v, 1 / 2.4) - 0.055) * 255 + 0.5);
+    }
+    
+    private static void encode83(StringBuilder hash, int value, int length) {
+        for (int i = 1; i <= length; i++) {
+            int digit = (value / (int) Math.pow(83, length - i)) % 83;
+            hash.append(BASE83.charAt(digit));
+        }
+    }
+    
+}
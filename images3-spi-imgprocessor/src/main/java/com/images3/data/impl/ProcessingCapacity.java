@@ -0,0 +1,49 @@
+/*******************************************************************************
+ * Copyright 2014 Rui Sun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.images3.data.impl;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Tells a processor how much of the node's processing capacity is unused, 
+ * and lends it the idle workers, so a single job may spread over them.
+ */
+public interface ProcessingCapacity extends Executor {
+
+    /**
+     * @return number of workers neither busy nor needed by waiting jobs.
+     */
+    public int getIdleWorkers();
+    
+    /**
+     * Runs a part of a job on an idle worker. 
+     * 
+     * @throws RejectedExecutionException if no worker is idle; the caller 
+     *                                    runs the part itself then.
+     */
+    @Override
+    public void execute(Runnable task);
+    
+    /**
+     * Withdraws a part no worker has started yet, e.g. once the caller 
+     * ran it itself, so it doesn't keep holding a place in the queue.
+     * 
+     * @return false if the part wasn't waiting for a worker.
+     */
+    public boolean remove(Runnable task);
+    
+}
@@ -0,0 +1,265 @@
+/*******************************************************************************
+ * Copyright 2014 Rui Sun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.images3.data.impl;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageTypeSpecifier;
+
+/**
+ * Keeps the pixel arrays of returned images so that images decoded, 
+ * composited or resized later can be backed by them instead of new arrays.
+ * 
+ * Arrays are kept in size classes, four per power of two, so an image is 
+ * backed by an array at most a quarter bigger than it needs. Arrays are 
+ * handed out cleared, and returned arrays are dropped once the pool retains 
+ * its maximum of bytes. Images that weren't borrowed from the pool are 
+ * ignored on return, so any image can be returned once it's no longer used.
+ */
+public class RasterPool {
+    
+    private static final int MIN_CLASS_SIZE = 4096;
+    
+    private final long maxRetainedBytes;
+    private final ConcurrentMap<Integer, Queue<int[]>> intArrays;
+    private final ConcurrentMap<Integer, Queue<byte[]>> byteArrays;
+    
+    private final AtomicLong retainedBytes = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong discards = new AtomicLong();
+    
+    /**
+     * @param maxRetainedBytes bytes of returned arrays kept at most, 
+     *                         or 0 to keep none.
+     */
+    public RasterPool(long maxRetainedBytes) {
+        if (maxRetainedBytes < 0) {
+            throw new IllegalArgumentException(
+                    "Maximum retained bytes must not be negative, " + maxRetainedBytes);
+        }
+        this.maxRetainedBytes = maxRetainedBytes;
+        this.intArrays = new ConcurrentHashMap<Integer, Queue<int[]>>();
+        this.byteArrays = new ConcurrentHashMap<Integer, Queue<byte[]>>();
+    }
+    
+    /**
+     * @param imageType one of the predefined BufferedImage types, 
+     *                  except TYPE_CUSTOM.
+     */
+    public BufferedImage borrowImage(int width, int height, int imageType) {
+        return borrowImage(ImageTypeSpecifier.createFromBufferedImageType(imageType), width, height);
+    }
+    
+    /**
+     * Images whose samples don't fit into a single int or byte array 
+     * are allocated as usual.
+     */
+    public BufferedImage borrowImage(ImageTypeSpecifier type, int width, int height) {
+        SampleModel sampleModel = type.getSampleModel(width, height);
+        ColorModel colorModel = type.getColorModel();
+        int size = getBufferSize(sampleModel);
+        if (size < 0) {
+            misses.incrementAndGet();
+            return type.createBufferedImage(width, height);
+        }
+        int classSize = getClassSize(size);
+        DataBuffer dataBuffer;
+        Object array;
+        if (sampleModel.getDataType() == DataBuffer.TYPE_INT) {
+            int[] ints = poll(intArrays, classSize, 4);
+            if (null == ints) {
+                ints = new int[classSize];
+            } else {
+                Arrays.fill(ints, 0, size, 0);
+            }
+            dataBuffer = new DataBufferInt(ints, size);
+            array = ints;
+        } else {
+            byte[] bytes = poll(byteArrays, classSize, 1);
+            if (null == bytes) {
+                bytes = new byte[classSize];
+            } else {
+                Arrays.fill(bytes, 0, size, (byte) 0);
+            }
+            dataBuffer = new DataBufferByte(bytes, size);
+            array = bytes;
+        }
+        WritableRaster raster = Raster.createWritableRaster(sampleModel, dataBuffer, null);
+        return new PooledImage(this, colorModel, raster, array);
+    }
+    
+    /**
+     * Keeps the pixel array of an image borrowed from this pool. The image 
+     * must no longer be used by anyone; returning it again has no effect.
+     */
+    public void returnImage(BufferedImage image) {
+        if (!(image instanceof PooledImage)) {
+            return;
+        }
+        PooledImage pooledImage = (PooledImage) image;
+        if (pooledImage.pool != this || !pooledImage.isReturned.compareAndSet(false, true)) {
+            return;
+        }
+        if (pooledImage.array instanceof int[]) {
+            int[] ints = (int[]) pooledImage.array;
+            offer(intArrays, ints.length, ints, ints.length * 4L);
+        } else {
+            byte[] bytes = (byte[]) pooledImage.array;
+            offer(byteArrays, bytes.length, bytes, bytes.length);
+        }
+    }
+    
+    private <T> T poll(ConcurrentMap<Integer, Queue<T>> arrays, int classSize, int bytesPerElement) {
+        Queue<T> queue = arrays.get(classSize);
+        T array = (null == queue ? null : queue.poll());
+        if (null == array) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        retainedBytes.addAndGet(-(long) classSize * bytesPerElement);
+        return array;
+    }
+    
+    private <T> void offer(ConcurrentMap<Integer, Queue<T>> arrays, int classSize, T array, long bytes) {
+        if (retainedBytes.addAndGet(bytes) > maxRetainedBytes) {
+            retainedBytes.addAndGet(-bytes);
+            discards.incrementAndGet();
+            return;
+        }
+        Queue<T> queue = arrays.get(classSize);
+        if (null == queue) {
+            Queue<T> newQueue = new ConcurrentLinkedQueue<T>();
+            queue = arrays.putIfAbsent(classSize, newQueue);
+            if (null == queue) {
+                queue = newQueue;
+            }
+        }
+        queue.offer(array);
+    }
+    
+    /**
+     * @return number of array elements the sample model addresses, or -1 if 
+     *         its samples aren't held by a single int or byte array.
+     */
+    private static int getBufferSize(SampleModel sampleModel) {
+        int dataType = sampleModel.getDataType();
+        if (dataType != DataBuffer.TYPE_INT && dataType != DataBuffer.TYPE_BYTE) {
+            return -1;
+        }
+        int width = sampleModel.getWidth();
+        int height = sampleModel.getHeight();
+        long size;
+        if (sampleModel instanceof ComponentSampleModel) {
+            ComponentSampleModel model = (ComponentSampleModel) sampleModel;
+            for (int bank: model.getBankIndices()) {
+                if (bank != 0) {
+                    return -1;
+                }
+            }
+            int maxBandOffset = 0;
+            for (int offset: model.getBandOffsets()) {
+                maxBandOffset = Math.max(maxBandOffset, offset);
+            }
+            size = (long) model.getScanlineStride() * (height - 1) 
+                    + (long) model.getPixelStride() * (width - 1) + maxBandOffset + 1;
+        } else if (sampleModel instanceof SinglePixelPackedSampleModel) {
+            SinglePixelPackedSampleModel model = (SinglePixelPackedSampleModel) sampleModel;
+            size = (long) model.getScanlineStride() * (height - 1) + width;
+        } else if (sampleModel instanceof MultiPixelPackedSampleModel) {
+            MultiPixelPackedSampleModel model = (MultiPixelPackedSampleModel) sampleModel;
+            if (model.getDataBitOffset() != 0) {
+                return -1;
+            }
+            size = (long) model.getScanlineStride() * height;
+        } else {
+            return -1;
+        }
+        return (size > Integer.MAX_VALUE / 2 ? -1 : (int) size);
+    }
+    
+    private static int getClassSize(int size) {
+        if (size <= MIN_CLASS_SIZE) {
+            return MIN_CLASS_SIZE;
+        }
+        int highestBit = 31 - Integer.numberOfLeadingZeros(size - 1);
+        int step = 1 << (highestBit - 2);
+        return ((size + step - 1) / step) * step;
+    }
+    
+    public long getMaxRetainedBytes() {
+        return maxRetainedBytes;
+    }
+    
+    public long getRetainedBytes() {
+        return retainedBytes.get();
+    }
+    
+    public long getHits() {
+        return hits.get();
+    }
+    
+    public long getMisses() {
+        return misses.get();
+    }
+    
+    /**
+     * @return number of returned arrays dropped because the pool was full.
+     */
+    public long getDiscards() {
+        return discards.get();
+    }
+
+    @Override
+    public String toString() {
+        return "RasterPool [retainedBytes=" + retainedBytes 
+                + ", maxRetainedBytes=" + maxRetainedBytes + ", hits=" + hits
+                + ", misses=" + misses + ", discards=" + discards + "]";
+    }
+    
+    private static class PooledImage extends BufferedImage {
+        
+        private final RasterPool pool;
+        private final Object array;
+        private final AtomicBoolean isReturned = new AtomicBoolean();
+        
+        public PooledImage(RasterPool pool, ColorModel colorModel, 
+                WritableRaster raster, Object array) {
+            super(colorModel, raster, colorModel.isAlphaPremultiplied(), null);
+            this.pool = pool;
+            this.array = array;
+        }
+    }
+    
+}
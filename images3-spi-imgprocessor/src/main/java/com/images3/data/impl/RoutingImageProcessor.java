@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * Copyright 2014 Rui Sun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.images3.data.impl;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import com.images3.common.EncodedImage;
+import com.images3.common.ImageFormat;
+import com.images3.common.ImageMetadata;
+import com.images3.common.ImagePlaceholder;
+import com.images3.common.ImageProbe;
+import com.images3.common.ResizingConfig;
+import com.images3.data.spi.ImageProcessor;
+
+/**
+ * Hands every image to the processor of its format. Probing happens 
+ * before the format is known, so it's always left to the default processor.
+ */
+public class RoutingImageProcessor implements ImageProcessor {
+    
+    private final ImageProcessor defaultProcessor;
+    private final Map<ImageFormat, ImageProcessor> processors;
+    
+    /**
+     * @param processors processor per format; formats without one go to the default processor.
+     */
+    public RoutingImageProcessor(ImageProcessor defaultProcessor, 
+            Map<ImageFormat, ImageProcessor> processors) {
+        if (null == defaultProcessor) {
+            throw new NullPointerException("Default processor");
+        }
+        this.defaultProcessor = defaultProcessor;
+        this.processors = new EnumMap<ImageFormat, ImageProcessor>(ImageFormat.class);
+        this.processors.putAll(processors);
+    }
+    
+    public ImageProcessor getImageProcessor(ImageFormat format) {
+        ImageProcessor processor = processors.get(format);
+        return (null == processor ? defaultProcessor : processor);
+    }
+
+    @Override
+    public boolean isSupportedFormat(File imageFile) {
+        return defaultProcessor.isSupportedFormat(imageFile);
+    }
+
+    @Override
+    public ImageMetadata readImageMetadata(File imageFile) {
+        return defaultProcessor.readImageMetadata(imageFile);
+    }
+
+    @Override
+    public ImageProbe probeImage(File imageFile) {
+        return defaultProcessor.probeImage(imageFile);
+    }
+
+    @Override
+    public File resizeImage(ImageMetadata metadata, File imageFile,
+            ResizingConfig resizingConfig) {
+        return getImageProcessor(metadata.getFormat()).resizeImage(metadata, imageFile, resizingConfig);
+    }
+
+    @Override
+    public File resizeMasterImage(ImageMetadata metadata, File imageFile,
+            ResizingConfig resizingConfig) {
+        return getImageProcessor(metadata.getFormat()).resizeMasterImage(metadata, imageFile, resizingConfig);
+    }
+
+    @Override
+    public List<File> resizeImages(ImageMetadata metadata, File imageFile,
+            List<ResizingConfig> resizingConfigs) {
+        return getImageProcessor(metadata.getFormat()).resizeImages(metadata, imageFile, resizingConfigs);
+    }
+
+    @Override
+    public void discardImage(ImageMetadata metadata, File imageFile) {
+        getImageProcessor(metadata.getFormat()).discardImage(metadata, imageFile);
+    }
+
+    @Override
+    public ImagePlaceholder createPlaceholder(ImageMetadata metadata, File imageFile) {
+        return getImageProcessor(metadata.getFormat()).createPlaceholder(metadata, imageFile);
+    }
+
+    @Override
+    public long getPeakDecodingMemory(ImageMetadata metadata, List<ResizingConfig> resizingConfigs) {
+        return getImageProcessor(metadata.getFormat()).getPeakDecodingMemory(metadata, resizingConfigs);
+    }
+
+    @Override
+    public ImageProbe probeImage(ByteBuffer imageContent) {
+        return defaultProcessor.probeImage(imageContent);
+    }
+
+    @Override
+    public EncodedImage resizeImage(ImageMetadata metadata, ByteBuffer imageContent, 
+            ResizingConfig resizingConfig) {
+        return getImageProcessor(metadata.getFormat()).resizeImage(metadata, imageContent, resizingConfig);
+    }
+
+    @Override
+    public EncodedImage resizeImage(ImageMetadata metadata, InputStream imageContent, 
+            ResizingConfig resizingConfig) {
+        return getImageProcessor(metadata.getFormat()).resizeImage(metadata, imageContent, resizingConfig);
+    }
+
+}
@@ -0,0 +1,167 @@
+/*******************************************************************************
+ * Copyright 2014 Rui Sun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.images3.data.impl;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+import javax.imageio.ImageTypeSpecifier;
+
+/**
+ * A decoding destination as big as the whole image that only keeps its 
+ * last rows. Row y of the destination is stored as row y % rows of the 
+ * strip, a regular image sharing the same storage, so a row can be read 
+ * quickly from the strip until it's overwritten. 
+ * 
+ * Only image types whose rows lie one after another in a single bank are 
+ * supported.
+ */
+class RowRing {
+    
+    private final BufferedImage destination;
+    private final BufferedImage strip;
+    private final int rows;
+    
+    private RowRing(BufferedImage destination, BufferedImage strip, int rows) {
+        this.destination = destination;
+        this.strip = strip;
+        this.rows = rows;
+    }
+    
+    /**
+     * @param rows number of rows kept.
+     * @return the ring, or null if the type isn't supported or the 
+     *         image has too many samples to be addressed.
+     */
+    public static RowRing create(ImageTypeSpecifier type, int width, int height, int rows) {
+        rows = Math.min(rows, height);
+        SampleModel stripModel = type.getSampleModel(width, rows);
+        int stride = getScanlineStride(stripModel);
+        if (stride < 1 || (long) stride * height > Integer.MAX_VALUE) {
+            return null;
+        }
+        SampleModel destinationModel = type.getSampleModel(width, height);
+        if (stride != getScanlineStride(destinationModel)) {
+            return null;
+        }
+        DataBuffer stripBuffer = null;
+        switch (stripModel.getDataType()) {
+            case DataBuffer.TYPE_BYTE:
+                stripBuffer = new DataBufferByte(stride * rows);
+                break;
+            case DataBuffer.TYPE_USHORT:
+                stripBuffer = new DataBufferUShort(stride * rows);
+                break;
+            case DataBuffer.TYPE_INT:
+                stripBuffer = new DataBufferInt(stride * rows);
+                break;
+            default:
+                return null;
+        }
+        ColorModel colorModel = type.getColorModel();
+        WritableRaster stripRaster = Raster.createWritableRaster(stripModel, stripBuffer, null);
+        WritableRaster destinationRaster = Raster.createWritableRaster(
+                destinationModel, new RingDataBuffer(stripBuffer, stride * height), null);
+        return new RowRing(
+                new BufferedImage(colorModel, destinationRaster, colorModel.isAlphaPremultiplied(), null),
+                new BufferedImage(colorModel, stripRaster, colorModel.isAlphaPremultiplied(), null),
+                rows);
+    }
+    
+    /**
+     * @return elements per row, or 0 if rows aren't contiguous in a single bank.
+     */
+    private static int getScanlineStride(SampleModel sampleModel) {
+        if (sampleModel instanceof ComponentSampleModel) {
+            ComponentSampleModel model = (ComponentSampleModel) sampleModel;
+            for (int bank: model.getBankIndices()) {
+                if (bank != 0) {
+                    return 0;
+                }
+            }
+            return model.getScanlineStride();
+        }
+        if (sampleModel instanceof SinglePixelPackedSampleModel) {
+            return ((SinglePixelPackedSampleModel) sampleModel).getScanlineStride();
+        }
+        if (sampleModel instanceof MultiPixelPackedSampleModel) {
+            return ((MultiPixelPackedSampleModel) sampleModel).getScanlineStride();
+        }
+        return 0;
+    }
+    
+    /**
+     * @return the image to decode into.
+     */
+    public BufferedImage getDestination() {
+        return destination;
+    }
+    
+    /**
+     * @return the image holding the last rows decoded.
+     */
+    public BufferedImage getStrip() {
+        return strip;
+    }
+    
+    public int getRows() {
+        return rows;
+    }
+    
+    /**
+     * @return the row of the strip holding the given row of the destination.
+     */
+    public int getStripRow(int y) {
+        return y % rows;
+    }
+    
+    /**
+     * Maps the elements of the whole image onto the elements of the strip.
+     */
+    private static class RingDataBuffer extends DataBuffer {
+        
+        private final DataBuffer strip;
+        private final int length;
+        
+        public RingDataBuffer(DataBuffer strip, int size) {
+            super(strip.getDataType(), size);
+            this.strip = strip;
+            this.length = strip.getSize();
+        }
+
+        @Override
+        public int getElem(int bank, int i) {
+            return strip.getElem((i + offsets[bank]) % length);
+        }
+
+        @Override
+        public void setElem(int bank, int i, int val) {
+            strip.setElem((i + offsets[bank]) % length, val);
+        }
+        
+    }
+    
+}
@@ -0,0 +1,526 @@
+/*******************************************************************************
+ * Copyright 2014 Rui Sun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.images3.data.impl;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.images3.common.EncodedImage;
+import com.images3.common.ImageMetadata;
+import com.images3.common.ImagePlaceholder;
+import com.images3.common.ImageProbe;
+import com.images3.common.ResizingConfig;
+import com.images3.common.ResizingUnit;
+import com.images3.data.ImageDecodingBudget;
+import com.images3.data.spi.ImageProcessor;
+import com.images3.exceptions.ImageProcessingTimeoutException;
+import com.images3.exceptions.ImageProcessorBusyException;
+
+/**
+ * Runs resizing jobs of the given processor on a fixed number of workers 
+ * instead of on the calling threads. 
+ * 
+ * Jobs wait in a bounded queue; when it is full the job is refused with 
+ * {@link ImageProcessorBusyException}. A caller waits for its job until the 
+ * deadline, counted from submission, and then cancels it with 
+ * {@link ImageProcessingTimeoutException}. Files produced by a cancelled 
+ * job are deleted. 
+ * 
+ * With a decoding budget, a job reserves the memory the processor estimates 
+ * for it once it runs on a worker, and releases it when its work actually 
+ * ends, even if its caller gave up on it before.
+ * 
+ * Creating a placeholder is a job too, estimated like a resize to the 
+ * placeholder's size. A placeholder is optional, so when its job is refused 
+ * or times out there is none. Probing only reads headers and still runs 
+ * on the calling thread.
+ */
+public class ScheduledImageProcessor implements ImageProcessor, ProcessingCapacity {
+    
+    private static final ResizingConfig PLACEHOLDER_CONFIG = 
+            new ResizingConfig(ResizingUnit.PIXEL, 32, 32, true);
+    
+    private final ImageProcessor imageProcessor;
+    private final ImageDecodingBudget decodingBudget;
+    private final ThreadPoolExecutor executor;
+    private final int queueCapacity;
+    private final long deadlineMillis;
+    
+    private final AtomicLong submittedJobs = new AtomicLong();
+    private final AtomicLong rejectedJobs = new AtomicLong();
+    private final AtomicLong timedOutJobs = new AtomicLong();
+    private final AtomicLong startedJobs = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    
+    /**
+     * @param workers number of jobs being processed at the same time.
+     * @param queueCapacity maximum number of jobs waiting for a worker.
+     * @param deadlineMillis time a job may take, queueing included.
+     */
+    public ScheduledImageProcessor(ImageProcessor imageProcessor, 
+            int workers, int queueCapacity, long deadlineMillis) {
+        this(imageProcessor, workers, queueCapacity, deadlineMillis, null);
+    }
+    
+    /**
+     * @param decodingBudget memory shared by the jobs, or null not to limit it.
+     */
+    public ScheduledImageProcessor(ImageProcessor imageProcessor, 
+            int workers, int queueCapacity, long deadlineMillis, ImageDecodingBudget decodingBudget) {
+        checkForPositive("Workers", workers);
+        checkForPositive("Queue capacity", queueCapacity);
+        checkForPositive("Deadline", deadlineMillis);
+        this.imageProcessor = imageProcessor;
+        this.decodingBudget = decodingBudget;
+        this.queueCapacity = queueCapacity;
+        this.deadlineMillis = deadlineMillis;
+        this.executor = new ThreadPoolExecutor(
+                workers, workers, 0L, TimeUnit.MILLISECONDS, 
+                new ArrayBlockingQueue<Runnable>(queueCapacity),
+                new WorkerThreadFactory());
+    }
+    
+    private void checkForPositive(String name, long value) {
+        if (value < 1) {
+            throw new IllegalArgumentException(name + " must be at least 1, " + value);
+        }
+    }
+
+    @Override
+    public boolean isSupportedFormat(File imageFile) {
+        return imageProcessor.isSupportedFormat(imageFile);
+    }
+
+    @Override
+    public ImageMetadata readImageMetadata(File imageFile) {
+        return imageProcessor.readImageMetadata(imageFile);
+    }
+
+    @Override
+    public ImageProbe probeImage(File imageFile) {
+        return imageProcessor.probeImage(imageFile);
+    }
+
+    @Override
+    public ImagePlaceholder createPlaceholder(final ImageMetadata metadata, final File imageFile) {
+        Callable<ImagePlaceholder> callable = new Callable<ImagePlaceholder>() {
+            @Override
+            public ImagePlaceholder call() throws Exception {
+                return imageProcessor.createPlaceholder(metadata, imageFile);
+            }
+        };
+        try {
+            return executeJob(new PlaceholderJob(reserveDecodingMemory(metadata, PLACEHOLDER_CONFIG, callable)));
+        } catch (ImageProcessorBusyException e) {
+            return null;
+        } catch (ImageProcessingTimeoutException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void discardImage(ImageMetadata metadata, File imageFile) {
+        imageProcessor.discardImage(metadata, imageFile);
+    }
+
+    @Override
+    public long getPeakDecodingMemory(ImageMetadata metadata, List<ResizingConfig> resizingConfigs) {
+        return imageProcessor.getPeakDecodingMemory(metadata, resizingConfigs);
+    }
+
+    @Override
+    public File resizeImage(final ImageMetadata metadata, final File imageFile,
+            final ResizingConfig resizingConfig) {
+        Callable<File> callable = new Callable<File>() {
+            @Override
+            public File call() throws Exception {
+                return imageProcessor.resizeImage(metadata, imageFile, resizingConfig);
+            }
+        };
+        return executeJob(new FileJob(metadata, reserveDecodingMemory(metadata, resizingConfig, callable)));
+    }
+
+    @Override
+    public File resizeMasterImage(final ImageMetadata metadata, final File imageFile,
+            final ResizingConfig resizingConfig) {
+        Callable<File> callable = new Callable<File>() {
+            @Override
+            public File call() throws Exception {
+                return imageProcessor.resizeMasterImage(metadata, imageFile, resizingConfig);
+            }
+        };
+        return executeJob(new FileJob(metadata, reserveDecodingMemory(metadata, resizingConfig, callable)));
+    }
+
+    @Override
+    public List<File> resizeImages(final ImageMetadata metadata, final File imageFile,
+            final List<ResizingConfig> resizingConfigs) {
+        Callable<List<File>> callable = new Callable<List<File>>() {
+            @Override
+            public List<File> call() throws Exception {
+                return imageProcessor.resizeImages(metadata, imageFile, resizingConfigs);
+            }
+        };
+        ScheduledJob<List<File>> job = new ScheduledJob<List<File>>(
+                reserveDecodingMemory(metadata, resizingConfigs, callable)) {
+            @Override
+            protected void discard(List<File> result) {
+                for (File file: result) {
+                    imageProcessor.discardImage(metadata, file);
+                }
+            }
+        };
+        return executeJob(job);
+    }
+    
+    @Override
+    public ImageProbe probeImage(ByteBuffer imageContent) {
+        return imageProcessor.probeImage(imageContent);
+    }
+
+    @Override
+    public EncodedImage resizeImage(final ImageMetadata metadata, final ByteBuffer imageContent,
+            final ResizingConfig resizingConfig) {
+        Callable<EncodedImage> callable = new Callable<EncodedImage>() {
+            @Override
+            public EncodedImage call() throws Exception {
+                return imageProcessor.resizeImage(metadata, imageContent, resizingConfig);
+            }
+        };
+        return executeJob(new EncodedImageJob(reserveDecodingMemory(metadata, resizingConfig, callable)));
+    }
+
+    @Override
+    public EncodedImage resizeImage(final ImageMetadata metadata, final InputStream imageContent,
+            final ResizingConfig resizingConfig) {
+        Callable<EncodedImage> callable = new Callable<EncodedImage>() {
+            @Override
+            public EncodedImage call() throws Exception {
+                return imageProcessor.resizeImage(metadata, imageContent, resizingConfig);
+            }
+        };
+        return executeJob(new EncodedImageJob(reserveDecodingMemory(metadata, resizingConfig, callable)));
+    }
+    
+    private <T> Callable<T> reserveDecodingMemory(ImageMetadata metadata, 
+            ResizingConfig resizingConfig, Callable<T> callable) {
+        return reserveDecodingMemory(metadata, Collections.singletonList(resizingConfig), callable);
+    }
+    
+    /**
+     * The memory is reserved on the worker, so neither waiting in the queue 
+     * nor a caller that timed out can release it before the work ends.
+     */
+    private <T> Callable<T> reserveDecodingMemory(final ImageMetadata metadata, 
+            final List<ResizingConfig> resizingConfigs, final Callable<T> callable) {
+        if (null == decodingBudget) {
+            return callable;
+        }
+        return new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                ImageDecodingBudget.Reservation reservation = decodingBudget.reserve(
+                        imageProcessor.getPeakDecodingMemory(metadata, resizingConfigs));
+                try {
+                    return callable.call();
+                } finally {
+                    reservation.release();
+                }
+            }
+        };
+    }
+    
+    private <T> T executeJob(ScheduledJob<T> job) {
+        submittedJobs.incrementAndGet();
+        try {
+            executor.execute(job);
+        } catch (RejectedExecutionException e) {
+            rejectedJobs.incrementAndGet();
+            throw new ImageProcessorBusyException(queueCapacity, 
+                    "Too many images are being processed, " + queueCapacity + " jobs are waiting already");
+        }
+        try {
+            long remaining = job.getDeadline() - System.nanoTime();
+            return job.get(remaining, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            if (!job.cancel(true)) {
+                return getResult(job);
+            }
+            timedOutJobs.incrementAndGet();
+            throw new ImageProcessingTimeoutException(deadlineMillis, 
+                    "Image processing didn't finish in " + deadlineMillis + "ms");
+        } catch (InterruptedException e) {
+            job.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+    }
+    
+    /**
+     * Gets the result of a job that just finished after its deadline.
+     */
+    private <T> T getResult(ScheduledJob<T> job) {
+        try {
+            return job.get();
+        } catch (InterruptedException e) {
+            job.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+    }
+    
+    private RuntimeException unwrap(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return new RuntimeException(cause);
+    }
+    
+    @Override
+    public int getIdleWorkers() {
+        int idle = executor.getMaximumPoolSize() - executor.getActiveCount() - getQueueDepth();
+        return Math.max(0, idle);
+    }
+    
+    /**
+     * Parts only pass through the queue on their way to an idle worker, 
+     * and are removed once the caller ran them itself; they aren't jobs, 
+     * so they have no deadline.
+     */
+    @Override
+    public void execute(Runnable task) {
+        if (getIdleWorkers() < 1) {
+            throw new RejectedExecutionException("No idle worker");
+        }
+        executor.execute(task);
+    }
+    
+    @Override
+    public boolean remove(Runnable task) {
+        return executor.remove(task);
+    }
+    
+    /**
+     * @return number of jobs and parts waiting for a worker.
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+    
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+    
+    /**
+     * @return number of jobs being processed.
+     */
+    public int getActiveJobs() {
+        return executor.getActiveCount();
+    }
+    
+    public int getWorkers() {
+        return executor.getMaximumPoolSize();
+    }
+    
+    /**
+     * @return how long the job at the head of the queue has been waiting, 
+     *         or 0 if the queue is empty.
+     */
+    public long getOldestWaitTimeMillis() {
+        BlockingQueue<Runnable> queue = executor.getQueue();
+        for (Runnable task: queue) {
+            if (task instanceof ScheduledJob) {
+                long submittedAt = ((ScheduledJob<?>) task).getSubmittedAt();
+                return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - submittedAt);
+            }
+        }
+        return 0;
+    }
+    
+    /**
+     * @return average time jobs waited for a worker since start.
+     */
+    public long getAverageWaitTimeMillis() {
+        long started = startedJobs.get();
+        if (0 == started) {
+            return 0;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get() / started);
+    }
+    
+    public long getSubmittedJobs() {
+        return submittedJobs.get();
+    }
+    
+    public long getRejectedJobs() {
+        return rejectedJobs.get();
+    }
+    
+    public long getTimedOutJobs() {
+        return timedOutJobs.get();
+    }
+    
+    public long getDeadlineMillis() {
+        return deadlineMillis;
+    }
+    
+    /**
+     * @return memory shared by the jobs, or null if it isn't limited.
+     */
+    public ImageDecodingBudget getDecodingBudget() {
+        return decodingBudget;
+    }
+    
+    /**
+     * Stops accepting jobs, interrupts the running ones and drops the queued ones.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+    
+    @Override
+    public String toString() {
+        return "ScheduledImageProcessor [workers=" + getWorkers() 
+                + ", activeJobs=" + getActiveJobs()
+                + ", queueDepth=" + getQueueDepth() 
+                + ", queueCapacity=" + queueCapacity
+                + ", submittedJobs=" + submittedJobs 
+                + ", rejectedJobs=" + rejectedJobs
+                + ", timedOutJobs=" + timedOutJobs
+                + ", averageWaitTimeMillis=" + getAverageWaitTimeMillis() + "]";
+    }
+
+    private abstract class ScheduledJob<T> extends FutureTask<T> {
+        
+        private final long submittedAt;
+        private final long deadline;
+        
+        public ScheduledJob(Callable<T> callable) {
+            super(callable);
+            this.submittedAt = System.nanoTime();
+            this.deadline = submittedAt + TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+        }
+        
+        public long getSubmittedAt() {
+            return submittedAt;
+        }
+        
+        public long getDeadline() {
+            return deadline;
+        }
+        
+        @Override
+        public void run() {
+            startedJobs.incrementAndGet();
+            totalWaitNanos.addAndGet(System.nanoTime() - submittedAt);
+            super.run();
+        }
+        
+        @Override
+        protected void set(T result) {
+            super.set(result);
+            if (isCancelled() && null != result) {
+                discard(result);
+            }
+        }
+        
+        /**
+         * Releases the result of a job nobody is waiting for anymore.
+         */
+        protected abstract void discard(T result);
+        
+    }
+    
+    private class FileJob extends ScheduledJob<File> {
+        
+        private final ImageMetadata metadata;
+        
+        public FileJob(ImageMetadata metadata, Callable<File> callable) {
+            super(callable);
+            this.metadata = metadata;
+        }
+
+        @Override
+        protected void discard(File result) {
+            imageProcessor.discardImage(metadata, result);
+        }
+        
+    }
+    
+    private class EncodedImageJob extends ScheduledJob<EncodedImage> {
+        
+        public EncodedImageJob(Callable<EncodedImage> callable) {
+            super(callable);
+        }
+
+        @Override
+        protected void discard(EncodedImage result) {
+            //held in memory only.
+        }
+        
+    }
+    
+    private class PlaceholderJob extends ScheduledJob<ImagePlaceholder> {
+        
+        public PlaceholderJob(Callable<ImagePlaceholder> callable) {
+            super(callable);
+        }
+
+        @Override
+        protected void discard(ImagePlaceholder result) {
+            //held in memory only.
+        }
+        
+    }
+    
+    private static class WorkerThreadFactory implements ThreadFactory {
+        
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, 
+                    "images3-processing-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+        
+    }
+
+}
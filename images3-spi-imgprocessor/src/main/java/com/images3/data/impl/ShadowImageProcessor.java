@@ -0,0 +1,408 @@
+/*******************************************************************************
+ * Copyright 2014 Rui Sun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.images3.data.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.images3.common.EncodedImage;
+import com.images3.common.ImageMetadata;
+import com.images3.common.ImagePlaceholder;
+import com.images3.common.ImageProbe;
+import com.images3.common.ResizingConfig;
+import com.images3.data.TempFile;
+import com.images3.data.TempFileArena;
+import com.images3.data.spi.ImageProcessor;
+
+/**
+ * Serves every call with the primary processor, and repeats a sample of 
+ * the resizes with a candidate processor to compare their latency and 
+ * output size. 
+ * 
+ * Once the primary is done, the candidate run is handed to the given 
+ * executor with a copy of the source, and its output is thrown away. 
+ * The source is only copied if the executor has room for the run; runs 
+ * it has no room for or refuses are skipped, and failures of the 
+ * candidate are only counted. Resizes from streams can't be repeated and 
+ * are never sampled.
+ */
+public class ShadowImageProcessor implements ImageProcessor {
+    
+    private final ImageProcessor primary;
+    private final ImageProcessor candidate;
+    private final int samplePercent;
+    private final ThreadPoolExecutor executor;
+    private final TempFileArena tempFileArena;
+    
+    private final AtomicLong comparedRuns = new AtomicLong();
+    private final AtomicLong skippedRuns = new AtomicLong();
+    private final AtomicLong failedRuns = new AtomicLong();
+    private final AtomicLong primaryNanos = new AtomicLong();
+    private final AtomicLong candidateNanos = new AtomicLong();
+    private final AtomicLong primaryBytes = new AtomicLong();
+    private final AtomicLong candidateBytes = new AtomicLong();
+    
+    /**
+     * @param samplePercent percentage of the resizes repeated with the candidate.
+     * @param executor executor the candidate runs on, which should refuse 
+     *                 runs rather than queue them without bound.
+     * @param tempFileArena arena the copies of source files are created in.
+     */
+    public ShadowImageProcessor(ImageProcessor primary, ImageProcessor candidate, 
+            int samplePercent, ThreadPoolExecutor executor, TempFileArena tempFileArena) {
+        if (samplePercent < 0 || samplePercent > 100) {
+            throw new IllegalArgumentException(
+                    "Sample percentage must be between 0 and 100, " + samplePercent);
+        }
+        this.primary = primary;
+        this.candidate = candidate;
+        this.samplePercent = samplePercent;
+        this.executor = executor;
+        this.tempFileArena = tempFileArena;
+    }
+    
+    private boolean isSampled() {
+        return ThreadLocalRandom.current().nextInt(100) < samplePercent;
+    }
+
+    @Override
+    public boolean isSupportedFormat(File imageFile) {
+        return primary.isSupportedFormat(imageFile);
+    }
+
+    @Override
+    public ImageMetadata readImageMetadata(File imageFile) {
+        return primary.readImageMetadata(imageFile);
+    }
+
+    @Override
+    public ImageProbe probeImage(File imageFile) {
+        return primary.probeImage(imageFile);
+    }
+
+    @Override
+    public File resizeImage(ImageMetadata metadata, File imageFile, ResizingConfig resizingConfig) {
+        return resizeImage(metadata, imageFile, resizingConfig, false);
+    }
+
+    @Override
+    public File resizeMasterImage(ImageMetadata metadata, File imageFile, ResizingConfig resizingConfig) {
+        return resizeImage(metadata, imageFile, resizingConfig, true);
+    }
+    
+    private File resizeImage(final ImageMetadata metadata, File imageFile,
+            final ResizingConfig resizingConfig, final boolean isMaster) {
+        if (!isSampled()) {
+            return resizeImage(primary, metadata, imageFile, resizingConfig, isMaster);
+        }
+        long start = System.nanoTime();
+        File resizedImageFile = resizeImage(primary, metadata, imageFile, resizingConfig, isMaster);
+        long nanos = System.nanoTime() - start;
+        final TempFile source = (hasCapacity() ? copySource(imageFile) : null);
+        if (null != source) {
+            submit(new Comparison(nanos, resizedImageFile.length(), source) {
+                @Override
+                protected long runCandidate() {
+                    return deleteFile(resizeImage(candidate, metadata, source.getFile(), resizingConfig, isMaster));
+                }
+            });
+        }
+        return resizedImageFile;
+    }
+    
+    private File resizeImage(ImageProcessor processor, ImageMetadata metadata, File imageFile, 
+            ResizingConfig resizingConfig, boolean isMaster) {
+        if (isMaster) {
+            return processor.resizeMasterImage(metadata, imageFile, resizingConfig);
+        }
+        return processor.resizeImage(metadata, imageFile, resizingConfig);
+    }
+
+    @Override
+    public List<File> resizeImages(final ImageMetadata metadata, File imageFile,
+            final List<ResizingConfig> resizingConfigs) {
+        if (!isSampled()) {
+            return primary.resizeImages(metadata, imageFile, resizingConfigs);
+        }
+        long start = System.nanoTime();
+        List<File> resizedImageFiles = primary.resizeImages(metadata, imageFile, resizingConfigs);
+        long nanos = System.nanoTime() - start;
+        long bytes = 0;
+        for (File resizedImageFile: resizedImageFiles) {
+            bytes += resizedImageFile.length();
+        }
+        final TempFile source = (hasCapacity() ? copySource(imageFile) : null);
+        if (null != source) {
+            submit(new Comparison(nanos, bytes, source) {
+                @Override
+                protected long runCandidate() {
+                    long bytes = 0;
+                    for (File file: candidate.resizeImages(metadata, source.getFile(), resizingConfigs)) {
+                        bytes += deleteFile(file);
+                    }
+                    return bytes;
+                }
+            });
+        }
+        return resizedImageFiles;
+    }
+
+    /**
+     * Only the primary's images are returned.
+     */
+    @Override
+    public void discardImage(ImageMetadata metadata, File imageFile) {
+        primary.discardImage(metadata, imageFile);
+    }
+
+    @Override
+    public ImagePlaceholder createPlaceholder(ImageMetadata metadata, File imageFile) {
+        return primary.createPlaceholder(metadata, imageFile);
+    }
+
+    /**
+     * Candidate runs happen on their own executor once the primary is 
+     * done, so only the primary's memory counts.
+     */
+    @Override
+    public long getPeakDecodingMemory(ImageMetadata metadata, List<ResizingConfig> resizingConfigs) {
+        return primary.getPeakDecodingMemory(metadata, resizingConfigs);
+    }
+
+    @Override
+    public ImageProbe probeImage(ByteBuffer imageContent) {
+        return primary.probeImage(imageContent);
+    }
+
+    @Override
+    public EncodedImage resizeImage(final ImageMetadata metadata, ByteBuffer imageContent, 
+            final ResizingConfig resizingConfig) {
+        if (!isSampled()) {
+            return primary.resizeImage(metadata, imageContent, resizingConfig);
+        }
+        long start = System.nanoTime();
+        EncodedImage encodedImage = primary.resizeImage(metadata, imageContent, resizingConfig);
+        long nanos = System.nanoTime() - start;
+        if (!hasCapacity()) {
+            return encodedImage;
+        }
+        final ByteBuffer source = ByteBuffer.allocate(imageContent.remaining());
+        source.put(imageContent.duplicate());
+        source.flip();
+        submit(new Comparison(nanos, encodedImage.getContent().remaining(), null) {
+            @Override
+            protected long runCandidate() {
+                return candidate.resizeImage(metadata, source, resizingConfig).getContent().remaining();
+            }
+        });
+        return encodedImage;
+    }
+
+    @Override
+    public EncodedImage resizeImage(ImageMetadata metadata, InputStream imageContent, 
+            ResizingConfig resizingConfig) {
+        return primary.resizeImage(metadata, imageContent, resizingConfig);
+    }
+    
+    /**
+     * Checked before the source is copied, so a run the executor would 
+     * refuse doesn't cost a copy. The executor may still refuse the run 
+     * once it's submitted.
+     * 
+     * @return false if the run is skipped.
+     */
+    private boolean hasCapacity() {
+        if (executor.getActiveCount() < executor.getMaximumPoolSize() 
+                || executor.getQueue().remainingCapacity() > 0) {
+            return true;
+        }
+        skippedRuns.incrementAndGet();
+        return false;
+    }
+    
+    /**
+     * The caller may delete the source as soon as the primary is done.
+     * 
+     * @return the copy, or null if the source couldn't be copied.
+     */
+    private TempFile copySource(File imageFile) {
+        TempFile source = null;
+        try {
+            source = tempFileArena.createTempFile(imageFile.length());
+            Files.copy(imageFile.toPath(), source.getFile().toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return source;
+        } catch (IOException e) {
+            if (null != source) {
+                source.release();
+            }
+            skippedRuns.incrementAndGet();
+            return null;
+        }
+    }
+    
+    private void submit(Comparison comparison) {
+        try {
+            executor.execute(comparison);
+        } catch (RejectedExecutionException e) {
+            comparison.releaseSource();
+            skippedRuns.incrementAndGet();
+        }
+    }
+    
+    /**
+     * @return size of the deleted file.
+     */
+    private long deleteFile(File file) {
+        long length = file.length();
+        tempFileArena.release(file);
+        file.delete();
+        return length;
+    }
+    
+    public ImageProcessor getPrimary() {
+        return primary;
+    }
+    
+    public ImageProcessor getCandidate() {
+        return candidate;
+    }
+    
+    public int getSamplePercent() {
+        return samplePercent;
+    }
+    
+    public long getComparedRuns() {
+        return comparedRuns.get();
+    }
+    
+    /**
+     * @return number of sampled resizes the candidate didn't run for, 
+     *         because the executor was busy or the source couldn't be copied.
+     */
+    public long getSkippedRuns() {
+        return skippedRuns.get();
+    }
+    
+    public long getFailedRuns() {
+        return failedRuns.get();
+    }
+    
+    /**
+     * @return average time of the primary over the compared runs.
+     */
+    public long getAveragePrimaryMillis() {
+        return getAverageMillis(primaryNanos);
+    }
+    
+    /**
+     * @return average time of the candidate over the compared runs.
+     */
+    public long getAverageCandidateMillis() {
+        return getAverageMillis(candidateNanos);
+    }
+    
+    private long getAverageMillis(AtomicLong nanos) {
+        long runs = comparedRuns.get();
+        if (runs == 0) {
+            return 0;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(nanos.get() / runs);
+    }
+    
+    /**
+     * @return bytes output by the primary over the compared runs.
+     */
+    public long getPrimaryBytes() {
+        return primaryBytes.get();
+    }
+    
+    /**
+     * @return bytes output by the candidate over the compared runs.
+     */
+    public long getCandidateBytes() {
+        return candidateBytes.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ShadowImageProcessor [samplePercent=" + samplePercent 
+                + ", comparedRuns=" + comparedRuns 
+                + ", skippedRuns=" + skippedRuns 
+                + ", failedRuns=" + failedRuns
+                + ", averagePrimaryMillis=" + getAveragePrimaryMillis()
+                + ", averageCandidateMillis=" + getAverageCandidateMillis()
+                + ", primaryBytes=" + primaryBytes 
+                + ", candidateBytes=" + candidateBytes + "]";
+    }
+    
+    private abstract class Comparison implements Runnable {
+        
+        private final long primaryNanos;
+        private final long primaryBytes;
+        private final TempFile source;
+        
+        /**
+         * @param source copy of the source file, or null if the source is held in memory.
+         */
+        public Comparison(long primaryNanos, long primaryBytes, TempFile source) {
+            this.primaryNanos = primaryNanos;
+            this.primaryBytes = primaryBytes;
+            this.source = source;
+        }
+        
+        @Override
+        public void run() {
+            try {
+                long start = System.nanoTime();
+                long bytes = runCandidate();
+                long nanos = System.nanoTime() - start;
+                ShadowImageProcessor.this.primaryNanos.addAndGet(primaryNanos);
+                ShadowImageProcessor.this.primaryBytes.addAndGet(primaryBytes);
+                candidateNanos.addAndGet(nanos);
+                candidateBytes.addAndGet(bytes);
+                comparedRuns.incrementAndGet();
+            } catch (RuntimeException e) {
+                failedRuns.incrementAndGet();
+            } finally {
+                releaseSource();
+            }
+        }
+        
+        /**
+         * Resizes with the candidate and discards its output.
+         * 
+         * @return bytes output by the candidate.
+         */
+        protected abstract long runCandidate();
+        
+        public void releaseSource() {
+            if (null != source) {
+                source.release();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,107 @@
+/*******************************************************************************
+ * Copyright 2014 Rui Sun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.images3.data.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import com.images3.common.AnimationConfig;
+
+public class GifFramePlanTest {
+    
+    private static final int[] SOURCE_DELAYS = {10, 10, 10, 10};
+    
+    @Test
+    public void testAllFrames() throws IOException {
+        GifFramePlan plan = GifFramePlan.create(null, (GifFrameReader) null);
+        
+        assertTrue(plan.isKept(0));
+        assertTrue(plan.isKept(100));
+        assertFalse(plan.isFinished(100));
+    }
+    
+    @Test
+    public void testFirstFrameOnly() throws IOException {
+        GifFramePlan plan = GifFramePlan.create(
+                new AnimationConfig(true, AnimationConfig.UNLIMITED_FRAMES, AnimationConfig.UNLIMITED_DURATION), 
+                (GifFrameReader) null);
+        
+        assertTrue(plan.isKept(0));
+        assertEquals(0, plan.getDelay(0, null));
+        assertFalse(plan.isKept(1));
+        assertFalse(plan.isFinished(0));
+        assertTrue(plan.isFinished(1));
+    }
+    
+    @Test
+    public void testMaxFrames() {
+        GifFramePlan plan = GifFramePlan.create(
+                new AnimationConfig(false, 2, AnimationConfig.UNLIMITED_DURATION), SOURCE_DELAYS);
+        
+        assertTrue(plan.isKept(0));
+        assertFalse(plan.isKept(1));
+        assertTrue(plan.isKept(2));
+        assertFalse(plan.isKept(3));
+        assertEquals(20, plan.getDelay(0, null));
+        assertEquals(20, plan.getDelay(2, null));
+        assertFalse(plan.isFinished(3));
+        assertTrue(plan.isFinished(4));
+    }
+    
+    @Test
+    public void testMaxFramesAboveFrameCount() {
+        GifFramePlan plan = GifFramePlan.create(
+                new AnimationConfig(false, 10, AnimationConfig.UNLIMITED_DURATION), SOURCE_DELAYS);
+        
+        for (int i = 0; i < SOURCE_DELAYS.length; i++) {
+            assertTrue(plan.isKept(i));
+            assertEquals(10, plan.getDelay(i, null));
+        }
+        assertTrue(plan.isFinished(4));
+    }
+    
+    @Test
+    public void testMaxDuration() {
+        GifFramePlan plan = GifFramePlan.create(
+                new AnimationConfig(false, AnimationConfig.UNLIMITED_FRAMES, 250), SOURCE_DELAYS);
+        
+        assertTrue(plan.isKept(0));
+        assertTrue(plan.isKept(1));
+        assertTrue(plan.isKept(2));
+        assertFalse(plan.isKept(3));
+        assertEquals(10, plan.getDelay(1, null));
+        assertEquals(5, plan.getDelay(2, null));
+        assertTrue(plan.isFinished(3));
+    }
+    
+    @Test
+    public void testMaxFramesAndDuration() {
+        GifFramePlan plan = GifFramePlan.create(
+                new AnimationConfig(false, 1, 250), SOURCE_DELAYS);
+        
+        assertTrue(plan.isKept(0));
+        assertFalse(plan.isKept(1));
+        assertFalse(plan.isKept(2));
+        assertEquals(25, plan.getDelay(0, null));
+        assertTrue(plan.isFinished(3));
+    }
+    
+}
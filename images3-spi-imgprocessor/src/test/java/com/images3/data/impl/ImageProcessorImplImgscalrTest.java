@@ -0,0 +1,220 @@
+/*******************************************************************************
+ * Copyright 2014 Rui Sun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.images3.data.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.images3.common.ImageDimension;
+import com.images3.common.ImageFormat;
+import com.images3.common.ImageMetadata;
+import com.images3.common.ResamplingFilter;
+import com.images3.common.ResizingConfig;
+import com.images3.common.ResizingUnit;
+
+public class ImageProcessorImplImgscalrTest {
+    
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+    
+    private File tempDir;
+    private ImageProcessorImplImgscalr processor;
+    
+    @Before
+    public void setup() throws IOException {
+        tempDir = File.createTempFile("images3", "test");
+        tempDir.delete();
+        tempDir.mkdirs();
+        processor = new ImageProcessorImplImgscalr.Builder()
+            .setTempDir(tempDir.getAbsolutePath())
+            .build();
+    }
+    
+    @After
+    public void teardown() {
+        deleteFile(tempDir);
+    }
+    
+    private void deleteFile(File file) {
+        File[] children = file.listFiles();
+        if (null != children) {
+            for (File child: children) {
+                deleteFile(child);
+            }
+        }
+        file.delete();
+    }
+    
+    private BufferedImage setupImage() {
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                image.setRGB(x, y, (x * 4) << 16 | (y * 5) << 8 | (x + y));
+            }
+        }
+        return image;
+    }
+    
+    private byte[] setupContent(String formatName) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ImageIO.write(setupImage(), formatName, output);
+        return output.toByteArray();
+    }
+    
+    /**
+     * Writes a progressive JPEG or an interlaced PNG.
+     */
+    private byte[] setupProgressiveContent(String formatName) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName(formatName).next();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ImageOutputStream imageOutput = ImageIO.createImageOutputStream(output);
+        try {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+            writer.setOutput(imageOutput);
+            writer.write(null, new IIOImage(setupImage(), null, null), param);
+        } finally {
+            writer.dispose();
+            imageOutput.close();
+        }
+        return output.toByteArray();
+    }
+    
+    /**
+     * Finds the image descriptor of the first frame, past the global 
+     * color table and any extension blocks.
+     */
+    private int getImageDescriptorOffset(byte[] content) {
+        int offset = 13;
+        if ((content[10] & 0x80) != 0) {
+            offset += 3 << ((content[10] & 0x07) + 1);
+        }
+        while (content[offset] == 0x21) {
+            offset += 2;
+            while (content[offset] != 0) {
+                offset += (content[offset] & 0xFF) + 1;
+            }
+            offset++;
+        }
+        return offset;
+    }
+    
+    private File setupImageFile(byte[] content) throws IOException {
+        File file = new File(tempDir, "image");
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            output.write(content);
+        } finally {
+            output.close();
+        }
+        return file;
+    }
+    
+    private ImageMetadata setupImageMetadata(ImageFormat format, File imageFile) {
+        return new ImageMetadata(
+                new ImageDimension(WIDTH, HEIGHT), format, imageFile.length());
+    }
+    
+    @Test
+    public void testCreatePlaceholder() throws IOException {
+        File imageFile = setupImageFile(setupContent("jpg"));
+        assertNotNull(processor.createPlaceholder(
+                setupImageMetadata(ImageFormat.JPEG, imageFile), imageFile));
+    }
+    
+    @Test
+    public void testCreatePlaceholder_TruncatedContent() throws IOException {
+        byte[] content = setupContent("jpg");
+        File imageFile = setupImageFile(Arrays.copyOf(content, 200));
+        assertNull(processor.createPlaceholder(
+                setupImageMetadata(ImageFormat.JPEG, imageFile), imageFile));
+    }
+    
+    @Test
+    public void testCreatePlaceholder_CorruptContent() throws IOException {
+        byte[] content = setupContent("gif");
+        int offset = getImageDescriptorOffset(content);
+        Arrays.fill(content, offset + 5, offset + 9, (byte) 0xFF);
+        File imageFile = setupImageFile(content);
+        assertNull(processor.createPlaceholder(
+                setupImageMetadata(ImageFormat.GIF, imageFile), imageFile));
+    }
+    
+    private void assertStripsEqualWholeImage(ImageFormat format, byte[] content) throws IOException {
+        ImageProcessorImplImgscalr stripProcessor = new ImageProcessorImplImgscalr.Builder()
+            .setTempDir(tempDir.getAbsolutePath())
+            .setTiledPixelThreshold(1)
+            .setStripHeight(8)
+            .build();
+        ResizingConfig resizingConfig = new ResizingConfig(
+                ResizingUnit.PIXEL, 40, 30, true, null, ResamplingFilter.BILINEAR);
+        File imageFile = setupImageFile(content);
+        ImageMetadata metadata = setupImageMetadata(format, imageFile);
+        BufferedImage whole = ImageIO.read(processor.resizeImage(metadata, imageFile, resizingConfig));
+        BufferedImage strips = ImageIO.read(stripProcessor.resizeImage(metadata, imageFile, resizingConfig));
+        assertEquals(whole.getWidth(), strips.getWidth());
+        assertEquals(whole.getHeight(), strips.getHeight());
+        int width = whole.getWidth();
+        int height = whole.getHeight();
+        assertArrayEquals(whole.getRGB(0, 0, width, height, null, 0, width), 
+                strips.getRGB(0, 0, width, height, null, 0, width));
+    }
+    
+    @Test
+    public void testResizeImageInStrips_Jpeg() throws IOException {
+        assertStripsEqualWholeImage(ImageFormat.JPEG, setupContent("jpg"));
+    }
+    
+    @Test
+    public void testResizeImageInStrips_ProgressiveJpeg() throws IOException {
+        assertStripsEqualWholeImage(ImageFormat.JPEG, setupProgressiveContent("jpg"));
+    }
+    
+    @Test
+    public void testResizeImageInStrips_Png() throws IOException {
+        assertStripsEqualWholeImage(ImageFormat.PNG, setupContent("png"));
+    }
+    
+    @Test
+    public void testResizeImageInStrips_InterlacedPng() throws IOException {
+        assertStripsEqualWholeImage(ImageFormat.PNG, setupProgressiveContent("png"));
+    }
+    
+    @Test
+    public void testResizeImageInStrips_Bmp() throws IOException {
+        assertStripsEqualWholeImage(ImageFormat.BMP, setupContent("bmp"));
+    }
+    
+}
@@ -0,0 +1,173 @@
+/*******************************************************************************
+ * Copyright 2014 Rui Sun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.images3.data.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.images3.common.ResamplingFilter;
+
+public class PixelResamplerTest {
+    
+    private static final ResamplingFilter[] FILTERS = {
+        ResamplingFilter.BOX, ResamplingFilter.BILINEAR, ResamplingFilter.LANCZOS3};
+    
+    private PixelResampler resampler;
+    private ThreadPoolExecutor executor;
+    private ProcessingCapacity capacity;
+    
+    @Before
+    public void setup() {
+        resampler = new PixelResampler();
+        executor = new ThreadPoolExecutor(
+                2, 2, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(8));
+        capacity = new ProcessingCapacity() {
+            @Override
+            public int getIdleWorkers() {
+                return executor.getMaximumPoolSize() - executor.getActiveCount();
+            }
+            @Override
+            public void execute(Runnable task) {
+                executor.execute(task);
+            }
+            @Override
+            public boolean remove(Runnable task) {
+                return executor.remove(task);
+            }
+        };
+    }
+    
+    @After
+    public void teardown() {
+        executor.shutdownNow();
+    }
+    
+    private BufferedImage setupImage(int width, int height, int type) {
+        BufferedImage image = new BufferedImage(width, height, type);
+        Random random = new Random(width * 31 + height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, random.nextInt());
+            }
+        }
+        return image;
+    }
+    
+    private BufferedImage setupFlatImage(int width, int height, int type, int argb) {
+        BufferedImage image = new BufferedImage(width, height, type);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, argb);
+            }
+        }
+        return image;
+    }
+    
+    private int[] getPixels(BufferedImage image) {
+        return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+    }
+    
+    @Test
+    public void testResize_OutputSize() {
+        BufferedImage source = setupImage(97, 61, BufferedImage.TYPE_INT_RGB);
+        for (ResamplingFilter filter: FILTERS) {
+            BufferedImage smaller = resampler.resize(source, 30, 20, filter);
+            assertEquals(30, smaller.getWidth());
+            assertEquals(20, smaller.getHeight());
+            BufferedImage larger = resampler.resize(source, 150, 1, filter);
+            assertEquals(150, larger.getWidth());
+            assertEquals(1, larger.getHeight());
+        }
+    }
+    
+    @Test
+    public void testResize_FlatColour() {
+        int[] colours = {0xFF3C8AD2, 0xFF000000, 0xFFFFFFFF};
+        int[] types = {BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_3BYTE_BGR};
+        for (int type: types) {
+            for (int colour: colours) {
+                BufferedImage source = setupFlatImage(64, 48, type, colour);
+                for (ResamplingFilter filter: FILTERS) {
+                    for (int pixel: getPixels(resampler.resize(source, 23, 37, filter))) {
+                        assertEquals(colour, pixel);
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Premultiplied channels have less precision, so a colour channel of 
+     * an at least half opaque pixel may be off by one.
+     */
+    @Test
+    public void testResize_FlatColourWithAlpha() {
+        int[] colours = {0x80FF4020, 0x80123456, 0xC0ABCDEF};
+        for (int colour: colours) {
+            BufferedImage source = setupFlatImage(64, 48, BufferedImage.TYPE_INT_ARGB, colour);
+            for (ResamplingFilter filter: FILTERS) {
+                for (int pixel: getPixels(resampler.resize(source, 23, 37, filter))) {
+                    assertEquals(colour >>> 24, pixel >>> 24);
+                    for (int shift = 0; shift < 24; shift += 8) {
+                        int expected = (colour >> shift) & 0xff;
+                        int actual = (pixel >> shift) & 0xff;
+                        assertTrue(Math.abs(expected - actual) <= 1);
+                    }
+                }
+            }
+        }
+    }
+    
+    @Test
+    public void testResize_BandsEqualSinglePass() throws InterruptedException {
+        BufferedImage source = setupImage(120, 90, BufferedImage.TYPE_INT_ARGB);
+        for (ResamplingFilter filter: FILTERS) {
+            int[] expected = getPixels(resampler.resize(source, 50, 41, filter));
+            for (int bands = 1; bands <= 5; bands++) {
+                BufferedImage banded = resampler.resize(source, 50, 41, filter, capacity, bands);
+                assertArrayEquals(expected, getPixels(banded));
+            }
+        }
+        assertEquals(0, executor.getQueue().size());
+    }
+    
+    @Test
+    public void testResize_StripsEqualSinglePass() {
+        BufferedImage source = setupImage(80, 70, BufferedImage.TYPE_INT_RGB);
+        for (ResamplingFilter filter: FILTERS) {
+            int[] expected = getPixels(resampler.resize(source, 33, 29, filter));
+            PixelResampler.StripResampler stripResampler = resampler.open(80, 70, 33, 29, filter, false);
+            int stripHeight = 9;
+            for (int y = 0; y < source.getHeight(); y += stripHeight) {
+                int rows = Math.min(stripHeight, source.getHeight() - y);
+                stripResampler.push(source.getSubimage(0, y, source.getWidth(), rows), y, rows);
+            }
+            assertArrayEquals(expected, getPixels(stripResampler.finish()));
+        }
+    }
+    
+}
@@ -20,13 +20,19 @@ import java.util.HashMap;
 import java.util.Map;
 
 import com.images3.common.AmazonS3Bucket;
+import com.images3.common.AnimationConfig;
+import com.images3.common.ChromaSubsampling;
+import com.images3.common.EncodingConfig;
 import com.images3.common.ImageDimension;
 import com.images3.common.ImageFormat;
 import com.images3.common.ImageIdentity;
 import com.images3.common.ImageMetadata;
 import com.images3.common.ImageMetricsType;
+import com.images3.common.ImagePlaceholder;
 import com.images3.common.ImageVersion;
+import com.images3.common.MaximumImagePixels;
 import com.images3.common.MaximumImageSize;
+import com.images3.common.ResamplingFilter;
 import com.images3.common.ResizingConfig;
 import com.images3.common.ResizingUnit;
 import com.images3.common.TemplateIdentity;
@@ -68,7 +74,8 @@ public class MongoDBObjectMapper {
             .append("bucket", mapToBasicDBObject(source.getAmazonS3Bucket()))
             .append("masterTemplateName", source.getMasterTemplateName())
             .append("numberOfTemplates", source.getNumberOfTemplates())
-            .append("maximumImageSize", source.getMaximumImageSize());
+            .append("maximumImageSize", source.getMaximumImageSize())
+            .append("maximumImagePixels", source.getMaximumImagePixels());
     }
     
     public ImagePlantOS mapToImagePlantOS(BasicDBObject source) {
@@ -76,6 +83,10 @@ public class MongoDBObjectMapper {
         if (source.containsValue("maximumImageSize")) {
             maximumImageSize = source.getInt("maximumImageSize");
         }
+        long maximumImagePixels = MaximumImagePixels.UNLIMITED;
+        if (source.containsField("maximumImagePixels")) {
+            maximumImagePixels = source.getLong("maximumImagePixels");
+        }
         return new ImagePlantOS(
                 source.getString("id"),
                 source.getString("name"),
@@ -83,7 +94,8 @@ public class MongoDBObjectMapper {
                 mapToAmazonS3Bucket((BasicDBObject) source.get("bucket")),
                 source.getString("masterTemplateName"),
                 source.getLong("numberOfTemplates"),
-                maximumImageSize);
+                maximumImageSize,
+                maximumImagePixels);
     }
     
     public BasicDBObject mapToBasicDBObject(AmazonS3Bucket source) {
@@ -121,19 +133,72 @@ public class MongoDBObjectMapper {
     }
     
     public BasicDBObject mapToBasicDBObject(ResizingConfig source) {
-        return new BasicDBObject()
+        BasicDBObject obj = new BasicDBObject()
             .append("height", source.getHeight())
             .append("width", source.getWidth())
             .append("unit", source.getUnit().toString())
-            .append("isKeepProportions", source.isKeepProportions());
+            .append("isKeepProportions", source.isKeepProportions())
+            .append("resamplingFilter", source.getResamplingFilter().toString());
+        if (null != source.getEncodingConfig()) {
+            obj.append("encodingConfig", mapToBasicDBObject(source.getEncodingConfig()));
+        }
+        if (null != source.getAnimationConfig()) {
+            obj.append("animationConfig", mapToBasicDBObject(source.getAnimationConfig()));
+        }
+        return obj;
     }
     
     public ResizingConfig mapToResizingConfig(BasicDBObject source) {
+        EncodingConfig encodingConfig = null;
+        if (source.containsField("encodingConfig")) {
+            encodingConfig = mapToEncodingConfig((BasicDBObject) source.get("encodingConfig"));
+        }
+        ResamplingFilter resamplingFilter = ResamplingFilter.DEFAULT;
+        if (source.containsField("resamplingFilter")) {
+            resamplingFilter = ResamplingFilter.valueOf(source.getString("resamplingFilter"));
+        }
+        AnimationConfig animationConfig = null;
+        if (source.containsField("animationConfig")) {
+            animationConfig = mapToAnimationConfig((BasicDBObject) source.get("animationConfig"));
+        }
         return new ResizingConfig(
                 ResizingUnit.valueOf(source.getString("unit")),
                 source.getInt("width"),
                 source.getInt("height"),
-                source.getBoolean("isKeepProportions"));
+                source.getBoolean("isKeepProportions"),
+                encodingConfig,
+                resamplingFilter,
+                animationConfig);
+    }
+    
+    public BasicDBObject mapToBasicDBObject(EncodingConfig source) {
+        return new BasicDBObject()
+            .append("jpegQuality", source.getJpegQuality())
+            .append("isProgressive", source.isProgressive())
+            .append("chromaSubsampling", source.getChromaSubsampling().toString())
+            .append("pngCompressionLevel", source.getPngCompressionLevel());
+    }
+    
+    public EncodingConfig mapToEncodingConfig(BasicDBObject source) {
+        return new EncodingConfig(
+                source.getInt("jpegQuality"),
+                source.getBoolean("isProgressive"),
+                ChromaSubsampling.valueOf(source.getString("chromaSubsampling")),
+                source.getInt("pngCompressionLevel"));
+    }
+    
+    public BasicDBObject mapToBasicDBObject(AnimationConfig source) {
+        return new BasicDBObject()
+            .append("isFirstFrameOnly", source.isFirstFrameOnly())
+            .append("maxFrames", source.getMaxFrames())
+            .append("maxDurationMillis", source.getMaxDurationMillis());
+    }
+    
+    public AnimationConfig mapToAnimationConfig(BasicDBObject source) {
+        return new AnimationConfig(
+                source.getBoolean("isFirstFrameOnly"),
+                source.getInt("maxFrames"),
+                source.getInt("maxDurationMillis"));
     }
     
     public BasicDBObject mapToBasicDBObject(ImageOS source) {
@@ -157,17 +222,38 @@ public class MongoDBObjectMapper {
     }
     
     public BasicDBObject mapToBasicDBObject(ImageMetadata source) {
-        return new BasicDBObject()
+        BasicDBObject obj = new BasicDBObject()
             .append("dimension", mapToBasicDBObject(source.getDimension()))
             .append("format", source.getFormat().toString())
             .append("size", source.getSize());
+        if (null != source.getPlaceholder()) {
+            obj.append("placeholder", mapToBasicDBObject(source.getPlaceholder()));
+        }
+        return obj;
     }
     
     public ImageMetadata mapToImageMetadata(BasicDBObject source) {
+        ImagePlaceholder placeholder = null;
+        if (source.containsField("placeholder")) {
+            placeholder = mapToImagePlaceholder((BasicDBObject) source.get("placeholder"));
+        }
         return new ImageMetadata(
                 mapToImageDimension((BasicDBObject) source.get("dimension")),
                 ImageFormat.valueOf(source.getString("format")),
-                source.getLong("size"));
+                source.getLong("size"),
+                placeholder);
+    }
+    
+    public BasicDBObject mapToBasicDBObject(ImagePlaceholder source) {
+        return new BasicDBObject()
+            .append("dominantColor", source.getDominantColor())
+            .append("blurHash", source.getBlurHash());
+    }
+    
+    public ImagePlaceholder mapToImagePlaceholder(BasicDBObject source) {
+        return new ImagePlaceholder(
+                source.getString("dominantColor"),
+                source.getString("blurHash"));
     }
     
     public BasicDBObject mapToBasicDBObject(ImageDimension source) {
@@ -16,6 +16,7 @@
 package com.images3;
 
 import com.images3.common.AmazonS3Bucket;
+import com.images3.common.MaximumImagePixels;
 import com.images3.common.MaximumImageSize;
 import com.images3.common.ResizingConfig;
 
@@ -25,6 +26,7 @@ public class ImagePlantAddRequest {
     private AmazonS3Bucket bucket;
     private ResizingConfig resizingConfig;
     private int maximumImageSize;
+    private long maximumImagePixels;
 
     public ImagePlantAddRequest(String name, AmazonS3Bucket bucket,
             ResizingConfig resizingConfig) {
@@ -32,10 +34,15 @@ public class ImagePlantAddRequest {
     }
     public ImagePlantAddRequest(String name, AmazonS3Bucket bucket,
             ResizingConfig resizingConfig, int maximumImageSize) {
+        this(name, bucket, resizingConfig, maximumImageSize, MaximumImagePixels.UNLIMITED);
+    }
+    public ImagePlantAddRequest(String name, AmazonS3Bucket bucket,
+            ResizingConfig resizingConfig, int maximumImageSize, long maximumImagePixels) {
         this.name = name;
         this.bucket = bucket;
         this.resizingConfig = resizingConfig;
         this.maximumImageSize = maximumImageSize;
+        this.maximumImagePixels = maximumImagePixels;
     }
 
     public String getName() {
@@ -54,4 +61,8 @@ public class ImagePlantAddRequest {
         return maximumImageSize;
     }
 
+    public long getMaximumImagePixels() {
+        return maximumImagePixels;
+    }
+
 }
@@ -29,10 +29,12 @@ public class ImagePlantResponse {
     private long numberOfTemplates;
     private long numberOfImages;
     private int maximumImageSize;
+    private long maximumImagePixels;
     
     public ImagePlantResponse(String id, String name, AmazonS3Bucket bucket,
             Date creationTime, TemplateResponse masterTemplate,
-            long numberOfTemplates, long numberOfImages, int maximumImageSize) {
+            long numberOfTemplates, long numberOfImages, int maximumImageSize,
+            long maximumImagePixels) {
         this.id = id;
         this.name = name;
         this.bucket = bucket;
@@ -41,6 +43,7 @@ public class ImagePlantResponse {
         this.numberOfTemplates = numberOfTemplates;
         this.numberOfImages = numberOfImages;
         this.maximumImageSize = maximumImageSize;
+        this.maximumImagePixels = maximumImagePixels;
     }
 
     public String getId() {
@@ -75,4 +78,8 @@ public class ImagePlantResponse {
         return maximumImageSize;
     }
 
+    public long getMaximumImagePixels() {
+        return maximumImagePixels;
+    }
+
 }
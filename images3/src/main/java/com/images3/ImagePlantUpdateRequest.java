@@ -16,6 +16,7 @@
 package com.images3;
 
 import com.images3.common.AmazonS3Bucket;
+import com.images3.common.MaximumImagePixels;
 import com.images3.common.MaximumImageSize;
 
 public class ImagePlantUpdateRequest {
@@ -24,6 +25,7 @@ public class ImagePlantUpdateRequest {
     private String name;
     private AmazonS3Bucket bucket;
     private int maximumImageSize;
+    private long maximumImagePixels;
     
     public ImagePlantUpdateRequest(String id, String name, AmazonS3Bucket bucket) {
         this(id, name, bucket, MaximumImageSize.UNLIMITED);
@@ -31,10 +33,16 @@ public class ImagePlantUpdateRequest {
             
     public ImagePlantUpdateRequest(String id, String name, AmazonS3Bucket bucket,
             int maximumImageSize) {
+        this(id, name, bucket, maximumImageSize, MaximumImagePixels.UNLIMITED);
+    }
+    
+    public ImagePlantUpdateRequest(String id, String name, AmazonS3Bucket bucket,
+            int maximumImageSize, long maximumImagePixels) {
         this.id = id;
         this.name = name;
         this.bucket = bucket;
         this.maximumImageSize = maximumImageSize;
+        this.maximumImagePixels = maximumImagePixels;
     }
 
     public String getId() {
@@ -53,4 +61,8 @@ public class ImagePlantUpdateRequest {
         return maximumImageSize;
     }
 
+    public long getMaximumImagePixels() {
+        return maximumImagePixels;
+    }
+
 }